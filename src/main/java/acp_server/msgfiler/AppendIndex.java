@@ -0,0 +1,229 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// AppendIndex.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// AppendIndex maintains the sidecar time index of MsgFiler "store_mode": "append" files, enabled with
+// "index_records": N in the filer config.
+//
+// For each append file "x.txt" the index file "x.txt.idx" has an entry for each 'block' of N records:
+//
+//   start (long)   - byte offset in x.txt of the first record of the block
+//   end   (long)   - byte offset in x.txt after the last record of the block
+//   min_ts (long)  - minimum timestamp (epoch ms, from the "store_ts" field) of the records in the block
+//   max_ts (long)  - maximum timestamp of the records in the block
+//                    (records without a valid timestamp are left out of min/max)
+//
+// i.e. ENTRY_BYTES = 32 bytes per entry, big-endian as written by DataOutputStream.  The records after the
+// last entry (fewer than N) are not yet indexed.  As each block has its own min/max timestamp a reader can
+// skip every block outside the requested time range even if records arrive out of order.
+//
+// The per-file block state is kept in memory for the most recently written files.  If the state for a file
+// is not in memory (e.g. after a restart, or an index added to an existing file) it is recovered by
+// reading the records after the last index entry.
+//
+// add() is BLOCKING and is called on the WriterPool worker for the file (so the calls for a given file
+// are in order, after the record has been appended).
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import acp_server.util.Log;
+
+public class AppendIndex {
+
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final int ENTRY_BYTES = 32;
+    public static final long NO_TS = Long.MIN_VALUE; // timestamp of a record without a valid store_ts field
+
+    private final int MAX_OPEN_BLOCKS = 1000; // max files with block state in memory
+
+    private String module_id; // for log messages
+
+    private int index_records; // records per index block
+
+    private ToLongFunction<String> line_ts; // timestamp (epoch ms) of a record line, used for recovery
+
+    private LinkedHashMap<String, Block> blocks; // file_path -> current block, in access order
+
+    public AppendIndex(String module_id, int index_records, ToLongFunction<String> line_ts)
+    {
+        this.module_id = module_id;
+        this.index_records = index_records;
+        this.line_ts = line_ts;
+
+        blocks = new LinkedHashMap<String, Block>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Block> eldest)
+                {
+                    return size() > MAX_OPEN_BLOCKS;
+                }
+            };
+    }
+
+    // *********************************************************************
+    // add()
+    // BLOCKING update of the index of file_path for a record with timestamp 'ts' (epoch ms)
+    // just appended to the file from byte offset 'start' to 'end'
+    public void add(String file_path, long start, long end, long ts)
+    {
+        Block block;
+        synchronized (blocks)
+        {
+            block = blocks.get(file_path);
+        }
+
+        try
+        {
+            if (block == null)
+            {
+                block = recover(file_path, start);
+                synchronized (blocks)
+                {
+                    blocks.put(file_path, block);
+                }
+            }
+
+            block.add(start, end, ts);
+
+            if (block.records >= index_records)
+            {
+                write_entry(file_path, block);
+                block.reset();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgFiler."+module_id+": AppendIndex failed for "+file_path+": "+e.getMessage());
+            synchronized (blocks)
+            {
+                blocks.remove(file_path);
+            }
+        }
+    }
+
+    // Forget the block state of file_path, e.g. when it has been recompressed (so a later record starts a new file)
+    public void forget(String file_path)
+    {
+        synchronized (blocks)
+        {
+            blocks.remove(file_path);
+        }
+    }
+
+    // Recover the block state of file_path from its index and the records in the file before
+    // byte offset 'limit' that are after the last index entry, indexing them as needed
+    private Block recover(String file_path, long limit) throws IOException
+    {
+        Block block = new Block();
+
+        long indexed = 0L; // end of the last index entry
+        File index_file = new File(file_path + INDEX_SUFFIX);
+        long index_length = index_file.length() - index_file.length() % ENTRY_BYTES;
+        if (index_length > 0)
+        {
+            try (RandomAccessFile raf = new RandomAccessFile(index_file, "r"))
+            {
+                raf.seek(index_length - ENTRY_BYTES + 8);
+                indexed = raf.readLong();
+            }
+        }
+
+        if (indexed >= limit)
+        {
+            return block;
+        }
+
+        // read the unindexed records
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file_path), 65536))
+        {
+            in.skip(indexed);
+            long position = indexed;
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while (position < limit && (b = in.read()) >= 0)
+            {
+                position++;
+                if (b != '\n')
+                {
+                    line.write(b);
+                    continue;
+                }
+                long start = position - line.size() - 1;
+                block.add(start, position, line_ts.applyAsLong(line.toString("UTF-8")));
+                line.reset();
+                if (block.records >= index_records)
+                {
+                    write_entry(file_path, block);
+                    block.reset();
+                }
+            }
+        }
+
+        if (indexed == 0L)
+        {
+            System.out.println("MsgFiler."+module_id+": AppendIndex indexed existing "+file_path);
+        }
+
+        return block;
+    }
+
+    // Append the index entry for 'block' to the index of file_path
+    private void write_entry(String file_path, Block block) throws IOException
+    {
+        // note FileOutputStream second arg 'true' => APPEND MODE
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                        new FileOutputStream(file_path + INDEX_SUFFIX, true), ENTRY_BYTES)))
+        {
+            out.writeLong(block.start);
+            out.writeLong(block.end);
+            out.writeLong(block.min_ts);
+            out.writeLong(block.max_ts);
+        }
+    }
+
+    // The records of the current (not yet indexed) block of a file
+    private static class Block {
+        int records;
+        long start;
+        long end;
+        long min_ts;
+        long max_ts;
+
+        void add(long record_start, long record_end, long ts)
+        {
+            if (records == 0)
+            {
+                start = record_start;
+                min_ts = Long.MAX_VALUE;
+                max_ts = Long.MIN_VALUE;
+            }
+            // a record with no valid timestamp can never be in a time range, so is left out of min/max
+            if (ts != NO_TS)
+            {
+                min_ts = Math.min(min_ts, ts);
+                max_ts = Math.max(max_ts, ts);
+            }
+            end = record_end;
+            records++;
+        }
+
+        void reset()
+        {
+            records = 0;
+        }
+    } // end class Block
+
+} // end class AppendIndex
@@ -0,0 +1,259 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// AppendIndexReader.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// AppendIndexReader answers time-range queries on a MsgFiler "append" file using its sidecar index
+// (see AppendIndex), e.g. the records of sensor "elsys-eye-044504" between 10:00 and 11:00:
+//
+//   AppendIndexReader reader = new AppendIndexReader("acp_ts");
+//   JsonObject stats = reader.query("/media/acp/mqtt_acp/2020/11/04/mqtt_acp_2020-11-04.txt",
+//                                   from_ts, to_ts, "acp_id", "elsys-eye-044504", true,
+//                                   record -> { ... });
+//
+// The file and index are memory-mapped, only the index blocks overlapping the time range (plus the
+// unindexed records at the end of the file) are read, and only those records are parsed.  With use_index
+// false the whole file is scanned, for comparison, and the returned stats (blocks read, bytes read,
+// records parsed, elapsed ms) show the difference.  A file that has been compressed (i.e. only "x.gz"
+// exists) is always scanned in full.  The file is mapped at most MAP_CHUNK bytes at a time, as a day
+// file may be larger than a single mapping (2 GB).
+//
+// query() is BLOCKING, so a verticle should call it via vertx.executeBlocking.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+
+import acp_server.util.Timestamp;
+
+public class AppendIndexReader {
+
+    private static final long MAP_CHUNK = 256L * 1024L * 1024L; // bytes of the file mapped at a time
+
+    private String ts_field; // record field containing the timestamp, e.g. "acp_ts"
+
+    // counters for the current query
+    private long blocks;
+    private long blocks_read;
+    private long bytes_read;
+    private long records_read;
+    private long records_matched;
+
+    public AppendIndexReader(String ts_field)
+    {
+        this.ts_field = ts_field;
+    }
+
+    // *********************************************************************
+    // query()
+    // Call handler with each record of file_path with from_ts <= ts <= to_ts (epoch ms) and, if
+    // key_field is not null, key_field = key_value.  Returns the query stats.
+    public JsonObject query(String file_path,
+                            long from_ts,
+                            long to_ts,
+                            String key_field,
+                            String key_value,
+                            boolean use_index,
+                            Handler<String> handler) throws IOException
+    {
+        long start_time = System.nanoTime();
+        blocks = 0L;
+        blocks_read = 0L;
+        bytes_read = 0L;
+        records_read = 0L;
+        records_matched = 0L;
+
+        File file = new File(file_path);
+        File gz_file = new File(file_path + Compressor.GZIP_SUFFIX);
+
+        if (!file.exists() && gz_file.exists())
+        {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                                             new GZIPInputStream(new FileInputStream(gz_file), 65536),
+                                             StandardCharsets.UTF_8)))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    bytes_read += line.length() + 1;
+                    match(line, from_ts, to_ts, key_field, key_value, handler);
+                }
+            }
+            catch (EOFException e)
+            {
+                // the end of the data flushed to the gzip member still being written
+            }
+            return stats(start_time, false);
+        }
+
+        // map the index first, as the file may be appended to meanwhile
+        ByteBuffer index = use_index ? map(new File(file_path + AppendIndex.INDEX_SUFFIX)) : ByteBuffer.allocate(0);
+        if (!file.exists())
+        {
+            return stats(start_time, false);
+        }
+
+        int entries = index.capacity() / AppendIndex.ENTRY_BYTES;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel data = raf.getChannel())
+        {
+            long size = data.size();
+            long indexed = 0L; // end of the indexed blocks
+            for (int i=0; i<entries; i++)
+            {
+                int e = i * AppendIndex.ENTRY_BYTES;
+                long start = index.getLong(e);
+                long end = index.getLong(e + 8);
+                long min_ts = index.getLong(e + 16);
+                long max_ts = index.getLong(e + 24);
+                blocks++;
+                indexed = end;
+                if (max_ts < from_ts || min_ts > to_ts)
+                {
+                    continue;
+                }
+                blocks_read++;
+                read_lines(data, size, start, end, from_ts, to_ts, key_field, key_value, handler);
+            }
+
+            // the records after the last index entry
+            read_lines(data, size, indexed, size, from_ts, to_ts, key_field, key_value, handler);
+        }
+
+        return stats(start_time, entries > 0);
+    }
+
+    // Check each line of the file 'data' (of length size) from start to end, mapping up to MAP_CHUNK
+    // bytes at a time.  The range is clamped to size, e.g. for an index entry of a file since truncated.
+    private void read_lines(FileChannel data, long size, long start, long end,
+                            long from_ts, long to_ts, String key_field, String key_value,
+                            Handler<String> handler) throws IOException
+    {
+        end = Math.min(end, size);
+        if (start < 0L || start >= end)
+        {
+            return;
+        }
+        bytes_read += end - start;
+        long chunk = MAP_CHUNK;
+        long pos = start; // the file position of the first line not yet read
+        while (pos < end)
+        {
+            int length = (int) Math.min(end - pos, chunk);
+            MappedByteBuffer buffer = data.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            int line_start = 0;
+            for (int p=0; p<length; p++)
+            {
+                if (buffer.get(p) == '\n')
+                {
+                    byte[] line = new byte[p - line_start];
+                    buffer.position(line_start);
+                    buffer.get(line);
+                    match(new String(line, StandardCharsets.UTF_8), from_ts, to_ts, key_field, key_value, handler);
+                    line_start = p + 1;
+                }
+            }
+            if (line_start == 0)
+            {
+                if (length == end - pos)
+                {
+                    break; // the rest of the range has no newline, i.e. a record still being written
+                }
+                if (chunk == Integer.MAX_VALUE)
+                {
+                    pos += length; // not a record, skip it
+                    continue;
+                }
+                // a line longer than the chunk, so map more of the file
+                chunk = Math.min(chunk * 2L, Integer.MAX_VALUE);
+                continue;
+            }
+            // the next chunk starts at the line that ran over the end of this one
+            pos += line_start;
+        }
+    }
+
+    // Pass 'line' to handler if it matches the query
+    private void match(String line, long from_ts, long to_ts, String key_field, String key_value,
+                       Handler<String> handler)
+    {
+        // most lines for another key can be rejected without parsing them
+        if (key_field != null && !line.contains(key_value))
+        {
+            return;
+        }
+
+        records_read++;
+
+        JsonObject record;
+        try
+        {
+            record = new JsonObject(line);
+        }
+        catch (Exception e)
+        {
+            return; // not a valid record
+        }
+        long ts = Timestamp.epoch_ms(record, ts_field);
+        if (ts == Timestamp.NO_TS)
+        {
+            return; // no timestamp
+        }
+
+        if (ts < from_ts || ts > to_ts)
+        {
+            return;
+        }
+
+        if (key_field != null && !key_value.equals(String.valueOf(record.getValue(key_field))))
+        {
+            return;
+        }
+
+        records_matched++;
+        handler.handle(line);
+    }
+
+    private JsonObject stats(long start_time, boolean indexed)
+    {
+        return new JsonObject()
+            .put("indexed", indexed)
+            .put("blocks", blocks)
+            .put("blocks_read", blocks_read)
+            .put("bytes_read", bytes_read)
+            .put("records_read", records_read)
+            .put("records_matched", records_matched)
+            .put("ms", (System.nanoTime() - start_time) / 1000000L);
+    }
+
+    // Return file f (i.e. the index) memory-mapped READ_ONLY, or an empty buffer if f does not exist
+    private static ByteBuffer map(File f) throws IOException
+    {
+        if (!f.exists())
+        {
+            return ByteBuffer.allocate(0);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+             FileChannel channel = raf.getChannel())
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+} // end class AppendIndexReader
@@ -0,0 +1,501 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// ColumnStore.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// ColumnStore is the writer for the MsgFiler "store_mode": "columns" storage backend.
+//
+// Records are buffered in memory and written in batches to a 'table' directory (typically one per
+// feed per day) in a simple columnar format:
+//
+//   schema.json            - { "format": "acp_columns_2",
+//                              "rows": 12345,
+//                              "columns": [ { "name": "temperature", "file": "temperature.col.gz", "type": "number",
+//                                             "bytes": 4567,
+//                                             "blocks": [ { "rows": 1000, "bytes": 2345, "encoding": "f64",
+//                                                           "nulls": 3, "min": -2.5, "max": 19.25 },
+//                                                         ... ] },
+//                                           ... ]
+//                            }
+//   <column>.col.gz        - the column values, each batch appended as a 'block' in a new gzip member
+//
+// Each block of a column is encoded by the values in it:
+//   "i64"   all the values are integer numbers (or null): 8-byte big-endian longs, null as Long.MIN_VALUE
+//   "f64"   all the values are numbers (or null): 8-byte big-endian IEEE doubles, null as NaN
+//   "json"  otherwise: one line per row containing the JSON-encoded value (or null)
+// and its entry in "blocks" has its row count, the column file length at its end (so block n is the gzip
+// member from the "bytes" of block n-1), the count of nulls and, for a number block, the min and max values.
+// So an analysis needing only "acp_id" and "temperature" reads just those two files, reads the numbers without
+// parsing text, and can skip the blocks whose min/max are outside the range it wants.
+//
+// The schema is inferred from the records, i.e. the columns are added in order of first appearance and the
+// type of each column ("string", "number", "boolean" or "json" for objects, arrays or mixed types) is set
+// from the values in the first batch (normally the first columns_batch_records records).  The schema evolves
+// as later batches add new columns (back-filled with null for the existing rows) or widen a column type
+// to "json" (the blocks already written keep their encoding). The "rows" value in schema.json is written
+// after the column files of each batch.  A table written as "acp_columns_1" (all "json", with no "blocks")
+// is loaded as a single "json" block per column, and later batches are added as blocks.
+//
+// schema.json is the commit of a batch: the "bytes" of each column is the length of its file holding the
+// "rows" rows, so if a batch is only partly written (e.g. a full disk or a crash) the column files are
+// truncated back to those lengths (on the next write, or on load after a restart) and stay aligned.
+//
+// add() is called on the event loop, write() is BLOCKING and is called via vertx.executeBlocking.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import acp_server.util.Log;
+
+public class ColumnStore {
+
+    public static final String FORMAT = "acp_columns_2";
+    public static final String SCHEMA_FILE = "schema.json";
+    public static final String COLUMN_SUFFIX = ".col.gz";
+
+    public static final String TYPE_STRING = "string";
+    public static final String TYPE_NUMBER = "number";
+    public static final String TYPE_BOOLEAN = "boolean";
+    public static final String TYPE_JSON = "json";
+
+    public static final String ENCODING_I64 = "i64";
+    public static final String ENCODING_F64 = "f64";
+    public static final String ENCODING_JSON = "json";
+
+    public static final long I64_NULL = Long.MIN_VALUE;
+
+    private String module_id; // for log messages
+
+    public String table_dir;
+
+    // event loop side: records buffered since the last take(), each as column name -> encoded value
+    private ArrayList<LinkedHashMap<String,String>> pending;
+
+    public long last_add; // System.currentTimeMillis() of last add()
+
+    // worker side: the table schema
+    private boolean loaded;
+    private long row_count;
+    private LinkedHashMap<String, Column> columns;
+
+    public ColumnStore(String module_id, String table_dir)
+    {
+        this.module_id = module_id;
+        this.table_dir = table_dir;
+        pending = new ArrayList<LinkedHashMap<String,String>>();
+        columns = new LinkedHashMap<String, Column>();
+    }
+
+    // *********************************************************************
+    // add()
+    // Buffer a record, returning the number of records now pending
+    public int add(JsonObject record)
+    {
+        LinkedHashMap<String,String> row = new LinkedHashMap<String,String>();
+        for (Map.Entry<String,Object> entry : record)
+        {
+            row.put(entry.getKey(), Json.encode(entry.getValue()));
+        }
+        pending.add(row);
+        last_add = System.currentTimeMillis();
+        return pending.size();
+    }
+
+    public int pending_count()
+    {
+        return pending.size();
+    }
+
+    // Return the pending records, and start a new batch
+    public ArrayList<LinkedHashMap<String,String>> take()
+    {
+        ArrayList<LinkedHashMap<String,String>> batch = pending;
+        pending = new ArrayList<LinkedHashMap<String,String>>();
+        return batch;
+    }
+
+    // *********************************************************************
+    // write()
+    // BLOCKING write of a batch of records (from take()) to the table
+    public synchronized void write(ArrayList<LinkedHashMap<String,String>> batch)
+    {
+        if (batch.size() == 0)
+        {
+            return;
+        }
+
+        try
+        {
+            if (!loaded)
+            {
+                load_schema();
+            }
+
+            // add any new columns, inferring or widening the column types
+            for (LinkedHashMap<String,String> row : batch)
+            {
+                for (Map.Entry<String,String> entry : row.entrySet())
+                {
+                    Column column = columns.get(entry.getKey());
+                    if (column == null)
+                    {
+                        column = new Column(entry.getKey(), column_file(entry.getKey()), null);
+                        columns.put(entry.getKey(), column);
+                    }
+                    column.infer_type(entry.getValue());
+                }
+            }
+
+            // write each column of the batch as a block in a gzip member appended to the column file, after
+            // removing anything written since the last schema.json (i.e. a partly written batch)
+            LinkedHashMap<Column, JsonObject> blocks = new LinkedHashMap<Column, JsonObject>();
+            ArrayList<String> values = new ArrayList<String>(batch.size());
+            for (Column column : columns.values())
+            {
+                String file_path = table_dir + "/" + column.file;
+                truncate(file_path, column.bytes);
+                values.clear();
+                // back-fill a column new in this batch with nulls for the existing rows
+                for (long i=column.rows; i<row_count; i++)
+                {
+                    values.add(null);
+                }
+                for (LinkedHashMap<String,String> row : batch)
+                {
+                    values.add(row.get(column.name));
+                }
+                JsonObject block = append_block(file_path, values);
+                block.put("bytes", new File(file_path).length());
+                blocks.put(column, block);
+            }
+
+            // all the columns are written, so the batch can be committed
+            for (Map.Entry<Column, JsonObject> entry : blocks.entrySet())
+            {
+                entry.getKey().rows = row_count + batch.size();
+                entry.getKey().bytes = entry.getValue().getLong("bytes");
+                entry.getKey().blocks.add(entry.getValue());
+            }
+            row_count += batch.size();
+
+            write_schema();
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgFiler."+module_id+": ColumnStore write failed for "+table_dir+": "+e.getMessage());
+        }
+    }
+
+    // Load schema.json from table_dir if it exists, e.g. after a restart
+    private void load_schema() throws IOException
+    {
+        new File(table_dir).mkdirs();
+
+        File schema_file = new File(table_dir + "/" + SCHEMA_FILE);
+        if (schema_file.exists())
+        {
+            byte[] bytes = java.nio.file.Files.readAllBytes(schema_file.toPath());
+            JsonObject schema = new JsonObject(new String(bytes, StandardCharsets.UTF_8));
+            row_count = schema.getLong("rows", 0L);
+            JsonArray schema_columns = schema.getJsonArray("columns", new JsonArray());
+            for (int i=0; i<schema_columns.size(); i++)
+            {
+                JsonObject c = schema_columns.getJsonObject(i);
+                Column column = new Column(c.getString("name"), c.getString("file"), c.getString("type"));
+                column.rows = row_count;
+                column.bytes = c.getLong("bytes", -1L);
+                JsonArray blocks = c.getJsonArray("blocks");
+                if (blocks != null)
+                {
+                    for (int j=0; j<blocks.size(); j++)
+                    {
+                        column.blocks.add(blocks.getJsonObject(j));
+                    }
+                }
+                else if (row_count > 0L)
+                {
+                    // an "acp_columns_1" column, all JSON lines
+                    column.blocks.add(new JsonObject()
+                                      .put("rows", row_count)
+                                      .put("bytes", column.bytes)
+                                      .put("encoding", ENCODING_JSON));
+                }
+                truncate(table_dir + "/" + column.file, column.bytes);
+                columns.put(column.name, column);
+            }
+            System.out.println("MsgFiler."+module_id+": ColumnStore loaded "+table_dir+" with "+
+                               columns.size()+" columns, "+row_count+" rows");
+        }
+        loaded = true;
+    }
+
+    // Write schema.json via a temporary file so readers never see a partial schema
+    private void write_schema() throws IOException
+    {
+        JsonArray schema_columns = new JsonArray();
+        for (Column column : columns.values())
+        {
+            schema_columns.add(new JsonObject()
+                               .put("name", column.name)
+                               .put("file", column.file)
+                               .put("type", column.type == null ? TYPE_JSON : column.type)
+                               .put("bytes", column.bytes)
+                               .put("blocks", new JsonArray(column.blocks)));
+        }
+        JsonObject schema = new JsonObject()
+            .put("format", FORMAT)
+            .put("rows", row_count)
+            .put("columns", schema_columns);
+
+        File tmp_file = new File(table_dir + "/" + SCHEMA_FILE + ".tmp");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp_file), StandardCharsets.UTF_8))
+        {
+            w.write(schema.encodePrettily());
+        }
+        java.nio.file.Files.move(tmp_file.toPath(),
+                                 new File(table_dir + "/" + SCHEMA_FILE).toPath(),
+                                 java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                                 java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Return a unique, filesystem-safe column file name for column 'name'
+    private String column_file(String name)
+    {
+        String base = name.replaceAll("[^A-Za-z0-9_.-]", "_");
+        String file = base + COLUMN_SUFFIX;
+        int n = 1;
+        boolean clash = true;
+        while (clash)
+        {
+            clash = false;
+            for (Column column : columns.values())
+            {
+                if (column.file.equals(file))
+                {
+                    clash = true;
+                    file = base + "_" + (n++) + COLUMN_SUFFIX;
+                    break;
+                }
+            }
+        }
+        return file;
+    }
+
+    // Truncate file_path to length bytes if it is longer, i.e. remove the rows of an uncommitted batch
+    // (length -1 is unknown, e.g. a schema.json written before "bytes" was added)
+    private static void truncate(String file_path, long length) throws IOException
+    {
+        File file = new File(file_path);
+        if (length < 0L || !file.exists() || file.length() <= length)
+        {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            raf.setLength(length);
+        }
+    }
+
+    // Append the JSON-encoded 'values' (null for a missing value) as a block in a gzip member to file_path,
+    // returning the block's schema entry (without its "bytes")
+    private static JsonObject append_block(String file_path, ArrayList<String> values) throws IOException
+    {
+        // the encoding is i64 if all the values are integers, f64 if all are numbers, otherwise json
+        String encoding = ENCODING_I64;
+        int nulls = 0;
+        for (String value : values)
+        {
+            if (value == null || value.equals("null"))
+            {
+                nulls++;
+            }
+            else if (!is_number(value))
+            {
+                encoding = ENCODING_JSON;
+                break;
+            }
+            else if (encoding.equals(ENCODING_I64) && !is_long(value))
+            {
+                encoding = ENCODING_F64;
+            }
+        }
+        if (nulls == values.size())
+        {
+            encoding = ENCODING_JSON; // no numbers to encode
+        }
+
+        JsonObject block = new JsonObject()
+            .put("rows", values.size())
+            .put("encoding", encoding);
+
+        // note FileOutputStream second arg 'true' => APPEND MODE
+        try (DataOutputStream out = new DataOutputStream(
+                 new GZIPOutputStream(new FileOutputStream(file_path, true), 65536)))
+        {
+            if (encoding.equals(ENCODING_JSON))
+            {
+                nulls = 0;
+                StringBuilder sb = new StringBuilder();
+                for (String value : values)
+                {
+                    if (value == null || value.equals("null"))
+                    {
+                        nulls++;
+                        sb.append("null");
+                    }
+                    else
+                    {
+                        sb.append(value);
+                    }
+                    sb.append('\n');
+                }
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            else if (encoding.equals(ENCODING_I64))
+            {
+                long min = Long.MAX_VALUE;
+                long max = Long.MIN_VALUE;
+                for (String value : values)
+                {
+                    if (value == null || value.equals("null"))
+                    {
+                        out.writeLong(I64_NULL);
+                        continue;
+                    }
+                    long n = Long.parseLong(value);
+                    out.writeLong(n);
+                    min = Math.min(min, n);
+                    max = Math.max(max, n);
+                }
+                block.put("min", min).put("max", max);
+            }
+            else
+            {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (String value : values)
+                {
+                    if (value == null || value.equals("null"))
+                    {
+                        out.writeDouble(Double.NaN);
+                        continue;
+                    }
+                    double d = Double.parseDouble(value);
+                    out.writeDouble(d);
+                    min = Math.min(min, d);
+                    max = Math.max(max, d);
+                }
+                // (JSON has no infinities, e.g. for a value beyond the double range)
+                if (!Double.isInfinite(min))
+                {
+                    block.put("min", min);
+                }
+                if (!Double.isInfinite(max))
+                {
+                    block.put("max", max);
+                }
+            }
+        }
+        return block.put("nulls", nulls);
+    }
+
+    // Return true if the JSON-encoded value is a number
+    private static boolean is_number(String value)
+    {
+        char c = value.charAt(0);
+        return c == '-' || (c >= '0' && c <= '9');
+    }
+
+    // Return true if the JSON-encoded number is an integer in the range of a long (other than I64_NULL)
+    private static boolean is_long(String value)
+    {
+        for (int i=0; i<value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E')
+            {
+                return false;
+            }
+        }
+        try
+        {
+            return Long.parseLong(value) != I64_NULL;
+        }
+        catch (NumberFormatException e)
+        {
+            return false;
+        }
+    }
+
+    // A column of the table
+    private static class Column {
+        String name;  // record property name
+        String file;  // column file name within table_dir
+        String type;  // string | number | boolean | json, or null until a non-null value is seen
+        long rows;    // rows written to the column file
+        long bytes;   // length of the column file holding those rows, as committed in schema.json
+        ArrayList<JsonObject> blocks = new ArrayList<JsonObject>(); // the schema.json "blocks" of the rows
+
+        Column(String name, String file, String type)
+        {
+            this.name = name;
+            this.file = file;
+            this.type = type;
+        }
+
+        // Set or widen the column type given a JSON-encoded value
+        void infer_type(String value)
+        {
+            String value_type;
+            char c = value.charAt(0);
+            if (c == 'n')
+            {
+                return; // null tells us nothing
+            }
+            else if (c == '"')
+            {
+                value_type = TYPE_STRING;
+            }
+            else if (c == 't' || c == 'f')
+            {
+                value_type = TYPE_BOOLEAN;
+            }
+            else if (c == '{' || c == '[')
+            {
+                value_type = TYPE_JSON;
+            }
+            else
+            {
+                value_type = TYPE_NUMBER;
+            }
+
+            if (type == null)
+            {
+                type = value_type;
+            }
+            else if (!type.equals(value_type))
+            {
+                type = TYPE_JSON;
+            }
+        }
+    } // end class Column
+
+} // end class ColumnStore
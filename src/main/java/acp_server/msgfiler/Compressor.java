@@ -0,0 +1,546 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// Compressor.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// Compressor provides the gzip file writes for MsgFiler "store_compress": "gzip".
+//
+// In "append" mode a gzip stream is kept open for each file being appended to, and is closed (i.e.
+// the gzip 'member' is finished) when the file has not been written for compress_idle_seconds, which
+// will normally be at day rollover when the data moves on to a new file.  A later append to the same
+// file starts a new gzip member, and as concatenated gzip members form a valid gzip file the result
+// can be read with zcat / gunzip as normal.  Open streams are flushed every flush() (called
+// periodically by FilerUtils) rather than per record, to keep the compression ratio high.
+//
+// While a member is open the file "x.gz.open" holds the offset of the member in "x.gz".  If the MsgFiler
+// is killed the member is left unfinished (so zcat fails there and on all the members after it), so when
+// the file is next opened for append the records of the unfinished member (up to the last complete line
+// flushed) are read back to "x.gz.recovered", the file is truncated to the start of that member, and the
+// records are written again at the start of the new member.
+//
+// In "write" mode each file is simply written as a complete gzip file.
+//
+// recompress() is a background task which gzips completed (i.e. not modified for some days) plain
+// text files of a filer in its archive directory tree, and recompress_commit() replaces each file with
+// its gzip (on the file's writer, so not while a late record is being appended to it).
+//
+// All methods are BLOCKING and are called on worker threads so the event loop is not used for the
+// compression.  Bytes in/out and the CPU time used are accumulated for the MsgFiler status message.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import io.vertx.core.json.JsonObject;
+
+import acp_server.util.Log;
+
+public class Compressor {
+
+    public static final String GZIP = "gzip";       // "store_compress" value
+    public static final String GZIP_SUFFIX = ".gz"; // added to the store_name of compressed files
+    public static final String OPEN_SUFFIX = ".open"; // marker of a gzip member being written, see repair()
+    public static final String RECOVERED_SUFFIX = ".recovered"; // the records of an unfinished member, see repair()
+
+    private String module_id; // for log messages
+
+    private HashMap<String, GzipFile> open_files; // file_path -> open gzip member
+
+    private static final ThreadMXBean thread_mx = ManagementFactory.getThreadMXBean();
+
+    // status counters
+    private AtomicLong bytes_in = new AtomicLong();   // uncompressed bytes
+    private AtomicLong bytes_out = new AtomicLong();  // compressed bytes
+    private AtomicLong cpu_nanos = new AtomicLong();  // CPU time used compressing
+    private AtomicLong files_recompressed = new AtomicLong();
+
+    public Compressor(String module_id)
+    {
+        this.module_id = module_id;
+        open_files = new HashMap<String, GzipFile>();
+    }
+
+    // Note the methods may be called concurrently for *different* files (from the MsgFiler WriterPool)
+    // so open_files is locked only to find the GzipFile, and each GzipFile is locked while in use.
+
+    // *********************************************************************
+    // append()
+    // BLOCKING append of 'msg'+'\n' to the gzip file 'file_path'
+    public void append(String msg, String file_path) throws IOException
+    {
+        long cpu_start = cpu_time();
+        try
+        {
+            while (true)
+            {
+                GzipFile gzip_file = get_file(file_path);
+                synchronized (gzip_file)
+                {
+                    // gzip_file may have been closed by flush() since get_file(), if so get a new one
+                    if (!gzip_file.closed)
+                    {
+                        gzip_file.write(msg);
+                        break;
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgFiler."+module_id+": compressed append failed for "+file_path);
+            close_file(file_path);
+            throw e;
+        }
+        finally
+        {
+            cpu_nanos.addAndGet(cpu_time() - cpu_start);
+        }
+    }
+
+    // Return the open GzipFile for file_path, opening it if needed
+    private GzipFile get_file(String file_path) throws IOException
+    {
+        synchronized (open_files)
+        {
+            GzipFile gzip_file = open_files.get(file_path);
+            if (gzip_file == null)
+            {
+                // note a new gzip member is appended to any existing file
+                gzip_file = new GzipFile(file_path, true);
+                open_files.put(file_path, gzip_file);
+            }
+            return gzip_file;
+        }
+    }
+
+    // *********************************************************************
+    // write()
+    // BLOCKING write of 'msg' as the complete gzip file 'file_path'
+    public void write(String msg, String file_path)
+    {
+        long cpu_start = cpu_time();
+        GzipFile gzip_file = null;
+        try
+        {
+            gzip_file = new GzipFile(file_path, false);
+            gzip_file.write(msg);
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgFiler."+module_id+": compressed write failed for "+file_path);
+        }
+        finally
+        {
+            if (gzip_file != null)
+            {
+                gzip_file.close();
+            }
+        }
+        cpu_nanos.addAndGet(cpu_time() - cpu_start);
+    }
+
+    // *********************************************************************
+    // flush()
+    // BLOCKING flush of open gzip files, closing those not written for idle_ms
+    public void flush(long idle_ms)
+    {
+        long cpu_start = cpu_time();
+        long now = System.currentTimeMillis();
+        for (GzipFile gzip_file : open_files_list())
+        {
+            synchronized (gzip_file)
+            {
+                if (now - gzip_file.last_write > idle_ms)
+                {
+                    close_file(gzip_file.file_path);
+                }
+                else
+                {
+                    gzip_file.flush();
+                }
+            }
+        }
+        cpu_nanos.addAndGet(cpu_time() - cpu_start);
+    }
+
+    // Close all the open gzip files, e.g. on verticle stop
+    public void close()
+    {
+        for (GzipFile gzip_file : open_files_list())
+        {
+            close_file(gzip_file.file_path);
+        }
+    }
+
+    private ArrayList<GzipFile> open_files_list()
+    {
+        synchronized (open_files)
+        {
+            return new ArrayList<GzipFile>(open_files.values());
+        }
+    }
+
+    private void close_file(String file_path)
+    {
+        GzipFile gzip_file;
+        synchronized (open_files)
+        {
+            gzip_file = open_files.remove(file_path);
+        }
+        if (gzip_file != null)
+        {
+            synchronized (gzip_file)
+            {
+                gzip_file.close();
+            }
+        }
+    }
+
+    // *********************************************************************
+    // recompress()
+    // BLOCKING gzip of the archive files under root_dir (those accepted by archive_file, i.e. the files
+    // of this filer in a finished day) not modified for 'days' days, each to "x.gz.tmp", returning
+    // file_path -> the length of the file compressed.  Each file is then replaced with its ".gz" by
+    // recompress_commit(), which is run on the writer of the file.
+    public LinkedHashMap<String, Long> recompress(String root_dir, int days, Predicate<String> archive_file)
+    {
+        long cutoff = System.currentTimeMillis() - days * 86400000L;
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(Paths.get(root_dir)))
+        {
+            files = paths.filter(p -> Files.isRegularFile(p) &&
+                                      archive_file.test(p.toString()) &&
+                                      p.toFile().lastModified() < cutoff)
+                         .collect(Collectors.toList());
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            Log.log_err("MsgFiler."+module_id+": recompress failed to list "+root_dir);
+            return new LinkedHashMap<String, Long>();
+        }
+
+        LinkedHashMap<String, Long> compressed = new LinkedHashMap<String, Long>();
+        for (Path p : files)
+        {
+            long length = recompress_file(p.toString());
+            if (length >= 0L)
+            {
+                compressed.put(p.toString(), length);
+            }
+        }
+        return compressed;
+    }
+
+    // gzip file_path to file_path.gz.tmp, returning the length of file_path compressed, or -1 if it failed
+    private long recompress_file(String file_path)
+    {
+        long cpu_start = cpu_time();
+        File tmp_file = new File(file_path + GZIP_SUFFIX + ".tmp");
+        long in_count = 0L;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file_path));
+             CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(tmp_file));
+             GZIPOutputStream out = new GZIPOutputStream(counter, 65536))
+        {
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) > 0)
+            {
+                out.write(buf, 0, n);
+                in_count += n;
+            }
+            out.finish();
+            bytes_in.addAndGet(in_count);
+            bytes_out.addAndGet(counter.count);
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgFiler."+module_id+": recompress failed for "+file_path);
+            tmp_file.delete();
+            return -1L;
+        }
+        finally
+        {
+            cpu_nanos.addAndGet(cpu_time() - cpu_start);
+        }
+        return in_count;
+    }
+
+    // *********************************************************************
+    // recompress_commit()
+    // BLOCKING replacement of file_path with the file_path.gz.tmp made by recompress(), unless file_path has
+    // been appended to since (its length is not 'length'), in which case it is left for the next recompress.
+    // An existing file_path.gz (e.g. from a record that arrived after an earlier recompress) is kept, with
+    // the new gzip member appended to it.  Called on the writer of file_path, so no append is in progress.
+    public void recompress_commit(String file_path, long length)
+    {
+        File file = new File(file_path);
+        File tmp_file = new File(file_path + GZIP_SUFFIX + ".tmp");
+        File gz_file = new File(file_path + GZIP_SUFFIX);
+
+        if (file.length() != length)
+        {
+            tmp_file.delete();
+            return;
+        }
+
+        if (gz_file.exists())
+        {
+            try (InputStream in = new FileInputStream(tmp_file);
+                 OutputStream out = new FileOutputStream(gz_file, true))
+            {
+                byte[] buf = new byte[65536];
+                int n;
+                while ((n = in.read(buf)) > 0)
+                {
+                    out.write(buf, 0, n);
+                }
+            }
+            catch (IOException e)
+            {
+                Log.log_err("MsgFiler."+module_id+": recompress failed to append to "+gz_file);
+                tmp_file.delete();
+                return;
+            }
+            tmp_file.delete();
+        }
+        else if (!tmp_file.renameTo(gz_file))
+        {
+            Log.log_err("MsgFiler."+module_id+": recompress failed to rename "+tmp_file);
+            tmp_file.delete();
+            return;
+        }
+
+        file.delete();
+        // any sidecar index is for the uncompressed file
+        new File(file_path + AppendIndex.INDEX_SUFFIX).delete();
+        files_recompressed.incrementAndGet();
+    }
+
+    // BLOCKING repair of gzip file_path if its last member was left unfinished (i.e. "x.gz.open" exists), returning
+    // the file "x.gz.recovered" of the complete lines of that member (or null if the file was not left open), and
+    // truncating the file to the start of the member.  A repair interrupted by another crash is done again from
+    // the recovered file.
+    private File repair(String file_path) throws IOException
+    {
+        File open_file = new File(file_path + OPEN_SUFFIX);
+        if (!open_file.exists())
+        {
+            return null;
+        }
+        long start;
+        try
+        {
+            start = Long.parseLong(new String(Files.readAllBytes(open_file.toPath()), StandardCharsets.UTF_8).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            Log.log_err("MsgFiler."+module_id+": ignoring bad "+open_file);
+            return null;
+        }
+        File file = new File(file_path);
+        File recovered = new File(file_path + RECOVERED_SUFFIX);
+        if (!recovered.exists())
+        {
+            if (start >= file.length())
+            {
+                return null; // the member has no data
+            }
+            // read the records of the unfinished member, up to the end of the data flushed, keeping
+            // only the complete lines (as a partly flushed last record would run into the next)
+            File tmp_file = new File(file_path + RECOVERED_SUFFIX + ".tmp");
+            long length = 0L; // up to the last newline
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileOutputStream tmp = new FileOutputStream(tmp_file))
+            {
+                raf.seek(start);
+                long pos = 0L;
+                try (InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())), 65536))
+                {
+                    byte[] buffer = new byte[65536];
+                    int n;
+                    while ((n = in.read(buffer)) > 0)
+                    {
+                        tmp.write(buffer, 0, n);
+                        for (int i=0; i<n; i++)
+                        {
+                            if (buffer[i] == '\n')
+                            {
+                                length = pos + i + 1;
+                            }
+                        }
+                        pos += n;
+                    }
+                }
+                catch (EOFException e)
+                {
+                    // the expected end of an unfinished member
+                }
+                tmp.getChannel().truncate(length);
+                tmp.getFD().sync();
+            }
+            Files.move(tmp_file.toPath(), recovered.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            raf.setLength(start);
+        }
+        return recovered;
+    }
+
+    // Return the compression status, e.g. { "bytes_in": 1000, "bytes_out": 100, "ratio": 10.0, "cpu_ms": 3 }
+    public JsonObject status()
+    {
+        long in = bytes_in.get();
+        long out = bytes_out.get();
+        int open_count;
+        synchronized (open_files)
+        {
+            open_count = open_files.size();
+        }
+        return new JsonObject()
+            .put("bytes_in", in)
+            .put("bytes_out", out)
+            .put("ratio", out == 0 ? 0.0 : Math.round(in * 100.0 / out) / 100.0)
+            .put("cpu_ms", cpu_nanos.get() / 1000000L)
+            .put("open_files", open_count)
+            .put("files_recompressed", files_recompressed.get());
+    }
+
+    // CPU time of current thread in ns, or elapsed time if thread CPU time is not supported
+    private static long cpu_time()
+    {
+        return thread_mx.isCurrentThreadCpuTimeSupported() ? thread_mx.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    // *****************************************************************************************
+    // An open gzip output file
+    private class GzipFile {
+        String file_path;
+        CountingOutputStream counter;
+        GZIPOutputStream out;
+        long last_write;
+        long last_count; // counter.count already added to bytes_out
+        boolean closed;
+
+        GzipFile(String file_path, boolean append) throws IOException
+        {
+            this.file_path = file_path;
+            File recovered = null;
+            if (append)
+            {
+                // finish the file of a member left unfinished by a crash, then mark this member as open
+                recovered = repair(file_path);
+                try (Writer w = new OutputStreamWriter(new FileOutputStream(file_path + OPEN_SUFFIX), StandardCharsets.UTF_8))
+                {
+                    w.write(Long.toString(new File(file_path).length()));
+                }
+            }
+            // note FileOutputStream second arg 'true' => APPEND MODE
+            counter = new CountingOutputStream(new FileOutputStream(file_path, append));
+            // syncFlush=true so flush() makes the data so far readable with zcat
+            out = new GZIPOutputStream(counter, 8192, true);
+            if (recovered != null)
+            {
+                // the records of the unfinished member start the new member
+                Files.copy(recovered.toPath(), out);
+                out.flush();
+                System.out.println("MsgFiler."+module_id+": repaired "+file_path+", "+recovered.length()+
+                                   " bytes of an unfinished gzip member rewritten");
+                recovered.delete();
+            }
+        }
+
+        void write(String msg) throws IOException
+        {
+            byte[] bytes = (msg + "\n").getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            bytes_in.addAndGet(bytes.length);
+            last_write = System.currentTimeMillis();
+            update_bytes_out();
+        }
+
+        void flush()
+        {
+            try
+            {
+                out.flush();
+            }
+            catch (IOException e)
+            {
+                Log.log_err("MsgFiler."+module_id+": compressed flush failed for "+file_path);
+            }
+            update_bytes_out();
+        }
+
+        void close()
+        {
+            closed = true;
+            try
+            {
+                out.close(); // finishes the gzip member
+                new File(file_path + OPEN_SUFFIX).delete();
+            }
+            catch (IOException e)
+            {
+                Log.log_err("MsgFiler."+module_id+": compressed close failed for "+file_path);
+            }
+            update_bytes_out();
+        }
+
+        private void update_bytes_out()
+        {
+            bytes_out.addAndGet(counter.count - last_count);
+            last_count = counter.count;
+        }
+    } // end class GzipFile
+
+    // OutputStream that counts the bytes written to the underlying stream
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+    } // end class CountingOutputStream
+
+} // end class Compressor
@@ -19,25 +19,40 @@ package acp_server.msgfiler;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
 
+import acp_server.util.MsgFilter;
+
 public class FilerConfig {
 
     public String module_name;
     public String module_id;
+    public String filer_id;           // identifies the filer in the OverflowStore and Journal entries, kept over a restart
     
     public String source_address;     // eventbus address to listen for messages
-    public FilerFilter source_filter; // filter criteria defining which message to store
+    public MsgFilter source_filter;   // filter criteria defining which message to store
     public String flatten;            // e.g. "request_data" field name that contains a JsonArray to be flattened
     public String records_data;       // e.g. "request_data[0]>sites" field path that contains a JsonArray with the data records
     public JsonArray merge_base;      // List of property names. When using "records_data", merge these properties from the original message into each saved file. 
+    public String shard_key;          // optional JsonPath of the record key (e.g. "acp_id") to share records between sharded MsgFilers
+    public boolean records_stream;    // "records_data": write the records direct from the message text when possible, default true
     public String store_path;         // directory path to store message
     public String store_name;         // filename to store message
-    public String store_mode;         // append | write
+    public String store_mode;         // append | write | log | columns | latest
+    public String store_ts;           // "log" mode: field containing the record timestamp, default "acp_ts"
+    public int log_segment_mb;        // "log" mode: roll to a new segment file at this size, default 64
+    public static final int MAX_LOG_SEGMENT_MB = 1024; // so a segment stays below 2 GB, see LogReader
+    public int log_index_records;     // "log" mode: add a time index entry every N records, default 100
+    public int columns_batch_records; // "columns" mode: write a batch of columns every N records, default 1000
+    public int latest_slot_kb;        // "latest" mode: slot size for each key (max message is half), default 64
+    public int latest_slots;          // "latest" mode: max keys in the store, default 1024
+    public int index_records;         // "append" mode: optional sidecar time index entry every N records, default 0 (off)
+    public String store_compress;     // optional "gzip", files are written gzip-compressed with ".gz" suffix
+    public int compress_idle_seconds; // "gzip" append: finish the gzip member after N idle seconds, default 300
+    public int recompress_days;       // optional, gzip completed "append" files older than N days, default 0 (off)
 
     public FilerConfig(JsonObject config)
     {
         module_name = config.getString("module_name");
         module_id = config.getString("module_id");
-        
         source_address = config.getString("source_address");
         // the 'source_filter' config() is optional
         JsonObject filter = config.getJsonObject("source_filter");
@@ -47,17 +62,43 @@ public class FilerConfig {
             }
         else
             {
-                source_filter = new FilerFilter(config.getJsonObject("source_filter"));
+                source_filter = new MsgFilter(config.getJsonObject("source_filter"));
             }
 
         flatten = config.getString("flatten");
         records_data = config.getString("records_data");
         merge_base = config.getJsonArray("merge_base");
+        records_stream = config.getBoolean("records_stream", true);
+        shard_key = config.getString("shard_key");
 
         store_path = config.getString("store_path");
         store_name = config.getString("store_name");
         store_mode = config.getString("store_mode");
 
+        // by default the filer is identified by what it stores, so not by its position in the config
+        filer_id = config.getString("filer_id", source_address+" "+store_path+" "+store_name+" "+store_mode);
+
+        store_ts = config.getString("store_ts", "acp_ts");
+        log_segment_mb = config.getInteger("log_segment_mb", 64);
+        if (log_segment_mb < 1 || log_segment_mb > MAX_LOG_SEGMENT_MB)
+            {
+                System.out.println(module_name+"."+module_id+": FilerConfig log_segment_mb "+log_segment_mb+
+                                   " out of range, using "+MAX_LOG_SEGMENT_MB);
+                log_segment_mb = MAX_LOG_SEGMENT_MB;
+            }
+        log_index_records = config.getInteger("log_index_records", 100);
+
+        columns_batch_records = config.getInteger("columns_batch_records", 1000);
+
+        latest_slot_kb = config.getInteger("latest_slot_kb", 64);
+        latest_slots = config.getInteger("latest_slots", 1024);
+
+        index_records = config.getInteger("index_records", 0);
+
+        store_compress = config.getString("store_compress");
+        compress_idle_seconds = config.getInteger("compress_idle_seconds", 300);
+        recompress_days = config.getInteger("recompress_days", 0);
+
         System.out.println(module_name+"."+module_id+": FilerConfig loaded:");
         System.out.println(module_name+"."+module_id+
                            ": FilerConfig "+source_address+","+(source_filter != null ? source_filter.toString() : "no source filter")+","+
@@ -4,7 +4,7 @@ package acp_server.msgfiler;
 // *************************************************************************************************
 // *************************************************************************************************
 // FilerUtils.java
-// Version 0.13
+// Version 0.15
 // Author: Ian Lewis ijl20@cam.ac.uk
 //
 // Forms part of the 'acp_server' next-generation Adaptive City Platform
@@ -15,14 +15,25 @@ package acp_server.msgfiler;
 //   "source_address": the eventbus address to listen to for messages
 //      e.g. "tfc.zone"
 //   "flatten": the name of a JsonArray sub-field that is to be iterated into multiple messages
-//   "records_data": a path to an array of data records within the message.
+//   "records_data": a path to an array of data records within the message, e.g. "request_data[0]>sites"
+//      or "request_data[*]>sites" for the records of every element of request_data (see util.JsonPath)
+//   "merge_base": with "records_data", the list of message properties to merge into each record
+//   "shard_key": optional path of the record key, e.g. "acp_id", used to share the records between the
+//      MsgFiler instances with the same "msgfiler.shard_address" (see ShardRing)
+//   "records_stream": default true, with "records_data" (and no "flatten") the records are written
+//      straight from the message text (see RecordsStreamer)
 //   "source_filter" : a json object that specifies which subset of messages to write to disk
-//      e.g. { "field": "msg_type", "compare": "=", "value": "zone_completion" }
+//      e.g. { "field": "msg_type", "compare": "=", "value": "zone_completion" } (see util.MsgFilter)
 //   "store_path" : a parameterized string giving the full filepath for storing the message
 //      e.g. "/home/ijl20/tfc_server_data/data_zone/{{ts|yyyy}}/{{ts|MM}}/{{ts|dd}}"
 //   "store_name" : a parameterized string giving the filename for storing the message
 //      e.g. "{{module_id}}.txt"
-//   "store_mode" : "write" | "append", defining whether the given file should be written or appended
+//   "store_compress" : optional "gzip", files will be written gzip-compressed (with ".gz" added to store_name)
+//   "store_mode" : "write" | "append" | "log" | "columns", defining whether the given file should be written or
+//      appended, or for "log" the store_path is a directory of segmented log files (see LogStore) and store_name is the
+//      record key, e.g. "{{acp_id}}", or for "columns" store_path/store_name is a directory of column files
+//      (see ColumnStore), e.g. one per day, or for "latest" store_path is the directory of a memory-mapped
+//      store of the latest and previous message for each key store_name (see LatestStore)
 //
 //  In summary, "store_msg(msg)" will determine the data to be stored (with the most common
 //  requirement being the whole message) and "build_string(pattern, msg)" will use config
@@ -35,11 +46,28 @@ package acp_server.msgfiler;
 import java.time.*;
 import java.time.format.*;
 import java.io.*;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
-
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.file.FileSystem;
@@ -48,6 +76,8 @@ import io.vertx.core.file.FileSystemException;
 
 import acp_server.util.Log;
 import acp_server.util.Constants;
+import acp_server.util.JsonPath;
+import acp_server.util.Timestamp;
 
 public class FilerUtils {
 
@@ -55,19 +85,443 @@ public class FilerUtils {
 
     private Vertx vertx;
 
-    // If config has a "records_data" path to the data records, then
-    // records_finder.get(msg) will return the required JsonArray in
-    // the original message.
-    private RecordsFinder records_finder;
+    // If config has a "records_data" path to the data records, e.g. "request_data[0]>sites", then
+    // records_path.each(msg, ..) will give the required JsonArray(s) in the original message.
+    private JsonPath records_path;
+
+    // If the filer only uses "records_data" (and "merge_base"), records_streamer writes the
+    // records directly from the message text, without decoding the message to a JsonObject
+    private RecordsStreamer records_streamer;
+
+    // If config has a "flatten" field name, then flatten_writer
+    // will write each flattened record directly as a JSON string
+    private FlattenWriter flatten_writer;
+
+    // For "store_mode": "log", the LogStore for each log directory
+    private HashMap<String,LogStore> log_stores;
+    private HashMap<String,LogStore> replay_log_stores; // opened on the journal worker by replayBlocking()
+
+    // For "store_mode": "columns", the ColumnStore for each table directory
+    private HashMap<String,ColumnStore> column_stores;
+    private long columns_rows; // count of records written for status
+
+    // For "store_mode": "latest", the LatestStore for each store directory (null if it failed to open)
+    private HashMap<String,LatestStore> latest_stores;
+
+    // The local (Constants.PLATFORM_TIMEZONE) day of the message timestamps, for {{ts|yyyy}} etc.
+    private Timestamp.DayCache days = new Timestamp.DayCache(Constants.PLATFORM_TIMEZONE);
+
+    private final int COLUMNS_FLUSH_PERIOD = 60000;  // write pending column records every 60 s
+    private final long COLUMNS_IDLE_MS = 600000L;    // forget a table not written for 10 minutes
+
+    // For "store_compress": "gzip" or "recompress_days", the Compressor and the
+    // worker pool used for the compression.
+    private Compressor compressor;
+    private WorkerExecutor compress_executor;
+    private ArrayList<Long> compress_timers = new ArrayList<Long>(); // the flush and recompress timers
+
+    private final int COMPRESS_FLUSH_PERIOD = 10000; // flush open gzip files every 10 s
+    private final int COMPRESS_POOL_SIZE = 2;
+    private final long RECOMPRESS_DELAY = 300000L;   // first recompress 5 minutes after start
+    private final long RECOMPRESS_PERIOD = 86400000L; // then daily
+
+    // For "recompress_days", the archive files of this filer, i.e. store_path/store_name as a regex with
+    // the {{..|yyyy}}, {{..|MM}} and {{..|dd}} values captured as the groups named in archive_groups
+    private Pattern archive_pattern;
+    private ArrayList<String> archive_groups;
+
+    // For "append" mode with "index_records", the sidecar time index of the append files
+    private AppendIndex append_index;
+
+    // The MsgFiler WriterPool used for the BLOCKING file writes, or null to use vertx.executeBlocking
+    private WriterPool writer_pool;
+
+    // The MsgFiler OverflowStore which "append" and "log" records are spilled to when the storage
+    // is failing or too slow, or null
+    private OverflowStore overflow;
+
+    // The optional MsgFiler write-ahead Journal of the "append" and "log" record writes, or null
+    private Journal journal;
+
+    // With "msgfiler.shard_address" the ShardRing shared with the other MsgFiler instances, and
+    // shard_path the "shard_key" path of the record key
+    private ShardRing shard_ring;
+    private JsonPath shard_path;
+
+    // Directories known to exist (most recently used first out), so store_immediate() can skip fs.exists().
+    // A write that finds its directory missing (e.g. removed by a cleanup job) recreates it, or if that
+    // fails drops it from known_dirs (see forget_dir()).
+    private LinkedHashMap<String,Boolean> known_dirs;
+    private final int MAX_KNOWN_DIRS = 10000;
+
+    // Day rollover: the store_path directories written since local midnight, each with a sample of the
+    // message fields used in store_path, so the next day's directories can be created before midnight
+    // rather than by the first message for each directory after midnight.
+    private HashMap<String,JsonObject> day_paths;
+    private ArrayList<String> path_fields;  // the fields in the store_path {{..}} patterns
+    private HashSet<String> date_fields;    // the fields used as {{field|yyyy}}, {{field|MM}} or {{field|dd}}
+    private boolean prefetch_dirs;          // store_path has a date, so can be pre-created for the next day
+    private long dirs_created;              // count of pre-created directories for status
+    private ArrayList<Long> rollover_timers; // cancelled on close()
+
+    private final int MAX_DAY_PATHS = 100000;
+    private final long PREFETCH_MS = 600000L; // create the next day's directories 10 minutes before midnight
+    private final long ROTATE_MS = 120000L;   // close the previous day's open files 2 minutes after midnight
+
+    // OverflowStore entry "m" values, i.e. the kind of record write
+    private static final String RECORD_APPEND = "append";
+    private static final String RECORD_GZIP = "gzip";
+    private static final String RECORD_LOG = "log";
 
     public FilerUtils (Vertx v, FilerConfig fc)
+    {
+        this(v, fc, null, null, null, null);
+    }
+
+    public FilerUtils (Vertx v, FilerConfig fc, WriterPool wp, OverflowStore os, Journal j, ShardRing sr)
     {
         filer_config = fc;
         vertx = v;
+        writer_pool = wp;
+        overflow = os;
+        journal = j;
+
+        if (fc.shard_key != null)
+        {
+            if (sr == null)
+            {
+                Log.log_err("MsgFiler."+fc.module_id+": shard_key "+fc.shard_key+
+                            " ignored, no msgfiler.shard_address, storing all records");
+            }
+            else
+            {
+                shard_ring = sr;
+                shard_path = new JsonPath(fc.shard_key);
+            }
+        }
+
+        log_stores = new HashMap<String,LogStore>();
+        column_stores = new HashMap<String,ColumnStore>();
+        latest_stores = new HashMap<String,LatestStore>();
+
+        known_dirs = new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest)
+                {
+                    return size() > MAX_KNOWN_DIRS;
+                }
+            };
+
+        if (fc.store_path != null && !Constants.FILE_COLUMNS.equals(fc.store_mode))
+        {
+            start_rollover();
+        }
+
+        if (fc.flatten != null)
+        {
+            flatten_writer = new FlattenWriter(fc.flatten);
+        }
 
         if (fc.records_data != null)
         {
-            records_finder = new RecordsFinder(fc.records_data);
+            records_path = new JsonPath(fc.records_data);
+
+            // flatten, "columns" mode and a source_filter or shard_key on nested fields need the decoded
+            // message (the streamed record only has its top-level values for the filter and key)
+            if (fc.records_stream &&
+                records_path.streamable() &&
+                (fc.source_filter == null || fc.source_filter.top_level()) &&
+                (shard_path == null || shard_path.top_level()) &&
+                fc.flatten == null &&
+                !Constants.FILE_COLUMNS.equals(fc.store_mode))
+            {
+                records_streamer = new RecordsStreamer(fc.merge_base);
+            }
+        }
+
+        if (fc.store_compress != null || fc.recompress_days > 0)
+        {
+            start_compressor();
+        }
+
+        if (fc.index_records > 0 && Constants.FILE_APPEND.equals(fc.store_mode) && fc.store_compress == null)
+        {
+            append_index = new AppendIndex(fc.module_id, fc.index_records, line -> {
+                    try
+                    {
+                        return index_ts(new JsonObject(line));
+                    }
+                    catch (Exception e)
+                    {
+                        return AppendIndex.NO_TS;
+                    }
+                });
+        }
+
+        if (Constants.FILE_COLUMNS.equals(fc.store_mode))
+        {
+            vertx.setPeriodic(COLUMNS_FLUSH_PERIOD, id -> { flush_columns(); });
+        }
+    }
+
+    // Create the compressor and its worker pool, and start the periodic flush and recompress tasks
+    private void start_compressor()
+    {
+        compressor = new Compressor(filer_config.module_id);
+
+        compress_executor = vertx.createSharedWorkerExecutor("msgfiler-compress", COMPRESS_POOL_SIZE);
+
+        long idle_ms = filer_config.compress_idle_seconds * 1000L;
+
+        compress_timers.add(vertx.setPeriodic(COMPRESS_FLUSH_PERIOD, id -> {
+            compress_executor.executeBlocking(fut -> {
+                    compressor.flush(idle_ms);
+                    fut.complete();
+                }, res -> { }
+                );
+        }));
+
+        if (filer_config.recompress_days > 0 && Constants.FILE_APPEND.equals(filer_config.store_mode))
+        {
+            // only the files of this filer's store_path/store_name, in a finished day, are recompressed
+            archive_groups = new ArrayList<String>();
+            String archive_path = (filer_config.store_path+"/"+filer_config.store_name).replaceAll("/+", "/");
+            archive_pattern = Pattern.compile(archive_regex(archive_path, archive_groups));
+            if (!archive_groups.contains("yyyy"))
+            {
+                Log.log_err("MsgFiler."+filer_config.module_id+": recompress_days ignored, store_path and "+
+                            "store_name have no {{..|yyyy}} date so the files are never finished");
+                return;
+            }
+
+            // recompress the files below the fixed part of store_path, e.g.
+            // "/media/acp/mqtt_acp" from "/media/acp/mqtt_acp/{{acp_id}}/{{acp_ts|yyyy}}"
+            String root_dir = filer_config.store_path;
+            int pattern_pos = root_dir.indexOf("{{");
+            if (pattern_pos >= 0)
+            {
+                root_dir = root_dir.substring(0, root_dir.lastIndexOf('/', pattern_pos));
+            }
+            final String recompress_dir = root_dir;
+
+            System.out.println("MsgFiler."+filer_config.module_id+": recompressing files in "+recompress_dir+
+                               " after "+filer_config.recompress_days+" days");
+
+            compress_timers.add(vertx.setTimer(RECOMPRESS_DELAY, timer_id -> {
+                recompress(recompress_dir);
+                compress_timers.add(vertx.setPeriodic(RECOMPRESS_PERIOD, id -> { recompress(recompress_dir); }));
+            }));
+        }
+    }
+
+    // Run the background recompress of completed files in root_dir on the compress worker pool, then replace
+    // each file with its gzip on the file's writer (so after any write to the file in progress)
+    private void recompress(String root_dir)
+    {
+        compress_executor.<LinkedHashMap<String,Long>>executeBlocking(fut -> {
+                fut.complete(compressor.recompress(root_dir, filer_config.recompress_days, this::archive_file));
+            }, false, res -> {
+                if (res.failed())
+                {
+                    return;
+                }
+                for (Map.Entry<String,Long> file : res.result().entrySet())
+                {
+                    String file_path = file.getKey();
+                    long length = file.getValue();
+                    execute_write(file_path, fut -> {
+                            compressor.recompress_commit(file_path, length);
+                            if (append_index != null)
+                            {
+                                append_index.forget(file_path);
+                            }
+                            fut.complete();
+                        });
+                }
+                if (res.result().size() > 0)
+                {
+                    System.out.println("MsgFiler."+filer_config.module_id+": recompressing "+
+                                       res.result().size()+" files in "+root_dir);
+                }
+            });
+    }
+
+    // Return the regex of the file paths made by build_string(pattern), adding the name of each group
+    // captured (i.e. "yyyy", "MM" or "dd") to groups
+    private static String archive_regex(String pattern, ArrayList<String> groups)
+    {
+        StringBuilder regex = new StringBuilder();
+        int index = 0;
+        while (index < pattern.length())
+        {
+            int pos_start = pattern.indexOf("{{", index);
+            int pos_end = pos_start < 0 ? -1 : pattern.indexOf("}}", pos_start);
+            if (pos_end < 0)
+            {
+                regex.append(Pattern.quote(pattern.substring(index)));
+                break;
+            }
+            if (pos_start > index)
+            {
+                regex.append(Pattern.quote(pattern.substring(index, pos_start)));
+            }
+            String subst_pattern = pattern.substring(pos_start + 2, pos_end);
+            if (subst_pattern.endsWith("|yyyy"))
+            {
+                regex.append("(\\d{4})");
+                groups.add("yyyy");
+            }
+            else if (subst_pattern.endsWith("|MM") || subst_pattern.endsWith("|dd"))
+            {
+                regex.append("(\\d{2})");
+                groups.add(subst_pattern.substring(subst_pattern.length() - 2));
+            }
+            else if (subst_pattern.endsWith("|int"))
+            {
+                regex.append("-?\\d+");
+            }
+            else
+            {
+                regex.append("[^/]*");
+            }
+            index = pos_end + 2;
+        }
+        return regex.toString();
+    }
+
+    // Return true if file_path is a file of this filer (i.e. matches store_path/store_name) for a day (or month
+    // or year, if store_path has no {{..|dd}}) that ended more than recompress_days ago, so it is finished.
+    // Called on the compress worker.
+    private boolean archive_file(String file_path)
+    {
+        if (file_path.endsWith(".gz") || file_path.endsWith(".tmp") || file_path.endsWith(AppendIndex.INDEX_SUFFIX) ||
+            file_path.endsWith(Compressor.OPEN_SUFFIX) || file_path.endsWith(Compressor.RECOVERED_SUFFIX))
+        {
+            return false; // the gzip, temporary, index or gzip repair file made from a file
+        }
+        Matcher m = archive_pattern.matcher(file_path);
+        if (!m.matches())
+        {
+            return false;
+        }
+        int yyyy = -1;
+        int MM = -1;
+        int dd = -1;
+        for (int i=0; i<archive_groups.size(); i++)
+        {
+            int value = Integer.parseInt(m.group(i + 1));
+            switch (archive_groups.get(i))
+            {
+                case "yyyy": yyyy = yyyy < 0 ? value : yyyy; break;
+                case "MM":   MM = MM < 0 ? value : MM; break;
+                default:     dd = dd < 0 ? value : dd; break;
+            }
+        }
+        try
+        {
+            LocalDate end = MM < 0 ? LocalDate.of(yyyy + 1, 1, 1)
+                                   : dd < 0 ? LocalDate.of(yyyy, MM, 1).plusMonths(1)
+                                            : LocalDate.of(yyyy, MM, dd).plusDays(1);
+            long finished_ms = end.plusDays(filer_config.recompress_days)
+                                  .atStartOfDay(Constants.PLATFORM_TIMEZONE).toInstant().toEpochMilli();
+            return System.currentTimeMillis() >= finished_ms;
+        }
+        catch (DateTimeException e)
+        {
+            return false;
+        }
+    }
+
+    // *************************************************************************************************
+    // status()
+    // Return the status values of this filer for the MsgFiler system_status message, or null if none
+    // *************************************************************************************************
+    public JsonObject status()
+    {
+        JsonObject status = new JsonObject();
+
+        if (compressor != null)
+        {
+            status.put("compress", compressor.status());
+        }
+
+        if (Constants.FILE_COLUMNS.equals(filer_config.store_mode))
+        {
+            int pending = 0;
+            for (ColumnStore column_store : column_stores.values())
+            {
+                pending += column_store.pending_count();
+            }
+            status.put("columns", new JsonObject()
+                                      .put("tables", column_stores.size())
+                                      .put("rows", columns_rows)
+                                      .put("pending", pending));
+        }
+
+        if (Constants.FILE_LATEST.equals(filer_config.store_mode))
+        {
+            JsonArray latest = new JsonArray();
+            for (LatestStore latest_store : latest_stores.values())
+            {
+                if (latest_store != null)
+                {
+                    latest.add(latest_store.status());
+                }
+            }
+            status.put("latest", latest);
+        }
+
+        if (dirs_created > 0)
+        {
+            status.put("dirs_created", dirs_created);
+        }
+
+        if (status.isEmpty())
+        {
+            return null;
+        }
+
+        status.put("source_address", filer_config.source_address);
+        status.put("store_path", filer_config.store_path);
+        return status;
+    }
+
+    // *************************************************************************************************
+    // close()
+    // Close any open files, e.g. on MsgFiler stop()
+    // *************************************************************************************************
+    public void close()
+    {
+        if (rollover_timers != null)
+        {
+            for (Long timer_id : rollover_timers)
+            {
+                vertx.cancelTimer(timer_id);
+            }
+        }
+        if (compressor != null)
+        {
+            for (Long timer_id : compress_timers)
+            {
+                vertx.cancelTimer(timer_id);
+            }
+            compressor.close();
+            compress_executor.close();
+        }
+        for (LogStore log_store : log_stores.values())
+        {
+            log_store.close();
+        }
+        for (ColumnStore column_store : column_stores.values())
+        {
+            column_store.write(column_store.take());
+        }
+        for (LatestStore latest_store : latest_stores.values())
+        {
+            if (latest_store != null)
+            {
+                latest_store.close();
+            }
         }
     }
 
@@ -79,6 +533,24 @@ public class FilerUtils {
     //   "request_data"). These records will be merged with the other proprties in the message.
     // * iterating records (i.e. array) at a defined path (in filer-config.records_data)
     // *************************************************************************************************
+    public void store_msg(String msg_str)
+    {
+        if (records_streamer == null)
+        {
+            store_msg(new JsonObject(msg_str));
+            return;
+        }
+
+        try
+        {
+            records_streamer.store(msg_str);
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgFiler."+filer_config.module_id+": skipping bad message: "+e.getMessage());
+        }
+    }
+
     public void store_msg(JsonObject msg)
     {
         // skip this message if if doesn't match the source_filter
@@ -95,29 +567,25 @@ public class FilerUtils {
             //               filer_config.store_mode + " " + 
             //               filer_config.store_path + " " + filer_config.store_name );
 
-            // create a new JsonObject which is the original msg WITHOUT the field we'll flatten
-            JsonObject flat_msg = msg.copy();
-            flat_msg.remove(filer_config.flatten);
+            // Load the base fields of msg (i.e. excluding the field we'll flatten) into the
+            // flatten_writer, which pre-encodes them once for all the records in this message
+            flatten_writer.set_base(msg);
 
             // Iterate through the JsonObjects in the JsonArray field to flatten
-            // and add those fields to the flat msg, creating immediate_msg to save
+            // and write each element merged with the base fields, without copying msg
             for (int i=0; i<flatten_array.size(); i++)
             {
-                // start with flat_msg, i.e. original excluding flatten_array
-                JsonObject immediate_msg = flat_msg.copy();
-                // merge in the fields from current element in flatten-array
-                immediate_msg.mergeIn(flatten_array.getJsonObject(i));
+                // flatten_writer.fields() is a view of base fields + current element
+                // used to fill the {{..}} patterns in store_path and store_name
+                String record_str = flatten_writer.write(flatten_array.getJsonObject(i));
 
-                //System.out.println("will store "+immediate_msg.toString());
-                store_immediate(immediate_msg);
+                //System.out.println("will store "+record_str);
+                store_immediate(flatten_writer.fields(), record_str);
             }
             //System.out.println("MsgFiler."+filer_config.module_id+": leaving store_msg\n");
         }
         else if (filer_config.records_data != null)
         {
-            // Get the data records from the message
-            JsonArray records = records_finder.get(msg);
-
             //System.out.println("MsgFiler."+filer_config.module_id+".FilerUtils store_msg(): records_data " +
             //               filer_config.records_data + ", " +
             //               filer_config.store_mode + ", " + 
@@ -134,17 +602,24 @@ public class FilerUtils {
                 }
             }
 
-            // Iterate through the JsonObjects in the JsonArray field
-            for (int i=0; i<records.size(); i++)
-            {
-                // start with flat_msg, i.e. original excluding flatten_array
-                JsonObject immediate_msg = records.getJsonObject(i);
+            // Iterate through the JsonObjects in the data records JsonArray (or each of the
+            // arrays if records_data has a wildcard e.g. "request_data[*]>sites")
+            records_path.each(msg, value -> {
+                    if (!(value instanceof JsonArray))
+                    {
+                        return;
+                    }
+                    JsonArray records = (JsonArray) value;
+                    for (int i=0; i<records.size(); i++)
+                    {
+                        JsonObject immediate_msg = records.getJsonObject(i);
 
-                immediate_msg.mergeIn(base_msg);
+                        immediate_msg.mergeIn(base_msg);
 
-                //System.out.println("will store "+immediate_msg.toString());
-                store_immediate(immediate_msg);
-            }
+                        //System.out.println("will store "+immediate_msg.toString());
+                        store_immediate(immediate_msg);
+                    }
+                });
         }
         else // no flattening, so go ahead and store
         {
@@ -156,22 +631,120 @@ public class FilerUtils {
     // This may be a flattened sub-record of the original message
     private void store_immediate(JsonObject msg)
     {
-        //System.out.println("MsgFiler."+filer_config.module_id+": store_msg " +
-        //                   filer_config.store_mode + " " + 
-        //                   filer_config.store_path + " " + filer_config.store_name );
-        //System.out.println(msg);
+        store_immediate(msg, msg.toString());
+    }
+
+    // Store msg_str to the file system, where 'msg' provides the field values
+    // for the {{..}} placeholders in store_path and store_name
+    private void store_immediate(JsonObject msg, String msg_str)
+    {
+        // a sharded filer only stores the records whose key is owned by this MsgFiler instance
+        if (shard_ring != null)
+        {
+            Object key = shard_path.get(msg);
+            String shard_key = key == null ? null : key.toString();
+            switch (shard_ring.owner(shard_key))
+            {
+                // (msg may be a view re-used for the next record, so a held record's fields are decoded
+                // from msg_str if it is stored)
+                case ShardRing.OTHER:
+                    // held in case the owner crashes before storing it
+                    shard_ring.retain(shard_key, v -> { store_owned(new JsonObject(msg_str), msg_str); });
+                    return;
+
+                case ShardRing.UNRESOLVED:
+                    // held until the ring settles
+                    shard_ring.defer(shard_key, v -> { store_owned(new JsonObject(msg_str), msg_str); });
+                    return;
+
+                default:
+                    break;
+            }
+        }
+
+        store_owned(msg, msg_str);
+    }
 
+    // Store msg_str (with the field values of msg) to the file system, as this instance owns its shard key
+    private void store_owned(JsonObject msg, String msg_str)
+    {
         // map the message values into the {{..}} placeholders in path and name
         String filepath;
         String filename;
         filepath = build_string(filer_config.store_path, msg);
         filename = build_string(filer_config.store_name, msg);
 
+        if (day_paths != null && !day_paths.containsKey(filepath) && day_paths.size() < MAX_DAY_PATHS)
+        {
+            day_paths.put(filepath, day_sample(msg));
+        }
+
+        //System.out.println("MsgFiler."+filer_config.module_id+": store_msg " +
+        //                   filer_config.store_mode + " " + 
+        //                   filer_config.store_path + " " + filer_config.store_name );
+        //System.out.println(msg);
+
         //System.out.println("MsgFiler."+filer_config.module_id+": "+
         //                   filer_config.store_mode+ " " +filepath+"/"+filename);
 
-        String msg_str = msg.toString();
-        
+        // "columns" mode buffers the record for table directory filepath/filename
+        if (filer_config.store_mode.equals(Constants.FILE_COLUMNS))
+        {
+            ColumnStore column_store = get_column_store(filepath+"/"+filename);
+            if (column_store.add(msg) >= filer_config.columns_batch_records)
+            {
+                write_columns(column_store);
+            }
+            return;
+        }
+
+        // "log" mode appends to the segment files in directory filepath, with filename as the key
+        if (filer_config.store_mode.equals(Constants.FILE_LOG))
+        {
+            Long ts = log_ts(msg);
+            if (ts != null)
+            {
+                write_record(RECORD_LOG, filepath, filename, ts, msg_str);
+            }
+            return;
+        }
+
+        // "latest" mode writes in place to the slot for key filename in the store in directory filepath
+        if (filer_config.store_mode.equals(Constants.FILE_LATEST))
+        {
+            LatestStore latest_store = get_latest_store(filepath);
+            if (latest_store != null)
+            {
+                latest_store.put(filename, msg_str);
+            }
+            return;
+        }
+
+        // when degraded, "append" records go straight to the overflow
+        if (overflow != null && !filer_config.store_mode.equals(Constants.FILE_WRITE) && overflow.degraded())
+        {
+            String file_path = filepath+"/"+filename;
+            if (filer_config.store_compress != null)
+            {
+                overflow.spill(overflow_entry(RECORD_GZIP, gz_path(file_path), null, 0L, msg_str));
+            }
+            else
+            {
+                overflow.spill(overflow_entry(RECORD_APPEND, file_path, null, 0L, msg_str));
+            }
+            return;
+        }
+
+        // the record timestamp for the sidecar index of an "append" file
+        long ts = append_index == null ? 0L : index_ts(msg);
+
+        // the directory has already been checked (or pre-created for the new day)
+        if (known_dirs.containsKey(filepath))
+        {
+            write_file(msg_str, filepath+"/"+filename, filer_config.store_mode, ts);
+            return;
+        }
+
         FileSystem fs = vertx.fileSystem();
         
         // if full directory path exists, then write file
@@ -181,7 +754,8 @@ public class FilerUtils {
             if (result.succeeded() && result.result())
                 {
                     //System.out.println("MsgFiler."+filer_config.module_id+": path "+filepath+" exists");
-                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode);
+                    known_dirs.put(filepath, Boolean.TRUE);
+                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode, ts);
                 }
             else
                 {
@@ -189,7 +763,8 @@ public class FilerUtils {
                     fs.mkdirs(filepath, mkdirs_result -> {
                             if (mkdirs_result.succeeded())
                                 {
-                                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode);
+                                    known_dirs.put(filepath, Boolean.TRUE);
+                                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode, ts);
                                 }
                             else
                                 {
@@ -224,7 +799,47 @@ public class FilerUtils {
 
         //System.out.println("MsgFiler."+filer_config.module_id+": "+filer_config.store_mode+ " " +filepath+"/"+filename);
 
+        // "columns" mode buffers the record for table directory filepath/filename
+        if (filer_config.store_mode.equals(Constants.FILE_COLUMNS))
+        {
+            ColumnStore column_store = get_column_store(filepath+"/"+filename);
+            if (column_store.add(msg) >= filer_config.columns_batch_records)
+            {
+                column_store.write(column_store.take());
+            }
+            return;
+        }
+
         String msg_str = msg.toString();
+
+        // "latest" mode writes in place to the slot for key filename in the store in directory filepath
+        if (filer_config.store_mode.equals(Constants.FILE_LATEST))
+        {
+            LatestStore latest_store = get_latest_store(filepath);
+            if (latest_store != null)
+            {
+                latest_store.put(filename, msg_str);
+            }
+            return;
+        }
+
+        // "log" mode appends to the segment files in directory filepath, with filename as the key
+        if (filer_config.store_mode.equals(Constants.FILE_LOG))
+        {
+            Long ts = log_ts(msg);
+            if (ts != null)
+            {
+                try
+                {
+                    get_log_store(filepath).append(filename, ts, msg_str);
+                }
+                catch (IOException e)
+                {
+                    // already logged by LogStore
+                }
+            }
+            return;
+        }
         
         FileSystem fs = vertx.fileSystem();
         
@@ -250,26 +865,306 @@ public class FilerUtils {
 
     } // end store_msg()
 
-    // ************************************************************************************
-    // build_string(String pattern, JsonObject msg)
-    // ************************************************************************************
-    // take a pattern and a message, and return the pattern populated with message values
-    // e.g. "foo/bah/{{module_id}}" might become "foo/bah/zone_manager"
-    // Patterns:
-    //     {{<field_name>}}, populated via msg.getString(field_name)
-    //     {{<field_name>|int}}, populated via msg.getLong(field_name)
-    //     {{<field_name>|yyyy}}, get msg.getLong(field_name), parse it as a Unix timestamp, return year as "yyyy"
-    //     {{<field_name>|MM}}, get msg.getLong(field_name), parse it as a Unix timestamp, return month as "MM"
-    //     {{<field_name>|dd}}, get msg.getLong(field_name), parse it as a Unix timestamp, return day of month as "dd"
-    private String build_string(String pattern, JsonObject msg)
+    // Return the LogStore for log directory log_dir, creating it if needed
+    private LogStore get_log_store(String log_dir)
     {
-        final String PATTERN_START = "{{";
-        final String PATTERN_END = "}}";
-        
-        int index = 0;
-        String result = ""; // will hold the accumulated fully matched string
-        
-        while (index < pattern.length())
+        LogStore log_store = log_stores.get(log_dir);
+        if (log_store == null)
+        {
+            log_store = new LogStore(filer_config.module_id,
+                                     log_dir,
+                                     filer_config.log_segment_mb * 1048576L,
+                                     filer_config.log_index_records);
+            log_stores.put(log_dir, log_store);
+        }
+        return log_store;
+    }
+
+    // *************************************************************************************************
+    // Day rollover
+    // *************************************************************************************************
+
+    // Find the fields used in store_path, and schedule the rollover tasks for the next local midnight
+    private void start_rollover()
+    {
+        day_paths = new HashMap<String,JsonObject>();
+        rollover_timers = new ArrayList<Long>();
+        path_fields = new ArrayList<String>();
+        date_fields = new HashSet<String>();
+        HashSet<String> other_fields = new HashSet<String>(); // fields used other than as a date
+
+        String pattern = filer_config.store_path;
+        int pos_start;
+        int pos_end = 0;
+        while ((pos_start = pattern.indexOf("{{", pos_end)) >= 0 &&
+               (pos_end = pattern.indexOf("}}", pos_start)) >= 0)
+        {
+            String subst_pattern = pattern.substring(pos_start + 2, pos_end);
+            int fun_pos = subst_pattern.indexOf('|');
+            String field_name = fun_pos < 0 ? subst_pattern : subst_pattern.substring(0, fun_pos);
+            String fun = fun_pos < 0 ? "" : subst_pattern.substring(fun_pos + 1);
+            if (fun.equals("yyyy") || fun.equals("MM") || fun.equals("dd"))
+            {
+                date_fields.add(field_name);
+            }
+            else
+            {
+                other_fields.add(field_name);
+            }
+            if (!path_fields.contains(field_name))
+            {
+                path_fields.add(field_name);
+            }
+        }
+
+        // e.g. "{{ts}}/{{ts|yyyy}}" can't be worked out for the next day
+        other_fields.retainAll(date_fields);
+        prefetch_dirs = date_fields.size() > 0 && other_fields.isEmpty();
+
+        schedule_rollover();
+    }
+
+    // Set the timers for the directory pre-creation before, and the file rotation after, the next midnight
+    private void schedule_rollover()
+    {
+        rollover_timers.clear();
+
+        long now = System.currentTimeMillis();
+        long midnight = days.day(now).end_ms; // in the timezone used by build_string()
+
+        if (prefetch_dirs && midnight - PREFETCH_MS > now)
+        {
+            rollover_timers.add(vertx.setTimer(midnight - PREFETCH_MS - now, id -> { create_next_dirs(midnight); }));
+        }
+
+        rollover_timers.add(vertx.setTimer(midnight - now, id -> {
+                // the directories written before midnight are now the previous day's
+                day_paths = new HashMap<String,JsonObject>();
+            }));
+
+        rollover_timers.add(vertx.setTimer(midnight + ROTATE_MS - now, id -> {
+                rotate_files();
+                schedule_rollover();
+            }));
+    }
+
+    // Return the store_path fields of msg, for day_paths
+    private JsonObject day_sample(JsonObject msg)
+    {
+        JsonObject sample = new JsonObject();
+        for (String field_name : path_fields)
+        {
+            sample.put(field_name, msg.getValue(field_name));
+        }
+        return sample;
+    }
+
+    // Create the directories for the day starting at 'midnight' (epoch ms) corresponding to the
+    // directories written today, on a worker thread
+    private void create_next_dirs(long midnight)
+    {
+        // a time in the next day, as a Unix timestamp as in the messages
+        long next_day_ts = (midnight + 3600000L) / 1000L;
+
+        HashSet<String> next_dirs = new HashSet<String>();
+        for (JsonObject sample : day_paths.values())
+        {
+            JsonObject next_sample = sample.copy();
+            for (String field_name : date_fields)
+            {
+                next_sample.put(field_name, next_day_ts);
+            }
+            try
+            {
+                String next_dir = build_string(filer_config.store_path, next_sample);
+                if (!known_dirs.containsKey(next_dir))
+                {
+                    next_dirs.add(next_dir);
+                }
+            }
+            catch (Exception e)
+            {
+                // e.g. a field missing from the sample, so the directory will be created when needed
+            }
+        }
+
+        if (next_dirs.size() == 0)
+        {
+            return;
+        }
+
+        vertx.<Integer>executeBlocking(fut -> {
+                int created = 0;
+                for (String dir : next_dirs)
+                {
+                    File f = new File(dir);
+                    if (f.isDirectory() || f.mkdirs())
+                    {
+                        created++;
+                    }
+                }
+                fut.complete(created);
+            }, false, res -> {
+                if (res.succeeded())
+                {
+                    for (String dir : next_dirs)
+                    {
+                        known_dirs.put(dir, Boolean.TRUE);
+                    }
+                    dirs_created += res.result();
+                    System.out.println("MsgFiler."+filer_config.module_id+": created "+res.result()+
+                                       " directories for "+Instant.ofEpochMilli(midnight));
+                }
+            });
+    }
+
+    // Close the files of the previous day, i.e. not written since midnight: the open gzip files,
+    // and the LogStore / LatestStore of directories not written since midnight
+    private void rotate_files()
+    {
+        if (compressor != null)
+        {
+            compress_executor.executeBlocking(fut -> {
+                    compressor.flush(ROTATE_MS / 2);
+                    fut.complete();
+                }, res -> { }
+                );
+        }
+
+        for (String log_dir : new ArrayList<String>(log_stores.keySet()))
+        {
+            if (!day_paths.containsKey(log_dir))
+            {
+                LogStore log_store = log_stores.remove(log_dir);
+                // after any queued appends to this LogStore
+                execute_write(log_dir, fut -> {
+                        log_store.close();
+                        fut.complete();
+                    });
+            }
+        }
+
+        for (String store_dir : new ArrayList<String>(latest_stores.keySet()))
+        {
+            if (!day_paths.containsKey(store_dir))
+            {
+                LatestStore latest_store = latest_stores.remove(store_dir);
+                if (latest_store != null)
+                {
+                    vertx.executeBlocking(fut -> {
+                            latest_store.close();
+                            fut.complete();
+                        }, false, res -> { });
+                }
+            }
+        }
+    }
+
+    // Return the LatestStore for store directory store_dir, opening it if needed, or null if it can't be opened
+    private LatestStore get_latest_store(String store_dir)
+    {
+        if (latest_stores.containsKey(store_dir))
+        {
+            return latest_stores.get(store_dir);
+        }
+        LatestStore latest_store = null;
+        try
+        {
+            latest_store = new LatestStore(filer_config.module_id,
+                                           store_dir,
+                                           filer_config.latest_slot_kb,
+                                           filer_config.latest_slots);
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgFiler."+filer_config.module_id+": LatestStore failed for "+store_dir+": "+e.getMessage());
+        }
+        latest_stores.put(store_dir, latest_store);
+        return latest_store;
+    }
+
+    // Return the ColumnStore for table directory table_dir, creating it if needed
+    private ColumnStore get_column_store(String table_dir)
+    {
+        ColumnStore column_store = column_stores.get(table_dir);
+        if (column_store == null)
+        {
+            column_store = new ColumnStore(filer_config.module_id, table_dir);
+            column_stores.put(table_dir, column_store);
+        }
+        return column_store;
+    }
+
+    // Write the pending records of column_store as a batch on a worker thread
+    private void write_columns(ColumnStore column_store)
+    {
+        ArrayList<LinkedHashMap<String,String>> batch = column_store.take();
+        columns_rows += batch.size();
+        execute_write(column_store.table_dir, fut -> {
+                column_store.write(batch);
+                fut.complete();
+            });
+    }
+
+    // Periodically write the pending records of every table, and forget idle tables
+    // (e.g. the previous day after rollover)
+    private void flush_columns()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<ColumnStore> i = column_stores.values().iterator();
+        while (i.hasNext())
+        {
+            ColumnStore column_store = i.next();
+            if (column_store.pending_count() > 0)
+            {
+                write_columns(column_store);
+            }
+            else if (now - column_store.last_add > COLUMNS_IDLE_MS)
+            {
+                i.remove();
+            }
+        }
+    }
+
+    // Return the store_ts timestamp of msg in epoch ms for the sidecar index, or AppendIndex.NO_TS
+    private long index_ts(JsonObject msg)
+    {
+        long ts = Timestamp.epoch_ms(msg, filer_config.store_ts);
+        return ts == Timestamp.NO_TS ? AppendIndex.NO_TS : ts;
+    }
+
+    // Return the store_ts timestamp of msg in epoch milliseconds, or null if it is invalid
+    private Long log_ts(JsonObject msg)
+    {
+        long ts = Timestamp.epoch_ms(msg, filer_config.store_ts);
+        if (ts == Timestamp.NO_TS)
+        {
+            Log.log_err("MsgFiler."+filer_config.module_id+": log record skipped, Bad timestamp in "+filer_config.store_ts);
+            return null;
+        }
+        return ts;
+    }
+
+    // ************************************************************************************
+    // build_string(String pattern, JsonObject msg)
+    // ************************************************************************************
+    // take a pattern and a message, and return the pattern populated with message values
+    // e.g. "foo/bah/{{module_id}}" might become "foo/bah/zone_manager"
+    // Patterns:
+    //     {{<field_name>}}, populated via msg.getString(field_name)
+    //     {{<field_name>|int}}, populated via msg.getLong(field_name)
+    //     {{<field_name>|yyyy}}, get msg.getLong(field_name), parse it as a Unix timestamp, return year as "yyyy"
+    //     {{<field_name>|MM}}, get msg.getLong(field_name), parse it as a Unix timestamp, return month as "MM"
+    //     {{<field_name>|dd}}, get msg.getLong(field_name), parse it as a Unix timestamp, return day of month as "dd"
+    private String build_string(String pattern, JsonObject msg)
+    {
+        final String PATTERN_START = "{{";
+        final String PATTERN_END = "}}";
+        
+        int index = 0;
+        String result = ""; // will hold the accumulated fully matched string
+        
+        while (index < pattern.length())
             {
                 // get the indices of the start/end of the next {{..}}
                 int pos_start = pattern.indexOf(PATTERN_START, index);
@@ -328,107 +1223,358 @@ public class FilerUtils {
             return field_value.toString();
         }
 
-        Instant ts;
-
+        // the local day (Constants.PLATFORM_TIMEZONE) of the timestamp
         if (pattern.endsWith(PATTERN_FUN+"yyyy"))
         {
-            ts = field_to_instant(msg, field_name);
-
-            LocalDateTime local_time = LocalDateTime.ofInstant(ts, ZoneId.systemDefault());
-
-            String year = local_time.format(DateTimeFormatter.ofPattern("yyyy"));
-
-            return year;
+            return days.day(field_ms(msg, field_name)).yyyy;
         }
 
         if (pattern.endsWith(PATTERN_FUN+"MM"))
         {
-            ts = field_to_instant(msg, field_name);
-
-            LocalDateTime local_time = LocalDateTime.ofInstant(ts, ZoneId.systemDefault());
-
-            String month = local_time.format(DateTimeFormatter.ofPattern("MM"));
-
-            return month;
+            return days.day(field_ms(msg, field_name)).MM;
         }
 
         if (pattern.endsWith(PATTERN_FUN+"dd"))
         {
-            ts = field_to_instant(msg, field_name);
+            return days.day(field_ms(msg, field_name)).dd;
+        }
+        return pattern;
+    }
 
-            LocalDateTime local_time = LocalDateTime.ofInstant(ts, ZoneId.systemDefault());
+    // Return the timestamp field_name of msg (unix timestamp or ISO 8601 string) in epoch ms,
+    // throwing NumberFormatException if it is invalid
+    private static long field_ms(JsonObject msg, String field_name)
+    {
+        long ts = Timestamp.epoch_ms(msg, field_name);
+        if (ts == Timestamp.NO_TS)
+        {
+            throw new NumberFormatException("Bad timestamp in "+field_name);
+        }
+        return ts;
+    }
 
-            String day = local_time.format(DateTimeFormatter.ofPattern("dd"));
+    // *****************************************************************
+    // write_file()
+    // either overwrite (ASYNC) or append(SYNC) according to config_mode,
+    // with 'ts' the record timestamp for the sidecar index (if any)
+    private void write_file(String msg, String file_path, String config_mode, long ts)
+    {
+        if (filer_config.store_compress != null)
+            {
+                write_compressed(msg, file_path, config_mode);
+            }
+        else if (config_mode.equals(Constants.FILE_WRITE))
+            {
+                overwrite_file(msg, file_path);
+            }
+        else // append - this is a SYNCHRONOUS operation...
+            {
+                write_record(RECORD_APPEND, file_path, null, ts, msg);
+            }
+    }        
+        
+    // *****************************************************************
+    // write_fileBlocking()
+    // either overwrite or append in SYNCHRONOUS mode
+    private void write_fileBlocking(String msg, String file_path, String config_mode)
+    {
+        if (filer_config.store_compress != null)
+            {
+                write_compressedBlocking(msg, file_path, config_mode);
+            }
+        else if (config_mode.equals(Constants.FILE_WRITE))
+            {
+                overwrite_fileBlocking(msg, file_path);
+            }
+        else // append - this is a SYNCHRONOUS operation...
+            {
+                append_file(msg, file_path); // is always SYNCHRONOUS anyway
+            }
+    }        
+        
+    // *****************************************************************
+    // write_compressed()
+    // gzip and either overwrite or append on a worker thread
+    private void write_compressed(String msg, String file_path, String config_mode)
+    {
+        if (config_mode.equals(Constants.FILE_WRITE))
+            {
+                execute_write(file_path, fut -> {
+                        write_compressedBlocking(msg, file_path, config_mode);
+                        fut.complete();
+                    });
+            }
+        else
+            {
+                write_record(RECORD_GZIP, gz_path(file_path), null, 0L, msg);
+            }
+    }
 
-            return day;
-        }
-        return pattern;
+    // *****************************************************************
+    // write_record()
+    // Append a record on the WriterPool, as 'kind' RECORD_APPEND (text file 'file_path'),
+    // RECORD_GZIP (compressed file 'file_path') or RECORD_LOG (log directory 'file_path' with 'key', 'ts').
+    // If the MsgFiler is degraded the record is spilled to the OverflowStore instead, and if the
+    // write fails the record is spilled and the MsgFiler becomes degraded.
+    // Otherwise the record is added to the Journal (if any) before the write is queued.
+    private void write_record(String kind, String file_path, String key, long ts, String msg)
+    {
+        if (overflow != null && overflow.degraded())
+            {
+                overflow.spill(overflow_entry(kind, file_path, key, ts, msg));
+                return;
+            }
+        long seq = journal == null ? 0L : journal.append(overflow_entry(kind, file_path, key, ts, msg));
+        submit_record(kind, file_path, key, ts, msg, false, seq);
+    }
+
+    // *****************************************************************
+    // replay()
+    // Re-apply a record drained from the OverflowStore (see overflow_entry())
+    public void replay(JsonObject entry)
+    {
+        submit_record(entry.getString("m"),
+                      entry.getString("p"),
+                      entry.getString("k"),
+                      entry.getLong("t", 0L),
+                      entry.getString("d"),
+                      true,
+                      0L);
     }
 
-    // Convert EITHER unix timestamp or ISO 8601 string to an Instant
-    private Instant field_to_instant(JsonObject msg, String field_name)
+    // *****************************************************************
+    // replayBlocking()
+    // BLOCKING re-apply of a record recovered from the Journal at startup
+    public void replayBlocking(JsonObject entry)
     {
+        String kind = entry.getString("m");
+        String file_path = entry.getString("p");
         try
         {
-            return  Instant.ofEpochSecond(msg.getLong(field_name, 0L));
+            LogStore log_store = null;
+            if (kind.equals(RECORD_LOG))
+                {
+                    // (not log_stores, which is only used on the event loop, see replayed())
+                    if (replay_log_stores == null)
+                        {
+                            replay_log_stores = new HashMap<String,LogStore>();
+                        }
+                    log_store = replay_log_stores.get(file_path);
+                    if (log_store == null)
+                        {
+                            log_store = new LogStore(filer_config.module_id,
+                                                     file_path,
+                                                     filer_config.log_segment_mb * 1048576L,
+                                                     filer_config.log_index_records);
+                            replay_log_stores.put(file_path, log_store);
+                        }
+                }
+            else
+                {
+                    new File(file_path).getParentFile().mkdirs();
+                }
+            write_recordBlocking(kind, file_path, entry.getString("k"), entry.getLong("t", 0L), entry.getString("d"), log_store);
         }
-        catch (java.lang.ClassCastException e)
+        catch (IOException e)
         {
-            try
+            Log.log_err("MsgFiler."+filer_config.module_id+": journal replay failed for "+file_path+": "+e.getMessage());
+        }
+    }
+
+    // *****************************************************************
+    // replayed()
+    // Take over the LogStores opened by replayBlocking(), on the event loop once the journal recovery is done
+    public void replayed()
+    {
+        if (replay_log_stores == null)
+            {
+                return;
+            }
+        for (Map.Entry<String,LogStore> entry : replay_log_stores.entrySet())
             {
-                String ts_string = msg.getString(field_name);
+                LogStore log_store = entry.getValue();
+                if (log_stores.putIfAbsent(entry.getKey(), log_store) != null)
+                    {
+                        // already opened on the event loop, e.g. for a record drained from the overflow
+                        execute_write(entry.getKey(), fut -> {
+                                log_store.close();
+                                fut.complete();
+                            });
+                    }
+            }
+        replay_log_stores = null;
+    }
 
+    // Queue the write of a record on the WriterPool, where 'seq' is its Journal sequence number (or 0)
+    private void submit_record(String kind, String file_path, String key, long ts, String msg, boolean replay, long seq)
+    {
+        LogStore log_store = kind.equals(RECORD_LOG) ? get_log_store(file_path) : null;
+
+        execute_write(file_path, fut -> {
                 try
                 {
-                    double ts_double = Double.parseDouble(ts_string);
-                    return Instant.ofEpochSecond((long)ts_double);
+                    if (replay && log_store == null)
+                    {
+                        // the directory may not have been created before the record was spilled
+                        new File(file_path).getParentFile().mkdirs();
+                    }
+                    try
+                    {
+                        write_recordBlocking(kind, file_path, key, ts, msg, log_store);
+                    }
+                    catch (FileNotFoundException e)
+                    {
+                        // the directory in known_dirs may have been removed, if so recreate it and try again
+                        if (log_store != null || !new File(file_path).getParentFile().mkdirs())
+                        {
+                            throw e;
+                        }
+                        Log.log_err("MsgFiler."+filer_config.module_id+": recreated missing directory for "+file_path);
+                        write_recordBlocking(kind, file_path, key, ts, msg, log_store);
+                    }
+                    fut.complete();
                 }
-                catch (java.lang.NumberFormatException num_format)
+                catch (IOException e)
                 {
-                    return Instant.parse(msg.getString(field_name));
+                    fut.fail(e);
                 }
+            }, res -> {
+                if (res.failed() && log_store == null && missing_file(res.cause()))
+                    {
+                        forget_dir(file_path);
+                    }
+                if (res.failed() && overflow != null)
+                    {
+                        overflow.write_failed(overflow_entry(kind, file_path, key, ts, msg), res.cause());
+                    }
+                if (seq > 0)
+                    {
+                        // written, or passed to the overflow
+                        journal.applied(seq);
+                    }
+            });
+    }
+
+    // BLOCKING append of a record as in write_record()
+    private void write_recordBlocking(String kind, String file_path, String key, long ts, String msg, LogStore log_store)
+        throws IOException
+    {
+        if (log_store != null)
+            {
+                log_store.append(key, ts, msg);
             }
-            catch (Exception wtf2)
+        else if (kind.equals(RECORD_GZIP))
             {
-                throw new java.lang.NumberFormatException("Bad timestamp in "+field_name);
+                compressor.append(msg, file_path);
             }
-        }
+        else if (append_index != null)
+            {
+                long start = new File(file_path).length();
+                append_lines(msg, file_path);
+                append_index.add(file_path, start, new File(file_path).length(), ts);
+            }
+        else
+            {
+                append_lines(msg, file_path);
+            }
+    }
+
+    // Return the OverflowStore entry for a record, e.g.
+    //   { "f": "<filer_id>", "m": "append", "p": "/media/acp/.../x.txt", "k": null, "t": 0, "d": "<record>" }
+    private JsonObject overflow_entry(String kind, String file_path, String key, long ts, String msg)
+    {
+        return new JsonObject()
+            .put("f", filer_config.filer_id)
+            .put("m", kind)
+            .put("p", file_path)
+            .put("k", key)
+            .put("t", ts)
+            .put("d", msg);
     }
 
     // *****************************************************************
-    // write_file()
-    // either overwrite (ASYNC) or append(SYNC) according to config_mode
-    private void write_file(String msg, String file_path, String config_mode)
+    // execute_write()
+    // Run a BLOCKING write to file_path on the MsgFiler WriterPool, which keeps the order of
+    // writes to each file while writing different files in parallel, or if there is no
+    // WriterPool then via (ordered) vertx.executeBlocking
+    private void execute_write(String file_path, Handler<Promise<Object>> write)
     {
-        if (config_mode.equals(Constants.FILE_WRITE))
+        execute_write(file_path, write, null);
+    }
+
+    // As execute_write() above, with 'result' called on the event loop when the write completes or fails
+    private void execute_write(String file_path, Handler<Promise<Object>> write, Handler<AsyncResult<Object>> result)
+    {
+        if (writer_pool != null)
             {
-                overwrite_file(msg, file_path);
+                writer_pool.submit(file_path, write, result);
             }
-        else // append - this is a SYNCHRONOUS operation...
+        else
             {
-                vertx.executeBlocking(fut -> {
-                        append_file(msg, file_path);
-                        fut.complete();
-                    }, res -> { }
-                    );
+                vertx.executeBlocking(write, res -> {
+                        if (res.failed())
+                            {
+                                Log.log_err("MsgFiler."+filer_config.module_id+": write failed for "+
+                                            file_path+": "+res.cause());
+                            }
+                        if (result != null)
+                            {
+                                result.handle(res);
+                            }
+                    });
             }
-    }        
-        
+    }
+
     // *****************************************************************
-    // write_fileBlocking()
-    // either overwrite or append in SYNCHRONOUS mode
-    private void write_fileBlocking(String msg, String file_path, String config_mode)
+    // write_compressedBlocking()
+    // gzip and either overwrite or append in SYNCHRONOUS mode, adding ".gz" to file_path
+    private void write_compressedBlocking(String msg, String file_path, String config_mode)
     {
+        String gz_path = gz_path(file_path);
+
         if (config_mode.equals(Constants.FILE_WRITE))
             {
-                overwrite_fileBlocking(msg, file_path);
+                // move any existing file to .prev, as in overwrite_file()
+                FileSystem fs = vertx.fileSystem();
+                try
+                {
+                    fs.deleteBlocking(gz_path+Constants.PREV_FILE_SUFFIX);
+                }
+                catch (FileSystemException e)
+                {
+                    // no previous 'prev' file, it doesn't matter
+                }
+                try
+                {
+                    fs.moveBlocking(gz_path, gz_path+Constants.PREV_FILE_SUFFIX);
+                }
+                catch (FileSystemException e)
+                {
+                    // no existing file, e.g. this is the first
+                }
+                // (the directory in known_dirs may have been removed)
+                new File(gz_path).getParentFile().mkdirs();
+                compressor.write(msg, gz_path);
             }
-        else // append - this is a SYNCHRONOUS operation...
+        else
             {
-                append_file(msg, file_path); // is always SYNCHRONOUS anyway
+                try
+                {
+                    compressor.append(msg, gz_path);
+                }
+                catch (IOException e)
+                {
+                    // already logged by Compressor
+                }
             }
-    }        
-        
+    }
+
+    // Return file_path with ".gz" added if needed
+    private static String gz_path(String file_path)
+    {
+        return file_path.endsWith(Compressor.GZIP_SUFFIX) ? file_path : file_path + Compressor.GZIP_SUFFIX;
+    }
+
     // **********************************************************
     // overwrite_file()
     // will do an ASYNCHRONOUS operation, i.e. return immediately
@@ -467,12 +1613,52 @@ public class FilerUtils {
                      result -> {
           if (result.succeeded()) {
               //System.out.println("MsgFiler: File "+file_path+" written");
+          } else if (missing_file(result.cause())) {
+            // the directory in known_dirs has been removed, so forget it and recreate it for this file
+            forget_dir(file_path);
+            String dir = file_path.substring(0, file_path.lastIndexOf('/'));
+            fs.mkdirs(dir, mkdirs_result -> {
+                if (mkdirs_result.succeeded()) {
+                    known_dirs.put(dir, Boolean.TRUE);
+                    fs.writeFile(file_path, buf, retry_result -> {
+                        if (retry_result.failed()) {
+                          Log.log_err("MsgFiler."+filer_config.module_id+": overwrite_file error ..." + retry_result.cause());
+                        }
+                    });
+                } else {
+                    Log.log_err("MsgFiler."+filer_config.module_id+": error creating path "+dir);
+                }
+            });
           } else {
             Log.log_err("MsgFiler."+filer_config.module_id+": overwrite_file error ..." + result.cause());
           }
         });
     } // end overwrite_file
 
+    // Drop the directory of file_path (i.e. the store_path of the "<store_path>/<store_name>" file) from
+    // known_dirs, after a write found it missing, so the next message checks for it and creates it
+    private void forget_dir(String file_path)
+    {
+        int slash = file_path.lastIndexOf('/');
+        if (slash > 0)
+        {
+            known_dirs.remove(file_path.substring(0, slash));
+        }
+    }
+
+    // Return true if the write failure e (or its cause) is a missing file or directory
+    private static boolean missing_file(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof FileNotFoundException || cause instanceof java.nio.file.NoSuchFileException)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // **********************************************************
     // overwrite_fileBlocking()
     // will do a SYNCHRONOUS operation
@@ -496,183 +1682,367 @@ public class FilerUtils {
     {
         //System.out.println("MsgFiler."+filer_config.module_id+": append_file "+ file_path);
  
-        BufferedWriter bw = null;
-
         try {
-            // note FileWriter second arg 'true' => APPEND MODE
-            bw = new BufferedWriter(new FileWriter(file_path, true));
-            bw.write(msg);
-            bw.newLine();
-            bw.flush();
+            append_lines(msg, file_path);
         } catch (IOException ioe) {
             Log.log_err("MsgFiler."+filer_config.module_id+": append_file failed for "+file_path);
-        } finally {                       // always close the file
-            if (bw != null) try {
-                    bw.close();
-                } catch (IOException ioe2) {
-                    // just ignore it
-                }
-        } // end try/catch/finally
+        }
 
     } // end append_file
 
-    // Helper class to provide JsonArray from source object given a records_data
-    // e.g. records_data = "foo>request_data[0]>sites"
-    // means get(source_object) will return the JsonArray at the location foo->request_data[0]->sites
-    // where "foo" will be a JsonObject and "request_data" and "sites" must be JsonArrays (because
-    // an index was provided for "request_data" and "sites" is the last element on the path.
-    //
-    // If the filter_path is simply "request_data", the .get(msg) method will simply return the 
-    // JsonArray that must be present at that property.
+    // BLOCKING append of 'msg'+'\n' to file 'file_path', throwing IOException e.g. if the disk is full
+    private static void append_lines(String msg, String file_path) throws IOException
+    {
+        // note FileWriter second arg 'true' => APPEND MODE
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file_path, true)))
+        {
+            bw.write(msg);
+            bw.newLine();
+        }
+    }
+
+    // Helper class to write the "records_data" records of a message (with the "merge_base" fields)
+    // straight from the message text using the Jackson streaming parser, i.e. the same result as
+    //   records.getJsonObject(i).mergeIn(base_msg).toString()
+    // for each record, but without decoding the message (which may be close to 1 MB) into a JsonObject
+    // tree.  The records are copied token by token to a generator, and only the top-level scalar values
+    // of each record are kept (as the fields used by build_string() and the timestamps).
     //
-    class RecordsFinder {
+    // The message is scanned twice: first for the top-level scalar fields (for the source_filter, which
+    // tests a top-level field) and the merge_base fields (which may come after the records).  This also
+    // checks the whole message is valid JSON before any record is written.  The second scan follows
+    // records_path to the records.
+    class RecordsStreamer {
 
-        // The three types of things we can have on a Json path
-        private int JSON_OBJECT = 0; // "foo": {obj}
-        private int JSON_ARRAY = 1;  // "foo": [ obj,...]
-        private int JSON_INDEXED_ARRAY = 2;  // "foo[0]"
+        private final JsonFactory json_factory = new JsonFactory();
 
-        public String records_data;
+        private LinkedHashMap<String,String> base_json; // merge_base key -> encoded value in current message
+        private JsonObject base_fields;                 // merge_base key -> value in current message
 
-        // path_steps contains the 'compiled' version of 
-        private List<PathElement> path_steps;
+        private JsonObject top_fields; // the top-level scalar fields of the current message
 
-        // Convert String records_data into a list of PathElements,
-        // e.g. rd: "a>b[7]>c" becomes
-        // OBJECT a
-        // ARRAY b
-        // INDEX 7
-        // ARRAY c -- Note this is an ARRAY because it is the LAST element, otherwise it would be an OBJECT
-        public RecordsFinder(String config_records_data)
-        {
-            records_data = config_records_data;
+        private HashSet<String> merged; // merge_base keys already written in the current record
 
-            String [] path_strings = records_data.split(">");
+        private StringWriter record_writer; // re-used to build each record string
 
-            path_steps = new ArrayList<PathElement>();
+        public RecordsStreamer(JsonArray merge_base)
+        {
+            base_json = new LinkedHashMap<String,String>();
+            base_fields = new JsonObject();
+            merged = new HashSet<String>();
+            record_writer = new StringWriter(256);
 
-            for (int i=0; i<path_strings.length; i++)
+            if (merge_base != null)
             {
-                path_steps.add(new PathElement(path_strings[i],i==path_strings.length-1));
+                for (int i=0; i<merge_base.size(); i++)
+                {
+                    base_json.put(merge_base.getString(i), "null");
+                }
             }
-
-            System.out.println("MsgFiler.FilerUtils.RecordsFinder new: "+ records_data);
-            System.out.println(toString());
         }
 
-        public String toString()
+        // Store each record of the message msg_str
+        public void store(String msg_str) throws IOException
         {
-            String s = "";
-            Iterator i = path_steps.iterator();
-            while (i.hasNext())
+            read_base(msg_str);
+
+            // skip this message if if doesn't match the source_filter
+            if (filer_config.source_filter != null && !(filer_config.source_filter.match(top_fields)))
+            {
+                return;
+            }
+
+            try (JsonParser parser = json_factory.createParser(msg_str))
             {
-                s = s + i.next().toString()+" > ";
+                parser.nextToken();
+                records_path.each(parser, records -> {
+                        if (records.currentToken() != JsonToken.START_ARRAY)
+                        {
+                            records.skipChildren();
+                            return;
+                        }
+                        while (records.nextToken() != JsonToken.END_ARRAY)
+                        {
+                            if (records.currentToken() == JsonToken.START_OBJECT)
+                            {
+                                write_record(records);
+                            }
+                            else
+                            {
+                                records.skipChildren();
+                            }
+                        }
+                    });
             }
-            return s;
         }
 
-        // Return the JsonArray at the end of "record_data" e.g. "request_data[0]>item>foo"
-        public JsonArray get(JsonObject msg)
+        // Read the top-level scalar fields and the merge_base fields of the message
+        // (the merge_base fields are null if not in the message)
+        private void read_base(String msg_str) throws IOException
         {
+            top_fields = new JsonObject();
 
-            // We basically walk the Json object structure until we reach the end of path_steps.
-            JsonObject current_object = msg;
-
-            JsonArray current_array = new JsonArray();
-
-            //Iterator i = path_steps.iterator();
-            //while (i.hasNext())
-            for (int i=0; i<path_steps.size(); i++)
+            for (String key : base_json.keySet())
             {
-                //PathElement p = i.next();
-                PathElement p = path_steps.get(i);
+                base_json.put(key, "null");
+                base_fields.putNull(key);
+            }
 
-                if (p.element_type == JSON_OBJECT)
+            try (JsonParser parser = json_factory.createParser(msg_str))
+            {
+                if (parser.nextToken() != JsonToken.START_OBJECT)
+                {
+                    throw new IOException("message is not a JSON object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME)
                 {
-                    //System.out.println("MsgFiler.FilerUtils.RecordsFinder get() OBJECT "+p.element_name);
-                    current_object = current_object.getJsonObject(p.element_name);
+                    String key = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    Object value = token.isScalarValue() ? scalar_value(parser) : null;
+                    if (token.isScalarValue())
+                    {
+                        top_fields.put(key, value);
+                    }
+                    if (!base_json.containsKey(key))
+                    {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    String value_json = encode(parser);
+                    base_json.put(key, value_json);
+                    // the (usually small) structured base values are decoded for build_string()
+                    base_fields.put(key, token.isScalarValue() ? value : Json.decodeValue(value_json));
                 }
-                else if (p.element_type == JSON_ARRAY)
+            }
+        }
+
+        // Write the record at the current START_OBJECT of parser, merged with the base fields
+        private void write_record(JsonParser parser) throws IOException
+        {
+            JsonObject fields = new JsonObject();
+            merged.clear();
+            record_writer.getBuffer().setLength(0);
+
+            try (JsonGenerator gen = json_factory.createGenerator(record_writer))
+            {
+                gen.writeStartObject();
+                while (parser.nextToken() == JsonToken.FIELD_NAME)
                 {
-                    //System.out.println("MsgFiler.FilerUtils.RecordsFinder get() ARRAY "+p.element_name);
-                    current_array = current_object.getJsonArray(p.element_name);
+                    String key = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    gen.writeFieldName(key);
+                    // a base field replaces the record value in place, as with mergeIn()
+                    if (base_json.containsKey(key))
+                    {
+                        parser.skipChildren();
+                        gen.writeRawValue(base_json.get(key));
+                        fields.put(key, base_fields.getValue(key));
+                        merged.add(key);
+                        continue;
+                    }
+                    if (token.isScalarValue())
+                    {
+                        fields.put(key, scalar_value(parser));
+                    }
+                    gen.copyCurrentStructure(parser);
                 }
-                else if (p.element_type == JSON_INDEXED_ARRAY)
+                for (Map.Entry<String,String> base : base_json.entrySet())
                 {
-                    // we currently support only a single index, e.g. "request_data[0]"
-                    current_array = current_object.getJsonArray(p.element_name);
-                    //System.out.println("MsgFiler.FilerUtils.RecordsFinder get() INDEXED_ARRAY "+p.element_name+"["+p.element_index+"]");
-                    current_object = current_array.getJsonObject(p.element_index);
+                    String key = base.getKey();
+                    if (!merged.contains(key))
+                    {
+                        gen.writeFieldName(key);
+                        gen.writeRawValue(base.getValue());
+                        fields.put(key, base_fields.getValue(key));
+                    }
                 }
+                gen.writeEndObject();
             }
-            return current_array;
+
+            store_immediate(fields, record_writer.toString());
         }
 
+        // Return the JSON encoding of the value at the current token of parser
+        private String encode(JsonParser parser) throws IOException
+        {
+            StringWriter value_writer = new StringWriter();
+            try (JsonGenerator gen = json_factory.createGenerator(value_writer))
+            {
+                gen.copyCurrentStructure(parser);
+            }
+            return value_writer.toString();
+        }
 
-        // A PathElement is {object, name} | {array, name} | {index, number}
-        // e.g.
-        // foo => OBJECT unless last element in path
-        // foo[7] => ARRAY followed by INDEX
-        class PathElement {
-            public int element_type; // JSON_OBJECT | JSON_ARRAY | JSON_INDEX
+        // Return the value of the scalar at the current token of parser, as decoded by JsonObject
+        private Object scalar_value(JsonParser parser) throws IOException
+        {
+            switch (parser.currentToken())
+            {
+                case VALUE_STRING:
+                    return parser.getText();
+                case VALUE_NUMBER_INT:
+                    return parser.getNumberValue();
+                case VALUE_NUMBER_FLOAT:
+                    return parser.getDoubleValue();
+                case VALUE_TRUE:
+                    return Boolean.TRUE;
+                case VALUE_FALSE:
+                    return Boolean.FALSE;
+                default:
+                    return null;
+            }
+        }
+    } // end class RecordsStreamer
 
-            public String element_name; // this is name of object/array
-            public int element_index; // int value of array index
-            public boolean element_indexed = false;
+    // Helper class to write the "flatten" records of a message directly as JSON strings.
+    // Each record is the original message WITHOUT the flatten field, with the fields of one
+    // element of the flatten array merged in, i.e. the same result as
+    //   msg.copy().remove(flatten); immediate_msg.mergeIn(element).toString()
+    // but without copying the message for every element.  The base fields are encoded once per
+    // message, base fields overridden by the element keep their original position, and the
+    // remaining element fields follow in element order, as with JsonObject.mergeIn().
+    class FlattenWriter {
 
-            public PathElement(String path_string, boolean last_element)
+        private String flatten; // name of the field to flatten, e.g. "request_data"
+
+        private JsonObject base_msg; // the current message, including the flatten field
+
+        private ArrayList<String> base_keys;      // keys of base_msg, excluding flatten field
+        private ArrayList<String> base_names;     // pre-encoded "key": for each of base_keys
+        private ArrayList<String> base_values;    // pre-encoded value for each of base_keys
+
+        private JsonObject element; // current element of the flatten array
+
+        private StringBuilder sb; // re-used to build each record string
+
+        private JsonObject fields; // JsonObject view of base_msg merged with element
+
+        public FlattenWriter(String config_flatten)
+        {
+            flatten = config_flatten;
+            base_keys = new ArrayList<String>();
+            base_names = new ArrayList<String>();
+            base_values = new ArrayList<String>();
+            sb = new StringBuilder(256);
+            fields = new JsonObject(new FieldsView());
+        }
+
+        // Set the message containing the flatten array, and encode its base fields
+        public void set_base(JsonObject msg)
+        {
+            base_msg = msg;
+            element = null;
+            base_keys.clear();
+            base_names.clear();
+            base_values.clear();
+            for (String key : msg.fieldNames())
             {
-                if (path_string.endsWith("]"))
+                if (key.equals(flatten))
                 {
-                    // e.g. foo[7] in a>foo[7]>b
-                    element_type = JSON_INDEXED_ARRAY;
-
-                    int open_bracket = path_string.indexOf('[');
-                    int close_bracket = path_string.indexOf(']');
-                    String array_index_string = path_string.substring(open_bracket+1,close_bracket);
+                    continue;
+                }
+                base_keys.add(key);
+                base_names.add(Json.encode(key)+":");
+                base_values.add(Json.encode(msg.getValue(key)));
+            }
+        }
 
-                    element_index = Integer.parseInt(array_index_string); // "foo[7]" -> "7"
+        // Return the JSON string for the base fields merged with 'e'
+        public String write(JsonObject e)
+        {
+            element = e;
 
-                    element_indexed = true;
+            sb.setLength(0);
+            sb.append('{');
+            boolean first = true;
 
-                    element_name = path_string.substring(0,open_bracket); // "foo[7]" -> "foo"
+            // base fields, with the value from the element if it overrides the base
+            for (int i=0; i<base_keys.size(); i++)
+            {
+                if (!first)
+                {
+                    sb.append(',');
                 }
-                else if (last_element)
+                first = false;
+                String key = base_keys.get(i);
+                sb.append(base_names.get(i));
+                if (element.containsKey(key))
                 {
-                    // e.g. "foo" from "a>b>foo"
-                    element_type = JSON_ARRAY;
-                    element_name = path_string;
+                    sb.append(Json.encode(element.getValue(key)));
                 }
                 else
                 {
-                    element_type = JSON_OBJECT;
-                    element_name = path_string;
+                    sb.append(base_values.get(i));
                 }
-
             }
 
-            public String toString()
+            // element fields not in the base
+            for (String key : element.fieldNames())
             {
-                if (element_type==JSON_OBJECT)
+                if (!key.equals(flatten) && base_msg.containsKey(key))
                 {
-                    return "OBJECT: " + element_name;
+                    continue;
                 }
-
-                if (element_type == JSON_ARRAY)
+                if (!first)
                 {
-                    return "ARRAY: " + element_name;
+                    sb.append(',');
                 }
+                first = false;
+                sb.append(Json.encode(key));
+                sb.append(':');
+                sb.append(Json.encode(element.getValue(key)));
+            }
+
+            sb.append('}');
+
+            return sb.toString();
+        }
+
+        // Return the fields of the current record, for build_string()
+        public JsonObject fields()
+        {
+            return fields;
+        }
+
+        // Read-only Map of the current record fields, i.e. the element fields
+        // falling back to the base fields. Only lookups are needed by build_string().
+        class FieldsView extends AbstractMap<String,Object> {
 
-                if (element_type == JSON_INDEXED_ARRAY)
+            @Override
+            public Object get(Object key)
+            {
+                if (element != null && element.containsKey((String) key))
+                {
+                    return element.getValue((String) key);
+                }
+                if (flatten.equals(key))
                 {
-                    return "INDEXED_ARRAY: "+ element_name + "["+element_index+"]";
+                    return null;
                 }
+                return base_msg.getValue((String) key);
+            }
 
-                return "MsgFiler.FilerUtils.RecordsFinder.PathElement.toString() BAD element_type";
+            @Override
+            public boolean containsKey(Object key)
+            {
+                return (element != null && element.containsKey((String) key)) ||
+                       (!flatten.equals(key) && base_msg.containsKey((String) key));
             }
 
-        } // end class PathElement
+            @Override
+            public Set<Map.Entry<String,Object>> entrySet()
+            {
+                // only used for debug printing, so simply build the merged map
+                Map<String,Object> merged = new LinkedHashMap<String,Object>(base_msg.getMap());
+                merged.remove(flatten);
+                if (element != null)
+                {
+                    merged.putAll(element.getMap());
+                }
+                return merged.entrySet();
+            }
+        } // end class FieldsView
 
-    } // end class RecordsFinder
+    } // end class FlattenWriter
 
 } // end class FilerUtils
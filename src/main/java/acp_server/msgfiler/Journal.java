@@ -0,0 +1,430 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// Journal.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// Journal is the optional MsgFiler write-ahead journal ("msgfiler.journal_path"), so the record writes
+// queued on the WriterPool are not lost if the JVM crashes.
+//
+// Each "append" / "log" record write is given a sequence number and appended to a sequential journal
+// in directory "<journal_path>/<module_id>", as a JSON line in the same format as the OverflowStore, e.g.
+//   { "f": "<filer_id>", "m": "append", "p": "/media/acp/.../x.txt", "k": null, "t": 0, "d": "<record>", "s": 1234 }
+// The journal lines are collected on the event loop and written with a single fsync every sync_ms
+// (i.e. 'group commit'), so the cost is close to the sequential disk bandwidth rather than an fsync per
+// record or per file.
+//
+// The Journal is told when each record write has been applied to its target file, and keeps the
+// 'applied' sequence number below which all the writes are done.  Every CHECKPOINT_PERIOD the applied
+// number from the *previous* checkpoint is written to the "checkpoint" file (giving the kernel one period
+// to write back the target files) and journal segments entirely before it are deleted.
+//
+// At startup recover() replays (BLOCKING, on the journal worker, before the eventbus consumers start)
+// all the journal entries after the checkpoint.  So a record may be written twice after a crash,
+// but a record in the journal will not be lost.  If the recovery fails (e.g. the journal directory
+// cannot be read) the journal is disabled, leaving its files for the next restart, and the MsgFiler
+// runs without it.
+//
+// The journal segment files are named by their first sequence number, e.g. 00000000000000001234.wal,
+// and are rolled at SEGMENT_BYTES.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+
+import acp_server.util.Log;
+
+public class Journal {
+
+    public static final String JOURNAL_SUFFIX = ".wal";
+    public static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final long SEGMENT_BYTES = 64L * 1024L * 1024L; // roll to a new journal segment at 64 MB
+    private final int CHECKPOINT_PERIOD = 30000;            // write the checkpoint every 30 seconds
+    private final int MAX_PENDING_CHARS = 1024 * 1024;      // write the journal early if this much is waiting
+
+    private String module_id; // for log messages
+
+    private String journal_dir;
+
+    private WorkerExecutor worker; // single thread for the journal file I/O
+
+    // event loop side
+    private boolean ready;          // recover() has completed
+    private boolean disabled;       // recover() failed, so nothing is journalled
+    private StringBuilder pending;  // journal lines waiting for the next group write
+    private long pending_seq;       // sequence number of the first pending line
+    private long next_seq;          // sequence number of the last record journalled
+    private long applied_seq;       // all records up to and including applied_seq have been applied
+    private long base_seq;          // sequence number of bit 0 of 'applied'
+    private BitSet applied;         // records after applied_seq that have been applied
+    private long checkpoint_seq;    // applied_seq at the last checkpoint
+    private boolean writing;        // a group write is in progress on the worker
+
+    // worker side
+    private OutputStream out;       // current journal segment
+    private java.nio.channels.FileChannel channel;
+    private long segment_length;
+
+    // status counters
+    private long bytes;
+    private long syncs;
+    private long recovered;
+
+    public Journal(Vertx vertx, String module_id, String journal_path, int sync_ms)
+    {
+        this.module_id = module_id;
+
+        journal_dir = journal_path + "/" + module_id;
+
+        worker = vertx.createSharedWorkerExecutor("msgfiler."+module_id+".journal", 1);
+
+        pending = new StringBuilder();
+        applied = new BitSet();
+
+        vertx.setPeriodic(sync_ms, id -> { write_pending(); });
+
+        vertx.setPeriodic(CHECKPOINT_PERIOD, id -> { checkpoint(); });
+    }
+
+    // *********************************************************************
+    // recover()
+    // Call 'apply' (BLOCKING, on the journal worker) with each journal entry after
+    // the checkpoint, then start a new journal segment and call 'done' on the event loop.
+    public void recover(Handler<JsonObject> apply, Handler<AsyncResult<Object>> done)
+    {
+        worker.executeBlocking(fut -> {
+                try
+                {
+                    recoverBlocking(apply);
+                    fut.complete();
+                }
+                catch (IOException e)
+                {
+                    fut.fail(e);
+                }
+            }, false, res -> {
+                if (res.failed())
+                {
+                    // with no open segment (and the old entries not replayed) the records cannot be journalled
+                    Log.log_err("MsgFiler."+module_id+": journal recovery failed, journal disabled: "+res.cause());
+                    disabled = true;
+                    close_segment();
+                }
+                else
+                {
+                    base_seq = applied_seq + 1;
+                    ready = true;
+                }
+                done.handle(res);
+            });
+    }
+
+    private void recoverBlocking(Handler<JsonObject> apply) throws IOException
+    {
+        new File(journal_dir).mkdirs();
+
+        long checkpoint = read_checkpoint();
+        long max_seq = checkpoint;
+
+        for (File segment : segments())
+        {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                                             new FileInputStream(segment), StandardCharsets.UTF_8)))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    JsonObject entry;
+                    try
+                    {
+                        entry = new JsonObject(line);
+                    }
+                    catch (Exception e)
+                    {
+                        // e.g. the last line was only partly written before the crash
+                        Log.log_err("MsgFiler."+module_id+": skipping bad journal entry in "+segment);
+                        continue;
+                    }
+                    long seq = entry.getLong("s", 0L);
+                    if (seq > checkpoint)
+                    {
+                        apply.handle(entry);
+                        recovered++;
+                    }
+                    max_seq = Math.max(max_seq, seq);
+                }
+            }
+        }
+
+        if (recovered > 0)
+        {
+            System.out.println("MsgFiler."+module_id+": journal recovered "+recovered+" records after "+checkpoint);
+        }
+
+        // everything up to max_seq is now applied, so the old segments can go
+        next_seq = max_seq;
+        applied_seq = max_seq;
+        checkpoint_seq = max_seq;
+        write_checkpoint(max_seq);
+
+        open_segment(max_seq + 1);
+    }
+
+    // *********************************************************************
+    // append()
+    // Add a record write 'entry' to the journal, returning its sequence number (or 0 if the journal is disabled)
+    public long append(JsonObject entry)
+    {
+        if (disabled)
+        {
+            return 0L;
+        }
+        long seq = ++next_seq;
+        if (pending.length() == 0)
+        {
+            pending_seq = seq;
+        }
+        pending.append(entry.put("s", seq).toString());
+        pending.append('\n');
+        if (pending.length() >= MAX_PENDING_CHARS)
+        {
+            write_pending();
+        }
+        return seq;
+    }
+
+    // *********************************************************************
+    // applied()
+    // The record write with sequence number 'seq' has been applied to its target
+    public void applied(long seq)
+    {
+        applied.set((int) (seq - base_seq));
+
+        while (applied.get((int) (applied_seq + 1 - base_seq)))
+        {
+            applied_seq++;
+        }
+
+        // drop the bits below applied_seq now and again
+        int shift = (int) (applied_seq + 1 - base_seq);
+        if (shift > 65536)
+        {
+            applied = applied.get(shift, Math.max(shift, applied.length()));
+            base_seq += shift;
+        }
+    }
+
+    // Write the pending journal lines on the worker, with a single fsync
+    private void write_pending()
+    {
+        if (!ready || writing || pending.length() == 0)
+        {
+            return;
+        }
+
+        writing = true;
+
+        byte[] group = pending.toString().getBytes(StandardCharsets.UTF_8);
+        pending.setLength(0);
+        long first_seq = pending_seq;
+
+        worker.executeBlocking(fut -> {
+                try
+                {
+                    if (segment_length >= SEGMENT_BYTES)
+                    {
+                        close_segment();
+                        open_segment(first_seq);
+                    }
+                    out.write(group);
+                    out.flush();
+                    channel.force(false);
+                    segment_length += group.length;
+                    fut.complete();
+                }
+                catch (IOException e)
+                {
+                    fut.fail(e);
+                }
+            }, false, res -> {
+                writing = false;
+                if (res.succeeded())
+                {
+                    bytes += group.length;
+                    syncs++;
+                }
+                else
+                {
+                    Log.log_err("MsgFiler."+module_id+": journal write failed: "+res.cause());
+                }
+            });
+    }
+
+    // Write the checkpoint as the applied_seq of the previous checkpoint, and delete old segments
+    private void checkpoint()
+    {
+        if (!ready)
+        {
+            return;
+        }
+
+        long seq = checkpoint_seq;
+        checkpoint_seq = applied_seq;
+
+        worker.executeBlocking(fut -> {
+                try
+                {
+                    write_checkpoint(seq);
+                    delete_segments(seq);
+                    fut.complete();
+                }
+                catch (IOException e)
+                {
+                    fut.fail(e);
+                }
+            }, false, res -> {
+                if (res.failed())
+                {
+                    Log.log_err("MsgFiler."+module_id+": journal checkpoint failed: "+res.cause());
+                }
+            });
+    }
+
+    // BLOCKING read of the checkpoint sequence number, or 0 if there is none
+    private long read_checkpoint() throws IOException
+    {
+        File f = new File(journal_dir + "/" + CHECKPOINT_FILE);
+        if (!f.exists())
+        {
+            return 0L;
+        }
+        String s = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim();
+        return s.length() == 0 ? 0L : Long.parseLong(s);
+    }
+
+    // BLOCKING write of the checkpoint file, via a temporary file so it is never partly written
+    private void write_checkpoint(long seq) throws IOException
+    {
+        File tmp_file = new File(journal_dir + "/" + CHECKPOINT_FILE + ".tmp");
+        try (FileOutputStream tmp_out = new FileOutputStream(tmp_file))
+        {
+            tmp_out.write(Long.toString(seq).getBytes(StandardCharsets.UTF_8));
+            tmp_out.getChannel().force(true);
+        }
+        Files.move(tmp_file.toPath(),
+                   new File(journal_dir + "/" + CHECKPOINT_FILE).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // BLOCKING delete of the segments whose entries are all <= seq, i.e. the next segment starts <= seq+1
+    private void delete_segments(long seq)
+    {
+        File[] files = segments();
+        for (int i=0; i<files.length-1; i++)
+        {
+            if (first_seq(files[i+1]) <= seq + 1)
+            {
+                files[i].delete();
+            }
+        }
+    }
+
+    // Return the journal segment files in sequence order
+    private File[] segments()
+    {
+        File[] files = new File(journal_dir).listFiles((dir, name) -> name.endsWith(JOURNAL_SUFFIX));
+        if (files == null)
+        {
+            return new File[0];
+        }
+        Arrays.sort(files); // names are zero-padded first sequence numbers
+        return files;
+    }
+
+    private static long first_seq(File segment)
+    {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - JOURNAL_SUFFIX.length()));
+    }
+
+    // Start a new journal segment whose first entry will be 'seq'
+    private void open_segment(long seq) throws IOException
+    {
+        FileOutputStream fos = new FileOutputStream(journal_dir + "/" + String.format("%020d", seq) + JOURNAL_SUFFIX, true);
+        channel = fos.getChannel();
+        out = new BufferedOutputStream(fos, 65536);
+        segment_length = channel.size();
+    }
+
+    private void close_segment()
+    {
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                Log.log_err("MsgFiler."+module_id+": journal close failed: "+e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    // Return the journal status for the MsgFiler status message
+    public JsonObject status()
+    {
+        return new JsonObject()
+            .put("seq", next_seq)
+            .put("applied_seq", applied_seq)
+            .put("checkpoint_seq", checkpoint_seq)
+            .put("bytes", bytes)
+            .put("syncs", syncs)
+            .put("recovered", recovered)
+            .put("disabled", disabled);
+    }
+
+    // BLOCKING write of any pending journal lines and close, e.g. on verticle stop
+    public void close()
+    {
+        byte[] group = pending.toString().getBytes(StandardCharsets.UTF_8);
+        pending.setLength(0);
+        worker.executeBlocking(fut -> {
+                try
+                {
+                    if (out != null)
+                    {
+                        out.write(group);
+                    }
+                }
+                catch (IOException e)
+                {
+                    Log.log_err("MsgFiler."+module_id+": journal close failed: "+e.getMessage());
+                }
+                close_segment();
+                fut.complete();
+            }, false, res -> { worker.close(); });
+    }
+
+} // end class Journal
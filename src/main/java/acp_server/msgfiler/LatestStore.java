@@ -0,0 +1,352 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// LatestStore.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// LatestStore is the MsgFiler "store_mode": "latest" store, i.e. the latest and previous message for each
+// key (e.g. feed_id or acp_id), as a replacement for "write" mode monitor files such as
+// data_monitor_json/post_data.json which rewrite (and rotate to .prev) a whole file for every message.
+//
+// The store is a single memory-mapped file "<store_path>/latest.slots" with a fixed-size slot per key:
+//
+//   file header (FILE_HEADER bytes):
+//     0  magic (long) "ACPLATES"
+//     8  slot_bytes (int)
+//     12 slots (int)
+//
+//   slot (slot_bytes, from FILE_HEADER + slot_index * slot_bytes):
+//     0  seq (long)        - seqlock sequence number, odd while the slot is being written
+//     8  current (int)     - which half (0 or 1) of the data area holds the latest message
+//     12 key_len (int)     - 0 for an unused slot
+//     16 len (int[2])      - length in bytes of the message in each half
+//     24 ts (long[2])      - time (epoch ms) each half was written
+//     64 key (UTF-8, up to MAX_KEY_BYTES)
+//     SLOT_HEADER          - data area, two halves of (slot_bytes - SLOT_HEADER) / 2 bytes
+//
+// A key's slot is found by linear probing from hash(key) % slots.  An update writes the new message into
+// the half that is not current and then flips 'current', so the previous message is kept without copying.
+// The update is bracketed by incrementing seq (to odd, then to even), so a reader (in this or another
+// process) that sees the same even seq before and after reading the slot knows the data is not torn, and
+// otherwise retries.  Each update is just a memory copy into the mapped file, with no syscalls, and the
+// kernel writes the dirty pages back to the file.
+//
+// The writes for a store are made by a single thread (the MsgFiler event loop).
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import io.vertx.core.json.JsonObject;
+
+import acp_server.util.Log;
+
+public class LatestStore {
+
+    public static final String SLOTS_FILE = "latest.slots";
+
+    private static final long MAGIC = 0x4143504c41544553L; // "ACPLATES"
+
+    private static final int FILE_HEADER = 64;
+    private static final int SLOT_HEADER = 512;
+    private static final int MAX_KEY_BYTES = SLOT_HEADER - 64;
+
+    // slot field offsets
+    private static final int SEQ = 0;
+    private static final int CURRENT = 8;
+    private static final int KEY_LEN = 12;
+    private static final int LEN = 16;
+    private static final int TS = 24;
+    private static final int KEY = 64;
+
+    private static final int READ_RETRIES = 1000;
+
+    // written (volatile) between the seqlock and data accesses as a memory fence, as the source
+    // level (1.8) has no VarHandle fences
+    private static volatile int fence;
+
+    private String module_id; // for log messages
+
+    private String file_path;
+
+    private MappedByteBuffer buf;
+
+    private int slot_bytes;
+    private int slots;
+    private int half_bytes; // max message bytes
+
+    private HashMap<String, Integer> slot_index; // key -> slot
+
+    // status counters
+    private long updates;
+    private long too_large;
+    private long full;
+
+    // Open (or create) the store in directory store_dir, with new stores having 'slots' slots of slot_kb KB
+    public LatestStore(String module_id, String store_dir, int slot_kb, int slots) throws IOException
+    {
+        this.module_id = module_id;
+
+        new File(store_dir).mkdirs();
+        file_path = store_dir + "/" + SLOTS_FILE;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file_path, "rw");
+             FileChannel channel = raf.getChannel())
+        {
+            if (channel.size() >= FILE_HEADER)
+            {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+                channel.read(header, 0L);
+                if (header.getLong(0) != MAGIC)
+                {
+                    throw new IOException("not a LatestStore file: "+file_path);
+                }
+                this.slot_bytes = header.getInt(8);
+                this.slots = header.getInt(12);
+            }
+            else
+            {
+                this.slot_bytes = slot_kb * 1024;
+                this.slots = slots;
+            }
+
+            long length = FILE_HEADER + (long) this.slot_bytes * this.slots;
+            if (this.slot_bytes <= SLOT_HEADER || length > Integer.MAX_VALUE)
+            {
+                throw new IOException("bad LatestStore size "+this.slots+" x "+this.slot_bytes+" for "+file_path);
+            }
+
+            // the file is sparse, so only the slots used take disk space
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0L, length);
+            if (buf.getLong(0) != MAGIC)
+            {
+                buf.putInt(8, this.slot_bytes);
+                buf.putInt(12, this.slots);
+                buf.putLong(0, MAGIC);
+            }
+        }
+
+        half_bytes = (slot_bytes - SLOT_HEADER) / 2;
+
+        // index the keys already in the store
+        slot_index = new HashMap<String, Integer>();
+        for (int i=0; i<this.slots; i++)
+        {
+            String key = slot_key(buf, FILE_HEADER + i * this.slot_bytes);
+            if (key != null)
+            {
+                slot_index.put(key, i);
+            }
+        }
+
+        System.out.println("MsgFiler."+module_id+": LatestStore "+file_path+" opened with "+
+                           slot_index.size()+" keys");
+    }
+
+    // *********************************************************************
+    // put()
+    // Write msg as the latest message for key, the current latest becoming the previous.
+    // Returns false if msg (or the key) is too large for a slot, or there is no free slot for a new key.
+    public boolean put(String key, String msg)
+    {
+        byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+        if (data.length > half_bytes || key.length() * 3 > MAX_KEY_BYTES)
+        {
+            if (too_large++ == 0)
+            {
+                Log.log_err("MsgFiler."+module_id+": LatestStore message for "+key+" larger than "+
+                            half_bytes+" bytes in "+file_path);
+            }
+            return false;
+        }
+
+        Integer slot = slot_index.get(key);
+        boolean new_key = slot == null;
+        if (new_key)
+        {
+            slot = free_slot(key);
+            if (slot == null)
+            {
+                if (full++ == 0)
+                {
+                    Log.log_err("MsgFiler."+module_id+": LatestStore full ("+slots+" keys) in "+file_path);
+                }
+                return false;
+            }
+            slot_index.put(key, slot);
+        }
+
+        int base = FILE_HEADER + slot * slot_bytes;
+
+        long seq = buf.getLong(base + SEQ);
+        buf.putLong(base + SEQ, seq + 1); // odd, i.e. being written
+        fence = 0;
+
+        if (new_key)
+        {
+            byte[] key_bytes = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer b = buf.duplicate();
+            b.position(base + KEY);
+            b.put(key_bytes);
+            buf.putInt(base + KEY_LEN, key_bytes.length);
+        }
+
+        int next = 1 - buf.getInt(base + CURRENT);
+        ByteBuffer b = buf.duplicate();
+        b.position(base + SLOT_HEADER + next * half_bytes);
+        b.put(data);
+        buf.putInt(base + LEN + 4 * next, data.length);
+        buf.putLong(base + TS + 8 * next, System.currentTimeMillis());
+        buf.putInt(base + CURRENT, next);
+
+        fence = 0;
+        buf.putLong(base + SEQ, seq + 2);
+
+        updates++;
+        return true;
+    }
+
+    // Return the first free slot for a new key, probing from its hash, or null if the store is full
+    private Integer free_slot(String key)
+    {
+        int start = Math.floorMod(key.hashCode(), slots);
+        for (int i=0; i<slots; i++)
+        {
+            int slot = (start + i) % slots;
+            if (buf.getInt(FILE_HEADER + slot * slot_bytes + KEY_LEN) == 0)
+            {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    // Return the key of the slot at 'base', or null if it is unused
+    private static String slot_key(ByteBuffer buf, int base)
+    {
+        int key_len = buf.getInt(base + KEY_LEN);
+        if (key_len <= 0 || key_len > MAX_KEY_BYTES)
+        {
+            return null;
+        }
+        byte[] key_bytes = new byte[key_len];
+        ByteBuffer b = buf.duplicate();
+        b.position(base + KEY);
+        b.get(key_bytes);
+        return new String(key_bytes, StandardCharsets.UTF_8);
+    }
+
+    // *********************************************************************
+    // read()
+    // BLOCKING read of the latest and previous messages for key from the LatestStore in store_dir, e.g.
+    //   { "key": "mqtt_acp", "latest": "<message>", "latest_ts": 1604484000123,
+    //                        "previous": "<message>", "previous_ts": 1604483990456 }
+    // or null if the key is not in the store.  May be used while MsgFiler is writing the store.
+    public static JsonObject read(String store_dir, String key) throws IOException
+    {
+        ByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(store_dir + "/" + SLOTS_FILE, "r");
+             FileChannel channel = raf.getChannel())
+        {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        }
+        if (buf.capacity() < FILE_HEADER || buf.getLong(0) != MAGIC)
+        {
+            throw new IOException("not a LatestStore file in "+store_dir);
+        }
+        int slot_bytes = buf.getInt(8);
+        int slots = buf.getInt(12);
+        int half_bytes = (slot_bytes - SLOT_HEADER) / 2;
+
+        int start = Math.floorMod(key.hashCode(), slots);
+        for (int i=0; i<slots; i++)
+        {
+            int base = FILE_HEADER + ((start + i) % slots) * slot_bytes;
+            for (int retry=0; retry<READ_RETRIES; retry++)
+            {
+                long seq = buf.getLong(base + SEQ);
+                if ((seq & 1L) != 0L)
+                {
+                    Thread.yield();
+                    continue;
+                }
+                fence = 0;
+
+                String slot_key = slot_key(buf, base);
+                JsonObject result = null;
+                if (key.equals(slot_key))
+                {
+                    int current = buf.getInt(base + CURRENT);
+                    result = new JsonObject().put("key", key);
+                    put_half(result, "latest", buf, base, current, half_bytes);
+                    put_half(result, "previous", buf, base, 1 - current, half_bytes);
+                }
+
+                fence = 0;
+                if (buf.getLong(base + SEQ) != seq)
+                {
+                    continue; // written while we read it, so try again
+                }
+
+                if (slot_key == null)
+                {
+                    return null; // an unused slot ends the probe
+                }
+                if (result != null)
+                {
+                    return result;
+                }
+                break; // another key, so probe the next slot
+            }
+        }
+        return null;
+    }
+
+    // Add the message in 'half' of the slot at base to result as property 'name' (and name+"_ts")
+    private static void put_half(JsonObject result, String name, ByteBuffer buf, int base, int half, int half_bytes)
+    {
+        int len = buf.getInt(base + LEN + 4 * half);
+        if (len <= 0 || len > half_bytes)
+        {
+            return;
+        }
+        byte[] data = new byte[len];
+        ByteBuffer b = buf.duplicate();
+        b.position(base + SLOT_HEADER + half * half_bytes);
+        b.get(data);
+        result.put(name, new String(data, StandardCharsets.UTF_8));
+        result.put(name+"_ts", buf.getLong(base + TS + 8 * half));
+    }
+
+    // Return the LatestStore status for the MsgFiler status message
+    public JsonObject status()
+    {
+        return new JsonObject()
+            .put("keys", slot_index.size())
+            .put("slots", slots)
+            .put("updates", updates)
+            .put("too_large", too_large)
+            .put("full", full);
+    }
+
+    // Ask the kernel to write the store back to the file, e.g. on MsgFiler stop()
+    public void close()
+    {
+        buf.force();
+    }
+
+} // end class LatestStore
@@ -0,0 +1,310 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// LogReader.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// LogReader provides read access to a MsgFiler "store_mode": "log" directory written by LogStore.
+//
+// E.g. to get the records for sensor "elsys-eye-044504" between two times (epoch milliseconds):
+//
+//   LogReader reader = new LogReader("/media/acp/mqtt_acp/log");
+//   List<String> records = reader.read("elsys-eye-044504", from_ts, to_ts);
+//
+// or to iterate all records in a time range:
+//
+//   reader.scan(from_ts, to_ts, record -> { ... });
+//
+// The .log segment files are read via memory-mapped I/O, each as a single mapping, so the int offsets
+// rely on a segment being under 2 GB (log_segment_mb is at most FilerConfig.MAX_LOG_SEGMENT_MB).  The key index of each segment is loaded
+// once and cached, except for the active (last) segment which is incrementally re-loaded as it grows.
+//
+// All methods are BLOCKING, so a verticle should call them via vertx.executeBlocking.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import io.vertx.core.Handler;
+
+public class LogReader {
+
+    private String log_dir;
+
+    // cached index for each segment number
+    private HashMap<Integer, SegmentIndex> segment_indexes;
+
+    public LogReader(String log_dir)
+    {
+        this.log_dir = log_dir;
+        segment_indexes = new HashMap<Integer, SegmentIndex>();
+    }
+
+    // *********************************************************************
+    // read()
+    // Return the records with the given key and from_ts <= ts <= to_ts (epoch ms)
+    public synchronized List<String> read(String key, long from_ts, long to_ts) throws IOException
+    {
+        List<String> result = new ArrayList<String>();
+
+        for (int n : LogStore.segments(log_dir))
+        {
+            SegmentIndex index = segment_index(n);
+
+            if (index.count == 0 || index.max_ts < from_ts || index.min_ts > to_ts)
+            {
+                continue;
+            }
+
+            RecordList records = index.keys.get(key);
+            if (records == null)
+            {
+                continue;
+            }
+
+            for (int i=0; i<records.size; i++)
+            {
+                int r = records.records[i];
+                if (index.ts[r] >= from_ts && index.ts[r] <= to_ts)
+                {
+                    result.add(index.read_line(index.pos[r]));
+                }
+            }
+        }
+        return result;
+    }
+
+    // *********************************************************************
+    // scan()
+    // Call handler with each record with from_ts <= ts <= to_ts (epoch ms), in log order
+    public synchronized void scan(long from_ts, long to_ts, Handler<String> handler) throws IOException
+    {
+        for (int n : LogStore.segments(log_dir))
+        {
+            SegmentIndex index = segment_index(n);
+
+            if (index.count == 0 || index.max_ts < from_ts || index.min_ts > to_ts)
+            {
+                continue;
+            }
+
+            // use the sparse time index to skip the records that are all before from_ts
+            int r = index.record_at(index.start_position(from_ts));
+
+            for ( ; r<index.count; r++)
+            {
+                if (index.ts[r] >= from_ts && index.ts[r] <= to_ts)
+                {
+                    handler.handle(index.read_line(index.pos[r]));
+                }
+            }
+        }
+    }
+
+    // Return the (up to date) index for segment n
+    private SegmentIndex segment_index(int n) throws IOException
+    {
+        SegmentIndex index = segment_indexes.get(n);
+        if (index == null)
+        {
+            index = new SegmentIndex(LogStore.segment_name(log_dir, n));
+            segment_indexes.put(n, index);
+        }
+        index.refresh();
+        return index;
+    }
+
+    // Growable list of record numbers for a key
+    private static class RecordList {
+        int[] records = new int[4];
+        int size = 0;
+
+        void add(int r)
+        {
+            if (size == records.length)
+            {
+                records = java.util.Arrays.copyOf(records, size * 2);
+            }
+            records[size++] = r;
+        }
+    }
+
+    // *****************************************************************************************
+    // SegmentIndex holds the key index of a segment in memory, plus the mapped .log and .tix files
+    private static class SegmentIndex {
+
+        String name;      // segment filename without suffix
+
+        int count;        // number of records
+        long[] ts;        // ts of each record, in log order
+        long[] pos;       // .log position of each record, in log order
+        long min_ts;
+        long max_ts;
+        HashMap<String, RecordList> keys; // key -> record numbers
+
+        long kix_loaded;  // bytes of .kix file loaded so far
+
+        ByteBuffer log_map;   // memory-mapped .log file
+        ByteBuffer tix_map;   // memory-mapped .tix file
+
+        SegmentIndex(String name)
+        {
+            this.name = name;
+            ts = new long[1024];
+            pos = new long[1024];
+            keys = new HashMap<String, RecordList>();
+        }
+
+        // Load any .kix entries added since the last refresh, and re-map files that have grown
+        void refresh() throws IOException
+        {
+            File kix_file = new File(name + LogStore.KEY_INDEX_SUFFIX);
+            long kix_length = kix_file.length();
+            if (kix_length > kix_loaded)
+            {
+                ByteBuffer kix = map(kix_file, kix_length);
+                kix.position((int) kix_loaded);
+                while (kix.remaining() >= 2)
+                {
+                    int start = kix.position();
+                    int key_length = kix.getShort() & 0xffff;
+                    if (kix.remaining() < key_length + 16)
+                    {
+                        // partially written entry, pick it up on next refresh
+                        kix.position(start);
+                        break;
+                    }
+                    byte[] key_bytes = new byte[key_length];
+                    kix.get(key_bytes);
+                    add(new String(key_bytes, StandardCharsets.UTF_8), kix.getLong(), kix.getLong());
+                }
+                kix_loaded = kix.position();
+            }
+
+            File log_file = new File(name + LogStore.LOG_SUFFIX);
+            if (log_map == null || log_map.capacity() < log_file.length())
+            {
+                log_map = map(log_file, log_file.length());
+            }
+
+            File tix_file = new File(name + LogStore.TIME_INDEX_SUFFIX);
+            if (tix_map == null || tix_map.capacity() < tix_file.length())
+            {
+                tix_map = map(tix_file, tix_file.length());
+            }
+        }
+
+        private void add(String key, long record_ts, long record_pos)
+        {
+            if (count == ts.length)
+            {
+                ts = java.util.Arrays.copyOf(ts, count * 2);
+                pos = java.util.Arrays.copyOf(pos, count * 2);
+            }
+            ts[count] = record_ts;
+            pos[count] = record_pos;
+            min_ts = count == 0 ? record_ts : Math.min(min_ts, record_ts);
+            max_ts = count == 0 ? record_ts : Math.max(max_ts, record_ts);
+
+            RecordList records = keys.get(key);
+            if (records == null)
+            {
+                records = new RecordList();
+                keys.put(key, records);
+            }
+            records.add(count);
+
+            count++;
+        }
+
+        // Return the .log position from which records with ts >= from_ts may appear, i.e.
+        // the position of the last .tix entry whose max_ts (of all preceding records) < from_ts
+        long start_position(long from_ts)
+        {
+            int entries = tix_map.capacity() / LogStore.TIME_INDEX_ENTRY_BYTES;
+            int lo = 0;
+            int hi = entries - 1;
+            long start = 0L;
+            while (lo <= hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                long entry_ts = tix_map.getLong(mid * LogStore.TIME_INDEX_ENTRY_BYTES);
+                if (mid == 0 || entry_ts < from_ts)
+                {
+                    start = tix_map.getLong(mid * LogStore.TIME_INDEX_ENTRY_BYTES + 8);
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid - 1;
+                }
+            }
+            return start;
+        }
+
+        // Return the number of the first record at or after .log position p
+        int record_at(long p)
+        {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (pos[mid] < p)
+                {
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        // Return the line of text in the .log file starting at position p
+        String read_line(long p)
+        {
+            int limit = log_map.capacity();
+            int start = (int) Math.min(p, limit);
+            int end = start;
+            while (end < limit && log_map.get(end) != '\n')
+            {
+                end++;
+            }
+            byte[] line = new byte[end - start];
+            ByteBuffer b = log_map.duplicate();
+            b.position(start);
+            b.get(line);
+            return new String(line, StandardCharsets.UTF_8);
+        }
+
+        // Return file f memory-mapped READ_ONLY, or an empty buffer if f does not exist (yet)
+        private static ByteBuffer map(File f, long length) throws IOException
+        {
+            if (!f.exists())
+            {
+                return ByteBuffer.allocate(0);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+                 FileChannel channel = raf.getChannel())
+            {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, channel.size()));
+            }
+        }
+    } // end class SegmentIndex
+
+} // end class LogReader
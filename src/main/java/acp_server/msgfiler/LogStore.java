@@ -0,0 +1,323 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// LogStore.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// LogStore is the writer for the MsgFiler "store_mode": "log" storage backend.
+//
+// Instead of one file per sensor per day (or one file per message), the records for a store_path
+// directory are appended to a sequence of 'segment' files, which are rolled to a new segment when
+// they reach log_segment_mb in size.  Each segment NNNNNNNNNN consists of:
+//
+//   NNNNNNNNNN.log - the records, one JSON record per line, exactly as in "append" mode files.
+//   NNNNNNNNNN.tix - sparse time index, an entry every log_index_records records, each entry being
+//                    (long max_ts, long position) where max_ts is the highest record timestamp
+//                    (epoch milliseconds) in the segment *before* 'position', so entries are
+//                    always increasing even if record timestamps are not.
+//   NNNNNNNNNN.kix - key index, an entry for every record: (short key_length, key UTF-8 bytes,
+//                    long ts, long position), where 'key' is the record store_name, e.g. {{acp_id}}.
+//
+// When a segment is re-opened (e.g. after a crash) the files are truncated to the last complete record,
+// i.e. the last complete .kix entry whose .log line is complete, so a torn entry is not followed by new ones.
+//
+// All methods are BLOCKING and are called from FilerUtils via vertx.executeBlocking.  The
+// LogReader class provides the matching read API.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import acp_server.util.Log;
+
+public class LogStore {
+
+    public static final String LOG_SUFFIX = ".log";
+    public static final String TIME_INDEX_SUFFIX = ".tix";
+    public static final String KEY_INDEX_SUFFIX = ".kix";
+
+    public static final int TIME_INDEX_ENTRY_BYTES = 16; // long max_ts, long position
+
+    private String module_id; // for log messages
+
+    private String log_dir; // directory containing the segment files
+
+    private long segment_bytes;  // roll to a new segment when .log file exceeds this size
+    private int index_records;   // add a .tix entry every index_records records
+
+    // current (active) segment
+    private int segment;            // segment number, i.e. NNNNNNNNNN
+    private long position;          // current size of the .log file, i.e. position of next record
+    private int segment_records;    // count of records in current segment
+    private long max_ts;            // highest record ts in current segment (running max)
+
+    private OutputStream log_out;
+    private DataOutputStream tix_out;
+    private DataOutputStream kix_out;
+
+    public LogStore(String module_id, String log_dir, long segment_bytes, int index_records)
+    {
+        this.module_id = module_id;
+        this.log_dir = log_dir;
+        this.segment_bytes = segment_bytes;
+        this.index_records = index_records;
+        segment = -1;
+    }
+
+    // Return the filename (without suffix) of segment n, e.g. "/foo/bah/0000000003"
+    public static String segment_name(String log_dir, int n)
+    {
+        return log_dir + "/" + String.format("%010d", n);
+    }
+
+    // Return the list of segment numbers in log_dir, in ascending order
+    public static int[] segments(String log_dir)
+    {
+        File dir = new File(log_dir);
+        String[] names = dir.list((d, name) -> name.endsWith(LOG_SUFFIX));
+        if (names == null)
+        {
+            return new int[0];
+        }
+        int[] result = new int[names.length];
+        for (int i=0; i<names.length; i++)
+        {
+            result[i] = Integer.parseInt(names[i].substring(0, names[i].length() - LOG_SUFFIX.length()));
+        }
+        java.util.Arrays.sort(result);
+        return result;
+    }
+
+    // *********************************************************************
+    // append()
+    // BLOCKING append of record 'msg' with 'key' and timestamp 'ts' (epoch ms)
+    // On an IOException (e.g. disk full) the segment is closed, to be re-opened by the next append.
+    public synchronized void append(String key, long ts, String msg) throws IOException
+    {
+        try
+        {
+            if (segment < 0)
+            {
+                open();
+            }
+            else if (position >= segment_bytes)
+            {
+                roll();
+            }
+
+            byte[] msg_bytes = (msg + "\n").getBytes(StandardCharsets.UTF_8);
+
+            // sparse time index entry every index_records records
+            if (segment_records % index_records == 0)
+            {
+                tix_out.writeLong(segment_records == 0 ? ts : max_ts);
+                tix_out.writeLong(position);
+            }
+
+            log_out.write(msg_bytes);
+
+            byte[] key_bytes = key.getBytes(StandardCharsets.UTF_8);
+            kix_out.writeShort(key_bytes.length);
+            kix_out.write(key_bytes);
+            kix_out.writeLong(ts);
+            kix_out.writeLong(position);
+
+            log_out.flush();
+            tix_out.flush();
+            kix_out.flush();
+
+            position += msg_bytes.length;
+            segment_records++;
+            max_ts = segment_records == 1 ? ts : Math.max(max_ts, ts);
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgFiler."+module_id+": LogStore append failed for "+log_dir+": "+e.getMessage());
+            close_segment();
+            segment = -1;
+            throw e;
+        }
+    }
+
+    // Close the current segment files, e.g. on verticle stop
+    public synchronized void close()
+    {
+        close_segment();
+        segment = -1;
+    }
+
+    // Open the latest segment in log_dir for appending, or create segment 0
+    private void open() throws IOException
+    {
+        new File(log_dir).mkdirs();
+
+        int[] existing = segments(log_dir);
+
+        if (existing.length == 0)
+        {
+            open_segment(0);
+            return;
+        }
+
+        int n = existing[existing.length-1];
+
+        // recover current segment state from the key index (one entry per record)
+        String name = segment_name(log_dir, n);
+        segment_records = 0;
+        max_ts = 0L;
+        long kix_length = 0L;     // end of the last complete entry
+        long last_position = -1L; // .log position of the last record
+        long kix_previous = 0L;   // end of the entry before the last
+        long max_ts_previous = 0L;
+        try (DataInputStream kix = new DataInputStream(new BufferedInputStream(
+                                       new FileInputStream(name + KEY_INDEX_SUFFIX))))
+        {
+            while (true)
+            {
+                int key_length = kix.readUnsignedShort();
+                if (kix.skipBytes(key_length) < key_length)
+                {
+                    break; // torn entry
+                }
+                long ts = kix.readLong();
+                long record_position = kix.readLong();
+                kix_previous = kix_length;
+                max_ts_previous = max_ts;
+                kix_length += 2 + key_length + 16;
+                last_position = record_position;
+                max_ts = segment_records == 0 ? ts : Math.max(max_ts, ts);
+                segment_records++;
+            }
+        }
+        catch (EOFException e)
+        {
+            // end of key index (or a torn entry)
+        }
+        catch (FileNotFoundException e)
+        {
+            // no key index, e.g. segment created but never written
+        }
+
+        // the end of the last record's line in the .log, or drop the record if its line is incomplete
+        long log_length = 0L;
+        if (segment_records > 0)
+        {
+            log_length = line_end(name + LOG_SUFFIX, last_position);
+            if (log_length < 0L)
+            {
+                log_length = last_position;
+                kix_length = kix_previous;
+                max_ts = max_ts_previous;
+                segment_records--;
+            }
+        }
+        long tix_length = (long) ((segment_records + index_records - 1) / index_records) * TIME_INDEX_ENTRY_BYTES;
+
+        // remove anything after the last complete record, e.g. a torn entry left by a crash
+        truncate(name + LOG_SUFFIX, log_length);
+        truncate(name + TIME_INDEX_SUFFIX, tix_length);
+        truncate(name + KEY_INDEX_SUFFIX, kix_length);
+
+        open_segment(n);
+        System.out.println("MsgFiler."+module_id+": LogStore opened "+name+LOG_SUFFIX+
+                           " with "+segment_records+" records ("+position+" bytes)");
+    }
+
+    // Return the position after the newline ending the line at position in file_path, or -1 if it has none
+    private static long line_end(String file_path, long position) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file_path, "r"))
+        {
+            if (position < 0L || position >= raf.length())
+            {
+                return -1L;
+            }
+            raf.seek(position);
+            InputStream in = new BufferedInputStream(new FileInputStream(raf.getFD()));
+            long p = position;
+            int b;
+            while ((b = in.read()) >= 0)
+            {
+                p++;
+                if (b == '\n')
+                {
+                    return p;
+                }
+            }
+            return -1L;
+        }
+        catch (FileNotFoundException e)
+        {
+            return -1L;
+        }
+    }
+
+    // Truncate file_path to length if it is longer
+    private void truncate(String file_path, long length) throws IOException
+    {
+        File f = new File(file_path);
+        if (f.length() > length)
+        {
+            System.out.println("MsgFiler."+module_id+": LogStore truncating "+file_path+" from "+f.length()+
+                               " to "+length+" bytes");
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw"))
+            {
+                raf.setLength(length);
+            }
+        }
+    }
+
+    // Close the current segment and start a new one
+    private void roll() throws IOException
+    {
+        int n = segment + 1;
+        close_segment();
+        segment_records = 0;
+        max_ts = 0L;
+        open_segment(n);
+        System.out.println("MsgFiler."+module_id+": LogStore rolled to "+segment_name(log_dir, n)+LOG_SUFFIX);
+    }
+
+    // Open the segment files for segment n in append mode
+    private void open_segment(int n) throws IOException
+    {
+        String name = segment_name(log_dir, n);
+        File log_file = new File(name + LOG_SUFFIX);
+        position = log_file.length();
+
+        // note FileOutputStream second arg 'true' => APPEND MODE
+        log_out = new BufferedOutputStream(new FileOutputStream(log_file, true));
+        tix_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(name + TIME_INDEX_SUFFIX, true)));
+        kix_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(name + KEY_INDEX_SUFFIX, true)));
+
+        segment = n;
+    }
+
+    private void close_segment()
+    {
+        close_stream(log_out);
+        close_stream(tix_out);
+        close_stream(kix_out);
+        log_out = null;
+        tix_out = null;
+        kix_out = null;
+    }
+
+    private void close_stream(OutputStream s)
+    {
+        if (s != null) try {
+                s.close();
+            } catch (IOException ioe) {
+                // just ignore it
+            }
+    }
+
+} // end class LogStore
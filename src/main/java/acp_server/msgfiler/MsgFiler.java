@@ -4,7 +4,7 @@ package acp_server.msgfiler;
 // *************************************************************************************************
 // *************************************************************************************************
 // MsgFiler.java
-// Version 0.04
+// Version 0.05
 // Author: Ian Lewis ijl20@cam.ac.uk
 //
 // Forms part of the 'acp_server' next-generation Adaptive City Platform
@@ -27,7 +27,25 @@ package acp_server.msgfiler;
 //      e.g. "/home/ijl20/tfc_server_data/data_zone/{{ts|yyyy}}/{{ts|MM}}/{{ts|dd}}"
 //   "store_name" : a parameterized string giving the filename for storing the message
 //      e.g. "{{module_id}}.txt"
-//   "store_mode" : "write" | "append", defining whether the given file should be written or appended
+//   "store_mode" : "write" | "append" | "log", defining whether the given file should be written or appended,
+//      or for "log" appended to the segmented log in directory store_path (see LogStore)
+//
+// The BLOCKING file writes of all the filers are run on a WriterPool of "msgfiler.writer_threads" workers,
+// keeping the order of the writes to each file.
+//
+// If the writes fail (e.g. disk full) or stay backed up for "msgfiler.max_pause_seconds" the MsgFiler is
+// DEGRADED and "append" / "log" records are spilled to an OverflowStore in "msgfiler.overflow_path" (or
+// dropped if not set), and drained back in order when the writes recover.
+//
+// With "msgfiler.journal_path" set, the "append" / "log" records are also written to a sequential write-ahead
+// Journal (fsync every "msgfiler.journal_sync_ms"), which is replayed at startup so queued writes are not lost
+// in a crash.
+//
+// "append" files can have a sidecar time index (filer "index_records"), and with "msgfiler.query_address" set
+// MsgFiler replies to eventbus requests for the records in a time range of a file (see query()).
+//
+// With "msgfiler.shard_address" set, several MsgFiler instances (each with its own module.id) share the
+// records of filers with a "shard_key" (e.g. "acp_id"), each record stored by one instance (see ShardRing).
 //
 // Publishes periodic status UP messages to address given in config as "eb.system_status"
 //
@@ -38,15 +56,21 @@ package acp_server.msgfiler;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.eventbus.impl.MessageConsumerImpl;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 // other tfc_server classes
 import acp_server.util.Log;
+import acp_server.util.Constants;
 
 public class MsgFiler extends AbstractVerticle {
     // from config()
@@ -56,8 +80,33 @@ public class MsgFiler extends AbstractVerticle {
     private String EB_MANAGER;        // config eb.manager
 
     private ArrayList<FilerConfig> START_FILERS; // config msgfilers.filers parameters
+    private int WRITER_THREADS;       // config msgfiler.writer_threads, default 4
+    private int WRITER_HIGH_WATER;    // config msgfiler.writer_high_water, default 10000
+    private String OVERFLOW_PATH;     // config msgfiler.overflow_path, directory for the OverflowStore, default none
+    private int MAX_PAUSE_SECONDS;    // config msgfiler.max_pause_seconds, default 30
+    private int MAX_BUFFERED_MB;      // config msgfiler.max_buffered_mb, messages buffered by paused consumers, default 100
+    private String JOURNAL_PATH;      // config msgfiler.journal_path, directory for the write-ahead Journal, default none
+    private int JOURNAL_SYNC_MS;      // config msgfiler.journal_sync_ms, journal group fsync period, default 100
+    private String QUERY_ADDRESS;     // config msgfiler.query_address, eventbus address for time-range queries, default none
+    private String SHARD_ADDRESS;     // config msgfiler.shard_address, eventbus address shared by sharded MsgFilers, default none
+    private String SHARD_ID;          // config msgfiler.shard_id, unique id in the shard group, default module.id
+
+    private WriterPool writer_pool; // worker threads for the file writes of all the filers
+
+    private OverflowStore overflow; // records are spilled here when the storage is failing
+
+    private Journal journal; // optional write-ahead journal of the record writes, or null
+
+    private ShardRing shard_ring; // optional ring of the sharded MsgFilers, or null
+
+    private ArrayList<FilerUtils> filers; // the running filers, for status and stop()
+    private HashMap<String,FilerUtils> filer_ids; // filer_id -> filer, for the overflow and journal entries
+
+    private final int QUERY_LIMIT = 10000; // default max records in a query reply
 
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
+
+    private final long STOP_WAIT_MS = 10000; // stop() waits up to 10 s for the writes in flight
     private final int SYSTEM_STATUS_AMBER_SECONDS = 25;
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
 
@@ -78,10 +127,76 @@ public class MsgFiler extends AbstractVerticle {
 
     eb = vertx.eventBus();
 
-    // iterate through all the filers to be started
+    filers = new ArrayList<FilerUtils>();
+    filer_ids = new HashMap<String,FilerUtils>();
+
+    // the file writes are run on WRITER_THREADS workers, with the eventbus consumers paused
+    // if more than WRITER_HIGH_WATER writes are waiting, until the count falls to half that,
+    // buffering up to about MAX_BUFFERED_MB of messages meanwhile.
+    writer_pool = new WriterPool(vertx, MODULE_ID, WRITER_THREADS, WRITER_HIGH_WATER, WRITER_HIGH_WATER / 2,
+                                 MAX_BUFFERED_MB * 1048576L);
+
+    // if a write fails or the consumers stay paused for MAX_PAUSE_SECONDS the records are spilled to the
+    // overflow (or dropped if no OVERFLOW_PATH), and drained back to the filers when the writes recover.
+    overflow = new OverflowStore(vertx, MODULE_ID, OVERFLOW_PATH, writer_pool,
+                                 MAX_PAUSE_SECONDS * 1000L, WRITER_HIGH_WATER / 2,
+                                 entry -> {
+                                     FilerUtils filer = entry_filer(entry);
+                                     if (filer != null)
+                                     {
+                                         filer.replay(entry);
+                                     }
+                                 });
+
+    if (JOURNAL_PATH != null)
+        {
+            journal = new Journal(vertx, MODULE_ID, JOURNAL_PATH, JOURNAL_SYNC_MS);
+        }
+
+    // filers with a "shard_key" store only the records owned by this instance of the SHARD_ADDRESS group
+    if (SHARD_ADDRESS != null)
+        {
+            shard_ring = new ShardRing(vertx, SHARD_ADDRESS, SHARD_ID);
+        }
+
+    // create all the filers, so any journal entries can be replayed before the consumers start
     for (int i=0; i<START_FILERS.size(); i++)
         {
-            start_filer(START_FILERS.get(i));
+            FilerUtils filer = new FilerUtils(vertx, START_FILERS.get(i), writer_pool, overflow, journal, shard_ring);
+            filers.add(filer);
+            if (filer_ids.put(START_FILERS.get(i).filer_id, filer) != null)
+            {
+                Log.log_err("MsgFiler."+MODULE_ID+": duplicate filer_id \""+START_FILERS.get(i).filer_id+
+                            "\", set a unique \"filer_id\" in the filer config");
+            }
+        }
+
+    if (QUERY_ADDRESS != null)
+        {
+            eb.consumer(QUERY_ADDRESS, message -> { query(message); });
+        }
+
+    if (journal == null)
+        {
+            start_filers();
+        }
+    else
+        {
+            // (filer_ids is not changed once the filers are created, so can be read on the journal worker)
+            journal.recover(entry -> {
+                                FilerUtils filer = entry_filer(entry);
+                                if (filer != null)
+                                {
+                                    filer.replayBlocking(entry);
+                                }
+                            },
+                            res -> {
+                                for (FilerUtils filer : filers)
+                                {
+                                    filer.replayed();
+                                }
+                                start_filers();
+                            });
         }
 
     // send system status message from this module (i.e. to itself) immediately on startup, then periodically
@@ -92,24 +207,115 @@ public class MsgFiler extends AbstractVerticle {
 
   } // end start()
 
+  @Override
+  public void stop(Promise<Void> stop_promise) throws Exception {
+    // hand this instance's shard keys to the other MsgFilers
+    if (shard_ring != null)
+        {
+            shard_ring.close();
+        }
+    // stop taking messages and let the writes in flight finish (for up to STOP_WAIT_MS) before the files
+    // they write to are closed
+    long timer_id = vertx.setTimer(STOP_WAIT_MS, id -> {
+            Log.log_err("MsgFiler."+MODULE_ID+": stopping with "+writer_pool.in_flight()+" writes in flight");
+            close_files(stop_promise);
+        });
+    writer_pool.drain(v -> {
+            if (vertx.cancelTimer(timer_id))
+            {
+                close_files(stop_promise);
+            }
+        });
+  } // end stop()
+
+    // close any open files, e.g. finish the gzip members of compressed files, then complete stop_promise
+    private void close_files(Promise<Void> stop_promise)
+    {
+        for (int i=0; i<filers.size(); i++)
+        {
+            filers.get(i).close();
+        }
+        writer_pool.close();
+        overflow.close();
+        if (journal != null)
+        {
+            journal.close();
+        }
+        stop_promise.complete();
+    }
+
     // send UP status to the EventBus
+    // including the status values (e.g. compression ratio) of any filers that provide them,
+    // with status_msg "DEGRADED" while records are being spilled to the overflow
     private void send_status()
     {
-        eb.publish(EB_SYSTEM_STATUS,
-                 "{ \"module_name\": \""+MODULE_NAME+"\"," +
-                   "\"module_id\": \""+MODULE_ID+"\"," +
-                   "\"status\": \"UP\"," +
-                   "\"status_msg\": \"UP\"," +
-                   "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
-                   "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
-                 "}" );
+        JsonObject overflow_status = overflow.status();
+
+        JsonObject status = new JsonObject()
+            .put("module_name", MODULE_NAME)
+            .put("module_id", MODULE_ID)
+            .put("status", "UP")
+            .put("status_msg", overflow_status.getBoolean("degraded") ? "DEGRADED" : "UP")
+            .put("status_amber_seconds", SYSTEM_STATUS_AMBER_SECONDS)
+            .put("status_red_seconds", SYSTEM_STATUS_RED_SECONDS);
+
+        JsonArray filers_status = new JsonArray();
+        for (int i=0; i<filers.size(); i++)
+            {
+                JsonObject filer_status = filers.get(i).status();
+                if (filer_status != null)
+                    {
+                        filers_status.add(filer_status);
+                    }
+            }
+        if (filers_status.size() > 0)
+            {
+                status.put("filers", filers_status);
+            }
+
+        status.put("writer_pool", writer_pool.status());
+        status.put("overflow", overflow_status);
+
+        if (journal != null)
+            {
+                status.put("journal", journal.status());
+            }
+
+        if (shard_ring != null)
+            {
+                status.put("shard", shard_ring.status());
+            }
+
+        eb.publish(EB_SYSTEM_STATUS, status.toString());
+    }
+
+    // start all the filers
+    private void start_filers()
+    {
+        for (int i=0; i<filers.size(); i++)
+            {
+                start_filer(START_FILERS.get(i), filers.get(i));
+            }
+    }
+
+    // Return the filer of an overflow or journal entry, by its "f" filer_id, or null (logged) if the
+    // filer is no longer configured, e.g. an entry written before a restart with a changed config
+    private FilerUtils entry_filer(JsonObject entry)
+    {
+        Object filer_id = entry.getValue("f");
+        FilerUtils filer = filer_ids.get(filer_id instanceof String ? (String) filer_id : null);
+        if (filer == null)
+            {
+                Log.log_err("MsgFiler."+MODULE_ID+": no filer \""+filer_id+"\", skipping record for "+entry.getString("p"));
+            }
+        return filer;
     }
 
     // ************************************************************
     // start_filer()
     // start a Filer by registering a consumer to the given address
     // ************************************************************
-    private void start_filer(FilerConfig filer_config)
+    private void start_filer(FilerConfig filer_config, FilerUtils filer_utils)
     {
         String filer_filter;
         if (filer_config.source_filter == null)
@@ -122,24 +328,118 @@ public class MsgFiler extends AbstractVerticle {
             }
         System.out.println("MsgFiler."+MODULE_ID+": starting filer "+filer_config.source_address+ filer_filter);
 
-        FilerUtils filer_utils = new FilerUtils(vertx, filer_config);
-
         // register to filer_config.source_address,
         // test messages with filer_config.source_filter
         // and call store_msg if current message passes filter
-        eb.consumer(filer_config.source_address, message -> {
+        MessageConsumer<Object> consumer = eb.consumer(filer_config.source_address, message -> {
             //System.out.println("MsgFiler."+MODULE_ID+": got message from " + filer_config.source_address);
-            JsonObject msg = new JsonObject(message.body().toString());
-
-            //System.out.println(msg.toString());
-
             // store this message if it matches the filter within the FilerConfig
-            filer_utils.store_msg(msg);
+            // (FilerUtils decodes the message unless it can stream the "records_data" records)
+            String msg_str = message.body().toString();
+            writer_pool.received(msg_str.length());
+            filer_utils.store_msg(msg_str);
 
         });
 
+        // the consumer will be paused while the writer_pool has too many writes waiting, buffering
+        // its share of MAX_BUFFERED_MB of messages.  A message arriving when the buffer is full would
+        // be discarded by the eventbus, so instead the OverflowStore takes over and it is spilled.
+        if (consumer instanceof MessageConsumerImpl)
+            {
+                ((MessageConsumerImpl<Object>) consumer).discardHandler(message -> {
+                        overflow.buffer_full();
+                        filer_utils.store_msg(message.body().toString());
+                    });
+            }
+        writer_pool.add_consumer(consumer);
+
     } // end start_filer
 
+    // ************************************************************
+    // query()
+    // Reply to a QUERY_ADDRESS request for the records in a time range of an "append" file, e.g.
+    //   { "file": "/media/acp/mqtt_acp/2020/11/04/mqtt_acp_2020-11-04.txt",
+    //     "from_ts": 1604484000, "to_ts": 1604487600,         (unix timestamps, inclusive)
+    //     "field": "acp_id", "value": "elsys-eye-044504",      (optional)
+    //     "limit": 10000,                                      (optional, max records returned)
+    //     "scan": true                                         (optional, ignore the index e.g. to compare)
+    //   }
+    // with { "records": [ ... ], "stats": { ... } }, using the sidecar index of the file (see AppendIndex)
+    // ************************************************************
+    private void query(Message<Object> message)
+    {
+        JsonObject q = new JsonObject(message.body().toString());
+
+        String file_path = q.getString("file");
+        FilerConfig filer_config = query_filer(file_path);
+        if (filer_config == null)
+            {
+                message.fail(404, "file not in a MsgFiler store_path: "+file_path);
+                return;
+            }
+
+        long from_ts = (long) (q.getDouble("from_ts", 0.0) * 1000);
+        long to_ts = (long) (q.getDouble("to_ts", (double) Long.MAX_VALUE / 1000) * 1000);
+        int limit = q.getInteger("limit", QUERY_LIMIT);
+
+        vertx.<JsonObject>executeBlocking(fut -> {
+                JsonArray records = new JsonArray();
+                try
+                {
+                    AppendIndexReader reader = new AppendIndexReader(filer_config.store_ts);
+                    JsonObject stats = reader.query(file_path, from_ts, to_ts,
+                                                    q.getString("field"), q.getString("value"),
+                                                    !q.getBoolean("scan", false),
+                                                    line -> {
+                                                        if (records.size() < limit)
+                                                        {
+                                                            records.add(new JsonObject(line));
+                                                        }
+                                                    });
+                    fut.complete(new JsonObject().put("records", records).put("stats", stats));
+                }
+                catch (IOException e)
+                {
+                    fut.fail(e);
+                }
+            }, false, res -> {
+                if (res.succeeded())
+                    {
+                        message.reply(res.result().toString());
+                    }
+                else
+                    {
+                        Log.log_err("MsgFiler."+MODULE_ID+": query failed for "+file_path+": "+res.cause());
+                        message.fail(500, res.cause().getMessage());
+                    }
+            });
+    }
+
+    // Return the config of the "append" filer whose store_path contains file_path, or null
+    private FilerConfig query_filer(String file_path)
+    {
+        if (file_path == null || file_path.contains(".."))
+            {
+                return null;
+            }
+        for (FilerConfig filer_config : START_FILERS)
+            {
+                if (!filer_config.store_mode.equals(Constants.FILE_APPEND))
+                    {
+                        continue;
+                    }
+                // the fixed part of the store_path, before any {{..}} parameters
+                String store_path = filer_config.store_path;
+                int p = store_path.indexOf("{{");
+                String root = p < 0 ? store_path : store_path.substring(0, p);
+                if (file_path.startsWith(root))
+                    {
+                        return filer_config;
+                    }
+            }
+        return null;
+    }
+
 
     //**************************************************************************
     //**************************************************************************
@@ -182,6 +482,17 @@ public class MsgFiler extends AbstractVerticle {
           return false;
         }
 
+        WRITER_THREADS = config().getInteger(MODULE_NAME+".writer_threads", 4);
+        WRITER_HIGH_WATER = config().getInteger(MODULE_NAME+".writer_high_water", 10000);
+        OVERFLOW_PATH = config().getString(MODULE_NAME+".overflow_path");
+        MAX_PAUSE_SECONDS = config().getInteger(MODULE_NAME+".max_pause_seconds", 30);
+        MAX_BUFFERED_MB = config().getInteger(MODULE_NAME+".max_buffered_mb", 100);
+        JOURNAL_PATH = config().getString(MODULE_NAME+".journal_path");
+        JOURNAL_SYNC_MS = config().getInteger(MODULE_NAME+".journal_sync_ms", 100);
+        QUERY_ADDRESS = config().getString(MODULE_NAME+".query_address");
+        SHARD_ADDRESS = config().getString(MODULE_NAME+".shard_address");
+        SHARD_ID = config().getString(MODULE_NAME+".shard_id", MODULE_ID);
+
         // iterate through the msgfiler.filers config values
         START_FILERS = new ArrayList<FilerConfig>();
         JsonArray config_filer_list = config().getJsonArray(MODULE_NAME+".filers");
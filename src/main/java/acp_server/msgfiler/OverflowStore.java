@@ -0,0 +1,338 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// OverflowStore.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// OverflowStore provides the 'degraded' mode of a MsgFiler, for when the storage is failing (e.g. disk full)
+// or so slow that the WriterPool has kept the eventbus consumers paused for longer than max_pause_ms (after
+// which the messages buffered in the paused consumers would start to be discarded).
+//
+// When a record write fails, the WriterPool has been paused for max_pause_ms (checked every CHECK_PERIOD,
+// as no records arrive while paused) or a paused consumer's buffer is full, the MsgFiler becomes
+// 'degraded' and from then on *all* the records are 'spilled', in order, to a single sequential overflow file
+// "<msgfiler.overflow_path>/<module_id>.overflow" (ideally on a different disk) instead of to their target files,
+// and the paused consumers are resumed (see WriterPool.release()) so their buffered messages are spilled too.
+// Each overflow line is a JSON object describing the write, e.g.
+//   { "f": "<filer_id>", "m": "append", "p": "/media/acp/.../x.txt", "k": null, "t": 0, "d": "<record>" }
+// where "f" is the filer_id of the filer in the MsgFiler config (see FilerConfig, FilerUtils.write_record()).
+//
+// Every DRAIN_PERIOD, if the WriterPool is below its low water mark, the overflow is read back in chunks
+// and re-applied to the target files in order.  When the whole overflow file has been drained it is
+// truncated and the MsgFiler returns to normal.  If there is no overflow_path, or the spill itself fails,
+// the records are dropped.  The spilled / drained / dropped counts are in the MsgFiler status message.
+//
+// spill() and the drain are called on the event loop, with the overflow file I/O done in order on a
+// single worker thread.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+
+import acp_server.util.Log;
+
+public class OverflowStore {
+
+    private final int DRAIN_PERIOD = 10000;  // try to drain the overflow every 10 seconds
+    private final int CHECK_PERIOD = 1000;   // check how long the writer_pool has been paused every second
+    private final int DRAIN_CHUNK = 1000;    // max records re-applied per drain
+    private final int DRAIN_NEXT = 100;      // delay before draining the next chunk (ms)
+
+    private Vertx vertx;
+
+    private String module_id; // for log messages
+
+    private String overflow_file; // null if no overflow_path, so records will be dropped when degraded
+
+    private WriterPool writer_pool;
+    private long max_pause_ms;   // become degraded if the writer_pool consumers are paused for this long
+    private int low_water;       // only drain when writer_pool is at or below this count
+
+    private WorkerExecutor worker; // single thread for the overflow file I/O
+
+    private long drain_timer;
+    private long check_timer;
+
+    private boolean degraded;
+    private boolean draining;
+    private long spill_seq;                 // count of spills submitted to the worker
+    private ArrayList<JsonObject> tail;     // records held in memory while the last of the overflow is drained
+    private long read_position;  // worker side: overflow file position of next record to drain
+
+    // status counters
+    private long spilled;
+    private long drained;
+    private long dropped;
+    private long write_errors;
+    private long degraded_count;
+
+    public OverflowStore(Vertx vertx,
+                         String module_id,
+                         String overflow_path,
+                         WriterPool writer_pool,
+                         long max_pause_ms,
+                         int low_water,
+                         Handler<JsonObject> replay_handler)
+    {
+        this.vertx = vertx;
+        this.module_id = module_id;
+        this.writer_pool = writer_pool;
+        this.max_pause_ms = max_pause_ms;
+        this.low_water = low_water;
+
+        overflow_file = overflow_path == null ? null : overflow_path + "/" + module_id + ".overflow";
+
+        worker = vertx.createSharedWorkerExecutor("msgfiler."+module_id+".overflow", 1);
+
+        if (overflow_file != null)
+        {
+            // pick up any overflow left from a previous run
+            File f = new File(overflow_file);
+            if (f.length() > 0)
+            {
+                System.out.println("MsgFiler."+module_id+": found "+f.length()+" bytes of overflow in "+overflow_file);
+                degraded = true;
+                degraded_count++;
+            }
+        }
+
+        drain_timer = vertx.setPeriodic(DRAIN_PERIOD, id -> { drain(replay_handler); });
+
+        check_timer = vertx.setPeriodic(CHECK_PERIOD, id -> { degraded(); });
+    }
+
+    // Return true if records should be spilled rather than written to their target files
+    public boolean degraded()
+    {
+        if (!degraded && writer_pool.paused_ms() >= max_pause_ms)
+        {
+            start_degraded("writer pool paused with "+writer_pool.in_flight()+" writes in flight");
+        }
+        return degraded;
+    }
+
+    // A paused consumer has no room for another message, so the records are spilled from now on
+    public void buffer_full()
+    {
+        if (!degraded)
+        {
+            start_degraded("eventbus consumer buffer full with "+writer_pool.in_flight()+" writes in flight");
+        }
+    }
+
+    // A write to its target file has failed, so the record is spilled and we become degraded
+    public void write_failed(JsonObject entry, Throwable cause)
+    {
+        write_errors++;
+        if (!degraded)
+        {
+            start_degraded("write failed for "+entry.getString("p")+": "+cause);
+        }
+        spill(entry);
+    }
+
+    private void start_degraded(String reason)
+    {
+        degraded = true;
+        degraded_count++;
+        Log.log_err("MsgFiler."+module_id+": DEGRADED, "+reason+", "+
+                    (overflow_file == null ? "dropping records" : "spilling records to "+overflow_file));
+        // the records no longer wait for the writes in flight
+        writer_pool.release();
+    }
+
+    // *********************************************************************
+    // spill()
+    // Append the write 'entry' to the overflow file (in order), or drop it
+    public void spill(JsonObject entry)
+    {
+        if (overflow_file == null)
+        {
+            dropped++;
+            return;
+        }
+
+        if (tail != null)
+        {
+            tail.add(entry);
+            return;
+        }
+
+        spill_seq++;
+
+        String line = entry.toString() + "\n";
+
+        worker.executeBlocking(fut -> {
+                // note FileOutputStream second arg 'true' => APPEND MODE
+                try (OutputStream out = new FileOutputStream(overflow_file, true))
+                {
+                    out.write(line.getBytes(StandardCharsets.UTF_8));
+                    fut.complete();
+                }
+                catch (IOException e)
+                {
+                    fut.fail(e);
+                }
+            }, false, res -> {
+                if (res.succeeded())
+                {
+                    spilled++;
+                }
+                else
+                {
+                    dropped++;
+                }
+            });
+    }
+
+    // *********************************************************************
+    // drain()
+    // If degraded and the writer_pool has capacity, read the next chunk of the overflow
+    // file on the worker and pass each entry to replay_handler, in order.
+    private void drain(Handler<JsonObject> replay_handler)
+    {
+        if (!degraded || draining || writer_pool.paused() || writer_pool.in_flight() > low_water)
+        {
+            return;
+        }
+
+        if (overflow_file == null)
+        {
+            // nothing to drain, the records were dropped
+            end_degraded();
+            return;
+        }
+
+        draining = true;
+
+        long drain_seq = spill_seq;
+
+        worker.<ArrayList<JsonObject>>executeBlocking(fut -> {
+                try
+                {
+                    fut.complete(read_chunk());
+                }
+                catch (IOException e)
+                {
+                    fut.fail(e);
+                }
+            }, false, res -> {
+                draining = false;
+                if (res.failed())
+                {
+                    Log.log_err("MsgFiler."+module_id+": overflow drain failed: "+res.cause());
+                    return;
+                }
+                ArrayList<JsonObject> entries = res.result();
+                for (JsonObject entry : entries)
+                {
+                    replay_handler.handle(entry);
+                }
+                drained += entries.size();
+                if (entries.size() > 0)
+                {
+                    // carry on with the next chunk, as soon as the writer_pool has caught up
+                    vertx.setTimer(DRAIN_NEXT, id -> { drain(replay_handler); });
+                    return;
+                }
+                // The worker found the end of the overflow and truncated it.  If records were spilled
+                // after this drain was submitted they are now in the file, so hold new records in
+                // memory and drain again until the file is empty with nothing spilled behind it.
+                if (spill_seq != drain_seq)
+                {
+                    if (tail == null)
+                    {
+                        tail = new ArrayList<JsonObject>();
+                    }
+                    drain(replay_handler);
+                    return;
+                }
+                if (tail != null)
+                {
+                    for (JsonObject entry : tail)
+                    {
+                        replay_handler.handle(entry);
+                    }
+                    drained += tail.size();
+                    tail = null;
+                }
+                end_degraded();
+            });
+    }
+
+    private void end_degraded()
+    {
+        degraded = false;
+        System.out.println("MsgFiler."+module_id+": recovered from DEGRADED, "+
+                           drained+" records drained, "+dropped+" dropped");
+    }
+
+    // BLOCKING read of up to DRAIN_CHUNK entries from read_position, truncating the
+    // overflow file (and returning no entries) when it has all been read
+    private ArrayList<JsonObject> read_chunk() throws IOException
+    {
+        ArrayList<JsonObject> entries = new ArrayList<JsonObject>();
+
+        try (RandomAccessFile raf = new RandomAccessFile(overflow_file, "rw"))
+        {
+            if (read_position >= raf.length())
+            {
+                raf.setLength(0);
+                read_position = 0L;
+                return entries;
+            }
+
+            raf.seek(read_position);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                                        new FileInputStream(raf.getFD()), StandardCharsets.UTF_8));
+            String line;
+            while (entries.size() < DRAIN_CHUNK && (line = reader.readLine()) != null)
+            {
+                read_position += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                try
+                {
+                    entries.add(new JsonObject(line));
+                }
+                catch (Exception e)
+                {
+                    Log.log_err("MsgFiler."+module_id+": skipping bad overflow record");
+                }
+            }
+        }
+        return entries;
+    }
+
+    // Return the overflow status for the MsgFiler status message
+    public JsonObject status()
+    {
+        return new JsonObject()
+            .put("degraded", degraded)
+            .put("degraded_count", degraded_count)
+            .put("spilled", spilled)
+            .put("drained", drained)
+            .put("dropped", dropped)
+            .put("write_errors", write_errors);
+    }
+
+    public void close()
+    {
+        vertx.cancelTimer(drain_timer);
+        vertx.cancelTimer(check_timer);
+        worker.close();
+    }
+
+} // end class OverflowStore
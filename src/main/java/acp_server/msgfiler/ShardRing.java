@@ -0,0 +1,439 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// ShardRing.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// ShardRing shares the records of a feed between the MsgFiler instances (on one node or across the
+// cluster) configured with the same "msgfiler.shard_address", so each record is stored by exactly one
+// instance and no two instances append to the same file.
+//
+// Each instance publishes a heartbeat on the shard_address every HEARTBEAT_PERIOD, e.g.
+//   { "member": "mqtt_acp_1", "since": 1604484000123 }
+// and keeps the members heard from in the last EXPIRE_MS.  A filer with a "shard_key" (e.g. "acp_id")
+// stores a record only if owner() of its key is OWNER, i.e. this instance, where the owner is chosen by
+// rendezvous (highest random weight) hashing of the key with each active member.  So when a member joins
+// or leaves only the keys it owns move, and the other keys stay with the same instance (and file).
+//
+// A new member becomes active at its "since" time + SETTLE_MS, by which time every member has heard its
+// heartbeat.  Each member has a timer for that instant (rather than waiting for the next heartbeat), so
+// all the members switch the moved keys at the same moment (give or take their clock difference).
+//
+// The owner of a key is UNRESOLVED while no member is active (e.g. for SETTLE_MS after the instances, or
+// a single instance, have started), and while its owner is 'suspect', i.e. has missed a heartbeat (so may
+// have crashed).  Every instance then defer()s the record, holding up to MAX_DEFERRED records, and when
+// the ring changes (a member becomes active, leaves or expires) or the suspect member is heard again, the
+// deferred records are tried again: the new owner stores them and the other instances discard them.  So a
+// record is not lost while the ring settles, and is stored by one instance at a time.
+//
+// Each instance also retain()s the records owned by another member until that member's next heartbeat, as
+// it may crash before storing them.  If the member expires instead, the records it was sent since its last
+// heartbeat are stored by their new owners.  So a crash may store up to a heartbeat period of the crashed
+// member's records twice (by it and the new owner), rather than lose them.
+//
+// A member that stops publishes "leave" so the others take over its keys at once.  A member is expired
+// EXPIRE_MS after its last heartbeat, by a timer reset by each heartbeat.
+//
+// The members must have distinct ids ("msgfiler.shard_id", default module.id), and their clocks are
+// assumed to be roughly in step (well within SETTLE_MS).
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class ShardRing {
+
+    private final int HEARTBEAT_PERIOD = 2000; // publish heartbeat every 2 seconds
+    private final long EXPIRE_MS = 7000L;      // forget a member not heard for 7 seconds
+    private final long SETTLE_MS = 5000L;      // a new member is active 5 seconds after it starts
+    private final long SUSPECT_MS = 3000L;     // a member's keys are deferred after a missed heartbeat
+    private final int MAX_DEFERRED = 100000;   // the most records held while their owner is unresolved
+
+    // the results of owner()
+    public static final int OWNER = 0;      // this instance stores the record
+    public static final int OTHER = 1;      // another instance stores the record
+    public static final int UNRESOLVED = 2; // defer() the record until the ring settles
+
+    private Vertx vertx;
+
+    private String shard_address; // eventbus address of the heartbeats
+
+    private String member_id; // this instance, e.g. the module.id
+
+    private long since; // start time of this member
+
+    private HashMap<String, Member> members; // member_id -> member, including this one
+
+    private long[] active_seeds; // hash seeds of the active members, for owner()
+    private String[] active_ids; // ids of the active members, in the same order
+
+    private ArrayDeque<Deferred> deferred; // records whose owner was unresolved, oldest first
+
+    private MessageConsumer<Object> consumer;
+    private long timer_id;
+
+    // status counters
+    private long owned;
+    private long skipped;
+    private long changes;
+    private long deferred_count;
+    private long dropped;
+
+    public ShardRing(Vertx vertx, String shard_address, String member_id)
+    {
+        this.vertx = vertx;
+        this.shard_address = shard_address;
+        this.member_id = member_id;
+
+        since = System.currentTimeMillis();
+
+        members = new HashMap<String, Member>();
+        add_member(member_id, since);
+
+        active_seeds = new long[0];
+        active_ids = new String[0];
+
+        deferred = new ArrayDeque<Deferred>();
+
+        consumer = vertx.eventBus().consumer(shard_address, message -> {
+                heartbeat(new JsonObject(message.body().toString()));
+            });
+
+        publish(false);
+        timer_id = vertx.setPeriodic(HEARTBEAT_PERIOD, id -> {
+                publish(false);
+            });
+    }
+
+    // *********************************************************************
+    // owner()
+    // Return OWNER if this instance should store the record with shard key 'key', OTHER if another instance
+    // stores it, or UNRESOLVED if the record should be defer()red
+    public int owner(String key)
+    {
+        int best = best(key);
+
+        if (best < 0 || active_suspect(best))
+        {
+            return UNRESOLVED;
+        }
+        if (active_ids[best].equals(member_id))
+        {
+            owned++;
+            return OWNER;
+        }
+        skipped++;
+        return OTHER;
+    }
+
+    // Hold a record whose owner() is UNRESOLVED, calling store when (and if) this instance becomes its owner
+    public void defer(String key, Handler<Void> store)
+    {
+        if (deferred.size() >= MAX_DEFERRED)
+        {
+            deferred.poll();
+            if (dropped++ == 0)
+            {
+                System.err.println("MsgFiler.ShardRing."+member_id+": "+MAX_DEFERRED+
+                                   " records deferred while the ring settles, dropping the oldest");
+            }
+        }
+        deferred.add(new Deferred(key, store));
+        deferred_count++;
+    }
+
+    // Hold a record whose owner() is OTHER until its owner's next heartbeat, calling store if the owner expires
+    // instead and this instance becomes the owner
+    public void retain(String key, Handler<Void> store)
+    {
+        int best = best(key);
+        Member member = best < 0 ? null : members.get(active_ids[best]);
+        if (member == null)
+        {
+            return;
+        }
+        if (member.unconfirmed.size() >= MAX_DEFERRED)
+        {
+            member.unconfirmed.poll();
+        }
+        member.unconfirmed.add(new Deferred(key, store));
+    }
+
+    // Try the deferred records again, after a change to the ring
+    private void replay()
+    {
+        int count = deferred.size();
+        for (int i=0; i<count; i++)
+        {
+            Deferred d = deferred.poll();
+            int owner = owner(d.key);
+            if (owner == OWNER)
+            {
+                d.store.handle(null);
+            }
+            else if (owner == UNRESOLVED)
+            {
+                deferred.add(d); // (kept in order, as all the records are requeued)
+            }
+        }
+    }
+
+    // Return the index of the active member that owns key, or -1 if there are no active members
+    private int best(String key)
+    {
+        long key_hash = mix(key == null ? 0L : key.hashCode());
+
+        int best = -1;
+        long best_weight = 0L;
+        for (int i=0; i<active_seeds.length; i++)
+        {
+            long weight = mix(key_hash ^ active_seeds[i]);
+            if (best < 0 || Long.compareUnsigned(weight, best_weight) > 0)
+            {
+                best = i;
+                best_weight = weight;
+            }
+        }
+        return best;
+    }
+
+    // Return true if the active member i (other than this one) has missed a heartbeat
+    private boolean active_suspect(int i)
+    {
+        if (active_ids[i].equals(member_id))
+        {
+            return false;
+        }
+        Member member = members.get(active_ids[i]);
+        return member == null || System.currentTimeMillis() - member.last_seen > SUSPECT_MS;
+    }
+
+    // Record a heartbeat (or "leave") from a member
+    private void heartbeat(JsonObject msg)
+    {
+        String id = msg.getString("member");
+        if (id == null || id.equals(member_id))
+        {
+            return;
+        }
+
+        if (msg.getBoolean("leave", false))
+        {
+            // (a member that leaves has stored the records it was sent)
+            Member member = members.remove(id);
+            if (member != null)
+            {
+                member.cancel_timers();
+                update_active();
+            }
+            return;
+        }
+
+        Member member = members.get(id);
+        if (member == null)
+        {
+            System.out.println("MsgFiler.ShardRing."+member_id+": member joined "+id);
+            member = add_member(id, msg.getLong("since", System.currentTimeMillis()));
+        }
+        boolean was_suspect = System.currentTimeMillis() - member.last_seen > SUSPECT_MS;
+        member.last_seen = System.currentTimeMillis();
+        // the member was alive after the records it was sent
+        member.unconfirmed.clear();
+
+        // expire the member EXPIRE_MS after this heartbeat, unless it is heard again
+        vertx.cancelTimer(member.expire_timer);
+        final Member expiring = member;
+        member.expire_timer = vertx.setTimer(EXPIRE_MS, t -> {
+                if (members.get(expiring.id) == expiring)
+                {
+                    System.out.println("MsgFiler.ShardRing."+member_id+": member expired "+expiring.id);
+                    members.remove(expiring.id);
+                    expiring.cancel_timers();
+                    // the records it may not have stored go to their new owners
+                    deferred.addAll(expiring.unconfirmed);
+                    expiring.unconfirmed.clear();
+                    update_active();
+                }
+            });
+
+        // the records deferred while the member was suspect are now its (or still another's)
+        if (was_suspect && !deferred.isEmpty())
+        {
+            replay();
+        }
+    }
+
+    // Add a member, with a timer to make it active at its since + SETTLE_MS
+    private Member add_member(String id, long member_since)
+    {
+        Member member = new Member(id, member_since);
+        members.put(id, member);
+        long delay = member_since + SETTLE_MS - System.currentTimeMillis();
+        if (delay < 1L)
+        {
+            update_active();
+        }
+        else
+        {
+            member.settle_timer = vertx.setTimer(delay, t -> {
+                    member.settle_timer = -1L;
+                    update_active();
+                });
+        }
+        return member;
+    }
+
+    // Recalculate the active members (those past their since + SETTLE_MS), and if they have changed
+    // try the deferred records again
+    private void update_active()
+    {
+        long now = System.currentTimeMillis();
+
+        ArrayList<String> ids = new ArrayList<String>();
+        for (Member member : members.values())
+        {
+            if (now - member.since >= SETTLE_MS)
+            {
+                ids.add(member.id);
+            }
+        }
+        Collections.sort(ids);
+
+        if (ids.equals(Arrays.asList(active_ids)))
+        {
+            return;
+        }
+
+        String[] new_ids = ids.toArray(new String[ids.size()]);
+        long[] new_seeds = new long[new_ids.length];
+        for (int i=0; i<new_ids.length; i++)
+        {
+            new_seeds[i] = members.get(new_ids[i]).seed;
+        }
+        active_ids = new_ids;
+        active_seeds = new_seeds;
+        changes++;
+
+        System.out.println("MsgFiler.ShardRing."+member_id+": active members "+ids);
+
+        replay();
+    }
+
+    private void publish(boolean leave)
+    {
+        JsonObject msg = new JsonObject()
+            .put("member", member_id)
+            .put("since", since);
+        if (leave)
+        {
+            msg.put("leave", true);
+        }
+        vertx.eventBus().publish(shard_address, msg.toString());
+    }
+
+    // 64-bit finalizer of MurmurHash3, spreading the bits of h
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Return the ShardRing status for the MsgFiler status message
+    public JsonObject status()
+    {
+        return new JsonObject()
+            .put("member", member_id)
+            .put("active", new JsonArray(Arrays.asList((Object[]) active_ids)))
+            .put("members", members.size())
+            .put("owned", owned)
+            .put("skipped", skipped)
+            .put("deferred", deferred.size())
+            .put("deferred_total", deferred_count)
+            .put("dropped", dropped)
+            .put("changes", changes);
+    }
+
+    // Leave the ring, e.g. on verticle stop, so the other members take over this member's keys
+    public void close()
+    {
+        vertx.cancelTimer(timer_id);
+        for (Member member : members.values())
+        {
+            member.cancel_timers();
+        }
+        consumer.unregister();
+        publish(true);
+    }
+
+    // A member of the ring
+    private class Member {
+        String id;
+        long since;     // start time, the member is active SETTLE_MS after this
+        long last_seen; // time of the last heartbeat
+        long seed;      // hash seed for owner()
+        long settle_timer = -1L; // timer to make the member active
+        long expire_timer = -1L; // timer to expire the member if not heard again
+        ArrayDeque<Deferred> unconfirmed = new ArrayDeque<Deferred>(); // retain()ed since the last heartbeat
+
+        Member(String id, long since)
+        {
+            this.id = id;
+            this.since = since;
+            last_seen = System.currentTimeMillis();
+            // from the characters of the id, so every instance has the same seed for the member
+            long h = 1125899906842597L;
+            for (int i=0; i<id.length(); i++)
+            {
+                h = 31*h + id.charAt(i);
+            }
+            seed = mix(h);
+        }
+
+        // (a Vertx timer id is >= 0)
+        void cancel_timers()
+        {
+            if (settle_timer >= 0L)
+            {
+                vertx.cancelTimer(settle_timer);
+            }
+            if (expire_timer >= 0L)
+            {
+                vertx.cancelTimer(expire_timer);
+            }
+        }
+    }
+
+    // A record held by defer()
+    private static class Deferred {
+        String key;
+        Handler<Void> store;
+
+        Deferred(String key, Handler<Void> store)
+        {
+            this.key = key;
+            this.store = store;
+        }
+    }
+
+} // end class ShardRing
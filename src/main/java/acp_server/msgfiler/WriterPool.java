@@ -0,0 +1,244 @@
+package acp_server.msgfiler;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// WriterPool.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// WriterPool runs the BLOCKING file writes of a MsgFiler on a set of single-threaded workers.
+//
+// Each write is given a 'key', normally the file path, and all writes with the same key go to the same
+// worker (hash of key -> worker) so the append order of each file is kept, while writes to different
+// files proceed in parallel.
+//
+// The pool counts the writes queued on each worker.  When the total in-flight reaches high_water the
+// registered eventbus MessageConsumers are paused, and they are resumed when it falls to low_water.
+// A paused consumer buffers the messages still arriving, up to about max_buffered_bytes in all (from the
+// average size of the messages received), and then passes them to its discard handler (see MsgFiler).
+// release() resumes the consumers early, when the OverflowStore has taken over the records.
+//
+// Each write may have a result handler, called on the event loop after the write, e.g. so FilerUtils can
+// spill the record to the OverflowStore if the write failed.
+//
+// drain() is used when the MsgFiler stops: the consumers are paused (and not resumed) and the handler is
+// called when the writes in flight have completed, so the files can then be closed.
+//
+// submit() must be called on the verticle event loop, and the counts are only updated on the event loop
+// (in the executeBlocking result handler) so no locking is needed.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.util.ArrayList;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import acp_server.util.Log;
+
+public class WriterPool {
+
+    private String module_id; // for log messages
+
+    private WorkerExecutor[] workers;
+    private int[] queue_depth;   // writes submitted but not completed, per worker
+
+    private int in_flight;       // total of queue_depth
+    private int high_water;      // pause consumers at this in_flight
+    private int low_water;       // resume consumers at this in_flight
+
+    private ArrayList<MessageConsumer<?>> consumers;
+    private boolean paused;
+    private long pause_count;    // number of times the consumers have been paused
+    private long paused_at;      // System.currentTimeMillis() when last paused
+
+    private long max_buffered_bytes; // bound on the messages buffered by the paused consumers
+    private double message_bytes = 1000.0; // moving average size of the messages received
+
+    private Handler<Void> drained; // from drain(), called when in_flight falls to 0
+
+    public WriterPool(Vertx vertx, String module_id, int threads, int high_water, int low_water,
+                      long max_buffered_bytes)
+    {
+        this.module_id = module_id;
+        this.high_water = high_water;
+        this.low_water = low_water;
+        this.max_buffered_bytes = max_buffered_bytes;
+
+        workers = new WorkerExecutor[threads];
+        queue_depth = new int[threads];
+        for (int i=0; i<threads; i++)
+        {
+            // a pool size of 1 means the writes on each worker are executed in order
+            workers[i] = vertx.createSharedWorkerExecutor("msgfiler."+module_id+".writer."+i, 1);
+        }
+
+        consumers = new ArrayList<MessageConsumer<?>>();
+    }
+
+    // Add an eventbus consumer to be paused/resumed with the pool in_flight count
+    public void add_consumer(MessageConsumer<?> consumer)
+    {
+        consumers.add(consumer);
+    }
+
+    // Note the size of a message received by a consumer, for the bound on the messages buffered while paused
+    public void received(int bytes)
+    {
+        message_bytes += (bytes - message_bytes) / 1000.0;
+    }
+
+    // *********************************************************************
+    // submit()
+    // Run the BLOCKING 'write' on the worker for 'key', after any earlier writes for that key
+    public void submit(String key, Handler<Promise<Object>> write)
+    {
+        submit(key, write, null);
+    }
+
+    // As submit() above, with 'result' called on the event loop when the write completes or fails
+    public void submit(String key, Handler<Promise<Object>> write, Handler<AsyncResult<Object>> result)
+    {
+        int worker = Math.floorMod(key.hashCode(), workers.length);
+
+        queue_depth[worker]++;
+        in_flight++;
+        if (!paused && in_flight >= high_water)
+        {
+            pause();
+        }
+
+        workers[worker].executeBlocking(write, false, res -> {
+                if (res.failed())
+                {
+                    Log.log_err("MsgFiler."+module_id+": write failed for "+key+": "+res.cause());
+                }
+                queue_depth[worker]--;
+                in_flight--;
+                if (paused && in_flight <= low_water && drained == null)
+                {
+                    resume();
+                }
+                if (result != null)
+                {
+                    result.handle(res);
+                }
+                if (drained != null && in_flight == 0)
+                {
+                    Handler<Void> handler = drained;
+                    drained = null;
+                    handler.handle(null);
+                }
+            });
+    }
+
+    // *********************************************************************
+    // drain()
+    // Pause the consumers, and call 'handler' on the event loop when all the writes submitted have completed
+    // (including any submitted by the result handlers of earlier writes)
+    public void drain(Handler<Void> handler)
+    {
+        if (!paused)
+        {
+            pause();
+        }
+        if (in_flight == 0)
+        {
+            handler.handle(null);
+        }
+        else
+        {
+            System.out.println("MsgFiler."+module_id+": waiting for "+in_flight+" writes in flight");
+            drained = handler;
+        }
+    }
+
+    public int in_flight()
+    {
+        return in_flight;
+    }
+
+    public boolean paused()
+    {
+        return paused;
+    }
+
+    // Return how long the consumers have been paused (ms), or 0 if not paused
+    public long paused_ms()
+    {
+        return paused ? System.currentTimeMillis() - paused_at : 0L;
+    }
+
+    private void pause()
+    {
+        paused = true;
+        paused_at = System.currentTimeMillis();
+        pause_count++;
+        // each consumer buffers its share of max_buffered_bytes of messages while paused
+        int max_buffered = (int) Math.max(1L, Math.min(high_water,
+                               (long) (max_buffered_bytes / Math.max(1, consumers.size()) / Math.max(1.0, message_bytes))));
+        System.out.println("MsgFiler."+module_id+": pausing eventbus consumers, "+in_flight+" writes in flight, "+
+                           "buffering up to "+max_buffered+" messages each");
+        for (MessageConsumer<?> consumer : consumers)
+        {
+            consumer.setMaxBufferedMessages(max_buffered);
+            consumer.pause();
+        }
+    }
+
+    private void resume()
+    {
+        paused = false;
+        System.out.println("MsgFiler."+module_id+": resuming eventbus consumers, "+in_flight+" writes in flight");
+        for (MessageConsumer<?> consumer : consumers)
+        {
+            consumer.resume();
+        }
+    }
+
+    // Resume the consumers if paused (unless draining for stop), as the records they deliver are now spilled to
+    // the OverflowStore rather than written, so need not wait for the writes in flight
+    public void release()
+    {
+        if (paused && drained == null)
+        {
+            resume();
+        }
+    }
+
+    // Return the pool status for the MsgFiler status message
+    public JsonObject status()
+    {
+        JsonArray depths = new JsonArray();
+        for (int i=0; i<queue_depth.length; i++)
+        {
+            depths.add(queue_depth[i]);
+        }
+        return new JsonObject()
+            .put("threads", workers.length)
+            .put("in_flight", in_flight)
+            .put("queue_depth", depths)
+            .put("paused", paused)
+            .put("pause_count", pause_count);
+    }
+
+    public void close()
+    {
+        for (WorkerExecutor worker : workers)
+        {
+            worker.close();
+        }
+    }
+
+} // end class WriterPool
@@ -0,0 +1,145 @@
+package acp_server.msgrouter;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// Dedup.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// Dedup is the optional duplicate filter of a MsgRouter router, for feeds that deliver the same
+// message more than once, e.g. a LoRaWAN uplink received by several gateways, or retransmitted by TTN.
+// The router config
+//   "dedup": { "fields": [ "dev_eui", "fcnt" ], "window_ms": 60000, "max_entries": 100000 }
+// gives the message 'fingerprint' as the values at the JsonPaths in "fields" (e.g. the device id and
+// frame counter), and a message is a duplicate if a message with the same fingerprint was seen in the
+// last window_ms.  At most max_entries fingerprints are kept (the oldest are forgotten first), so the
+// memory used is bounded however busy the feed.  A message missing any of the fields is never a duplicate
+// (e.g. two messages with the same dev_eui but no fcnt are different messages).
+//
+// Called on the MsgRouter event loop (with multiple instances, each instance has its own Dedup for the
+// router, and the messages of a sensor always go to the same instance).
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import acp_server.util.JsonPath;
+
+public class Dedup {
+
+    public static final long DEFAULT_WINDOW_MS = 60000L;
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private JsonPath[] fields;
+
+    private long window_ms;
+
+    private int max_entries;
+
+    // fingerprint -> time first seen (epoch ms), oldest first
+    private LinkedHashMap<String,Long> seen;
+
+    // status counters
+    private long unique;
+    private long duplicates;
+
+    // Create the Dedup from the router "dedup" config, throwing IllegalArgumentException if it has no "fields"
+    public Dedup(JsonObject config)
+    {
+        JsonArray field_paths = config.getJsonArray("fields");
+        if (field_paths == null || field_paths.size() == 0)
+        {
+            throw new IllegalArgumentException("dedup config has no \"fields\"");
+        }
+        fields = new JsonPath[field_paths.size()];
+        for (int i=0; i<fields.length; i++)
+        {
+            fields[i] = new JsonPath(field_paths.getString(i));
+        }
+
+        window_ms = Math.max(1L, config.getLong("window_ms", DEFAULT_WINDOW_MS));
+        max_entries = Math.max(1, config.getInteger("max_entries", DEFAULT_MAX_ENTRIES));
+
+        seen = new LinkedHashMap<String,Long>();
+    }
+
+    // *********************************************************************
+    // duplicate()
+    // Return true if a message with the fingerprint of msg has been seen within the window, otherwise
+    // record its fingerprint and return false
+    public boolean duplicate(JsonObject msg)
+    {
+        String fingerprint = fingerprint(msg);
+        if (fingerprint == null)
+        {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        if (seen.containsKey(fingerprint))
+        {
+            duplicates++;
+            return true;
+        }
+
+        seen.put(fingerprint, now);
+        unique++;
+        return false;
+    }
+
+    // Return the field values of msg joined with a separator not in (valid) JSON text, or null if any is missing
+    private String fingerprint(JsonObject msg)
+    {
+        StringBuilder fingerprint = new StringBuilder();
+        for (int i=0; i<fields.length; i++)
+        {
+            Object value = fields[i].get(msg);
+            if (value == null)
+            {
+                return null;
+            }
+            fingerprint.append(value.toString());
+            fingerprint.append('\u0000');
+        }
+        return fingerprint.toString();
+    }
+
+    // Forget the fingerprints older than the window, and the oldest beyond max_entries
+    private void expire(long now)
+    {
+        long oldest = now - window_ms;
+        Iterator<Map.Entry<String,Long>> entries = seen.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry<String,Long> entry = entries.next();
+            if (entry.getValue() >= oldest && seen.size() < max_entries)
+            {
+                break;
+            }
+            entries.remove();
+        }
+    }
+
+    // Return the Dedup status, e.g. for print_routers
+    public JsonObject status()
+    {
+        return new JsonObject()
+            .put("window_ms", window_ms)
+            .put("entries", seen.size())
+            .put("unique", unique)
+            .put("duplicates", duplicates);
+    }
+
+} // end class Dedup
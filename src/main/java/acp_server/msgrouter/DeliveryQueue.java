@@ -0,0 +1,1100 @@
+package acp_server.msgrouter;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// DeliveryQueue.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// DeliveryQueue is the bounded queue of messages waiting to be POSTed to a MsgRouter Destination, so a
+// slow or failing destination cannot accumulate an unlimited number of pending requests.
+//
+// At most "max_in_flight" messages are being sent at any time, and up to "queue_size" more wait in the
+// queue.  When the queue is full the destination "overflow" policy applies:
+//   "drop_oldest" (default) the oldest queued message is discarded
+//   "block"       the router eventbus consumer(s) sending to the destination are paused until the queue
+//                 has drained to half full.  The messages that reach the queue while it is full (e.g. from
+//                 the other instances) are still queued, up to twice queue_size after which the oldest are
+//                 dropped.  A paused consumer buffers up to msgrouter.max_buffered messages, and MsgRouter
+//                 counts the messages the eventbus discards beyond that as its 'dropped'.
+//   "spill"       the messages are appended, in order, to "<msgrouter.spill_path>/<type>.<id>.spill" and
+//                 read back into the queue as it drains.  While there are spilled messages all new
+//                 messages are also spilled, so the order is kept.  With no spill_path this is drop_oldest.
+//
+// A failed POST (a connection error, timeout, or HTTP 5xx / 429 response) is retried up to "max_retries"
+// times after a jittered exponential backoff (from "retry_ms", doubling, up to MAX_RETRY_MS), and then
+// 'parked' in the spill file to be retried later.  An HTTP 4xx response is not retried.
+//
+// Each queue has a circuit breaker: after "breaker_failures" consecutive failures the breaker 'opens' and
+// no POSTs are made for "breaker_open_ms" (the failures of the POSTs still in flight are parked without
+// retrying).  It is then 'half open' and a single POST is tried: if it succeeds the breaker closes and
+// sending resumes, including the parked messages, otherwise it opens again for twice as long (up to
+// MAX_OPEN_MS).  While the breaker is open the messages wait in the queue, and the overflow policy applies
+// if it fills.  Each destination has its own queue and breaker, so the other destinations are unaffected.
+//
+// Each MsgRouter instance has its own DeliveryQueue for a destination, so with N instances queue_size,
+// max_in_flight and the half-open trial POST are per instance, i.e. up to N times these for the destination
+// (they are not divided, as the messages of a single sensor or fixed-destination address use one instance).
+//
+// Each spill file line is "<attempts>@<arrived>\t<message>" (or "<attempts>@<arrived>:<key>\t<message>" for a
+// message with a key, and "<attempts>@<arrived>x<records>\t<batch>" for a batch), where arrived is the epoch ms
+// the message arrived on the eventbus, and a message is discarded after MAX_PARKS rounds of retries.  With no
+// spill_path the messages to be retried later go back to the head of the queue.  A line that cannot be read
+// back is skipped (and counted as spill_malformed), and on a restart an incomplete last line (i.e. a write
+// cut short by a crash) is removed from the file.
+//
+// With "batch": { "max_records": 500, "max_ms": 250 } the messages are gathered into batches, each a JSON
+// array "[<msg>,<msg>,..]" of up to max_records messages, sent max_ms after its first message (or when full).
+// A batch is then queued, sent, retried and spilled as a single message, so queue_size is in batches.
+//
+// With "ordered": true the messages with the same key (the sensor id, given by MsgRouter) are sent one at a
+// time, i.e. a message is not sent until the POST of the previous message for the sensor has succeeded (or
+// been given up after its retries), while the messages of different sensors are still sent max_in_flight at a
+// time.  (Without it, the POSTs in flight together may arrive in any order.)  A message that is parked after
+// its retries may be overtaken by later messages of the sensor.  Batches have no key, so are not ordered.
+//
+// Each message has the System.nanoTime() it arrived on the eventbus, and the latency from then to the
+// successful POST (including its time queued, spilled and retried) is recorded in a LatencyHistogram, which
+// MsgRouter takes with metrics() every status period, with the counts of the POSTs sent, failed and timed out.
+//
+// The messages are held as the encoded POST body Buffer, which MsgRouter shares between all the destinations
+// a message is sent to (a Buffer is not changed by being sent, so may be sent any number of times).
+//
+// close() stops a queue whose destination has been removed: its timers are cancelled, its paused consumers
+// resumed and its spill file closed (but kept, so the destination picks it up again if it is re-added).
+//
+// The spill file I/O is done on a single shared worker thread, so the writes and reads are in order.
+// All the other methods are called on the MsgRouter event loop.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+
+import acp_server.util.Log;
+
+public class DeliveryQueue {
+
+    public static final String DROP_OLDEST = "drop_oldest";
+    public static final String BLOCK = "block";
+    public static final String SPILL = "spill";
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_MS = 1000L;
+    public static final long MAX_RETRY_MS = 60000L;
+    public static final int DEFAULT_BREAKER_FAILURES = 5;
+    public static final long DEFAULT_BREAKER_OPEN_MS = 30000L;
+    public static final long MAX_OPEN_MS = 300000L;
+    public static final int MAX_PARKS = 5;
+
+    // the most queued messages checked for one that can be sent, when "ordered"
+    private static final int ORDERED_SCAN = 1000;
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+    private static final String[] BREAKER_STATES = { "closed", "open", "half_open" };
+
+    // The Destination POST of a message, calling done when it has succeeded or failed
+    public interface Sender {
+        void send(Buffer body, Handler<AsyncResult<Void>> done);
+    }
+
+    // The failure of a POST that got a response, e.g. "HTTP 503", where 'retry' is false if the
+    // destination rejected the message (so sending it again would fail again)
+    public static class DeliveryException extends Exception {
+        public final boolean retry;
+
+        public DeliveryException(String message, boolean retry)
+        {
+            super(message);
+            this.retry = retry;
+        }
+    }
+
+    // A message in the queue, with the number of times it has been tried, its key (or null) for "ordered", the
+    // System.nanoTime() it arrived (for a batch, its first message) and the messages in it (1, or a batch size)
+    private static class Delivery {
+        Buffer body;
+        int attempts;
+        String key;
+        long arrived_ns;
+        int records;
+
+        Delivery(Buffer body, int attempts, String key, long arrived_ns, int records)
+        {
+            this.body = body;
+            this.attempts = attempts;
+            this.key = key;
+            this.arrived_ns = arrived_ns;
+            this.records = records;
+        }
+    }
+
+    // The delivery metrics of a queue, from metrics(), merged by MsgRouter for the instances and destination types
+    public static class Metrics {
+        public long delivered;       // messages POSTed successfully (so a batch counts its messages)
+        public long errors;          // failed POSTs, other than timeouts
+        public long timeouts;
+        public long latency_sum_us;  // the latency of all the messages delivered
+        public LatencyHistogram latency = new LatencyHistogram(); // the latencies since the last metrics()
+
+        public void add(Metrics other)
+        {
+            delivered += other.delivered;
+            errors += other.errors;
+            timeouts += other.timeouts;
+            latency_sum_us += other.latency_sum_us;
+            latency.add(other.latency);
+        }
+    }
+
+    private Vertx vertx;
+
+    private String name; // e.g. "feed_eventbus_msg/tfc-app3.feedmaker.eventbus", for log messages
+
+    private Sender sender;
+
+    private int queue_size;
+    private int max_in_flight;
+    private String overflow;
+    private int max_retries;
+    private long retry_ms;
+    private int breaker_failures;
+    private long breaker_open_ms;
+    private boolean ordered;
+    private int batch_max_records; // 0 if not batching
+    private long batch_max_ms;
+
+    // the batch being gathered
+    private Buffer batch;
+    private int batch_count;
+    private long batch_arrived_ns;
+    private MessageConsumer<Object> batch_source;
+    private long batch_timer;
+
+    private ArrayDeque<Delivery> queue;
+    private int in_flight;
+    private int retrying;        // messages waiting for their retry backoff
+    private HashSet<Long> retry_timers;
+    private boolean closed;      // see close()
+
+    // "ordered": key -> the message with that key being sent (or waiting for its retry)
+    private HashMap<String,Delivery> sending;
+
+    // circuit breaker
+    private int breaker;
+    private long breaker_timer = -1L; // the timer from OPEN to HALF_OPEN, while OPEN
+    private int consecutive_failures;
+    private long open_ms;        // the current open period, doubled each time the half-open POST fails
+    private boolean dispatching; // in next(), so a synchronous completion doesn't recurse
+
+    // "block": the consumers paused by this queue, and the pause count of every consumer (shared by the
+    // queues of all the instances of a MsgRouter, as a consumer may be paused by more than one destination,
+    // so it is synchronized on)
+    private HashSet<MessageConsumer<Object>> paused;
+    private HashMap<MessageConsumer<Object>,Integer> pause_counts;
+
+    // "spill"
+    private String spill_file;     // null if there is no msgrouter.spill_path
+    private WorkerExecutor worker;
+    private boolean spilling;      // new messages are spilled until the spill file has been read back
+    private long spill_pending;    // messages in the spill file not yet read back
+    private boolean draining;
+    private long drain_pending;    // spill_pending when the drain started, i.e. the lines it can read
+    private OutputStream spill_writer;   // worker side
+    private BufferedReader spill_reader; // worker side
+
+    // status counters
+    private long records;  // messages offered
+    private long sent;
+    private long failed;
+    private long dropped;
+    private long spilled;
+    private long spill_malformed;  // spill file lines that could not be read back
+    private long blocked;
+    private long retries;
+    private long rejected;
+    private long parked;
+    private long breaker_opened;
+
+    // metrics
+    private long delivered;
+    private long timeouts;
+    private long latency_sum_us;
+    private LatencyHistogram latency = new LatencyHistogram();
+
+    public DeliveryQueue(Vertx vertx,
+                         String name,
+                         Sender sender,
+                         JsonObject info,
+                         String spill_path,
+                         ArrayList<String> old_spill_paths,
+                         HashMap<MessageConsumer<Object>,Integer> pause_counts)
+    {
+        this.vertx = vertx;
+        this.name = name;
+        this.sender = sender;
+        this.pause_counts = pause_counts;
+
+        queue = new ArrayDeque<Delivery>();
+        sending = new HashMap<String,Delivery>();
+        retry_timers = new HashSet<Long>();
+        breaker = CLOSED;
+        paused = new HashSet<MessageConsumer<Object>>();
+
+        configure(info);
+
+        if (spill_path != null)
+        {
+            spill_file = spill_file(spill_path, name);
+            worker = vertx.createSharedWorkerExecutor("msgrouter-spill", 1);
+
+            // the spill files of this destination in old_spill_paths (i.e. of a MsgRouter with a different
+            // number of instances) are taken over, appended to this spill file
+            ArrayList<File> old_files = new ArrayList<File>();
+            for (String old_spill_path : old_spill_paths)
+            {
+                File old_file = new File(spill_file(old_spill_path, name));
+                if (old_file.length() > 0L)
+                {
+                    old_files.add(old_file);
+                }
+            }
+
+            // messages spilled before a restart are sent first
+            File f = new File(spill_file);
+            if (f.length() > 0L || old_files.size() > 0)
+            {
+                spilling = true;
+                worker.<Long>executeBlocking(fut -> {
+                        long lines = f.exists() ? recover_lines(f) : 0L;
+                        for (File old_file : old_files)
+                        {
+                            lines += take_over(old_file, f);
+                        }
+                        fut.complete(lines);
+                    }, true, res -> {
+                        spill_pending += res.result();
+                        System.out.println("MsgRouter.DeliveryQueue "+name+": "+res.result()+" spilled messages recovered");
+                        next();
+                    });
+            }
+        }
+    }
+
+    // Set the limits and overflow policy from the destination info, e.g. when the destination is updated
+    public void configure(JsonObject info)
+    {
+        queue_size = Math.max(1, info.getInteger("queue_size", DEFAULT_QUEUE_SIZE));
+        max_in_flight = Math.max(1, info.getInteger("max_in_flight", DEFAULT_MAX_IN_FLIGHT));
+        overflow = info.getString("overflow", DROP_OLDEST);
+        if (!overflow.equals(BLOCK) && !overflow.equals(SPILL))
+        {
+            overflow = DROP_OLDEST;
+        }
+        max_retries = Math.max(0, info.getInteger("max_retries", DEFAULT_MAX_RETRIES));
+        retry_ms = Math.max(1L, info.getLong("retry_ms", DEFAULT_RETRY_MS));
+        breaker_failures = Math.max(1, info.getInteger("breaker_failures", DEFAULT_BREAKER_FAILURES));
+        breaker_open_ms = Math.max(1L, info.getLong("breaker_open_ms", DEFAULT_BREAKER_OPEN_MS));
+        ordered = info.getBoolean("ordered", false);
+
+        JsonObject batch_config = info.getJsonObject("batch");
+        if (batch_config != null)
+        {
+            batch_max_records = Math.max(1, batch_config.getInteger("max_records", 500));
+            batch_max_ms = Math.max(1L, batch_config.getLong("max_ms", 250L));
+        }
+        else
+        {
+            batch_max_records = 0;
+        }
+    }
+
+    // Use 'sender' for the messages sent from now on, e.g. the replacement of an updated Destination
+    public void set_sender(Sender sender)
+    {
+        this.sender = sender;
+    }
+
+    // *********************************************************************
+    // offer()
+    // Queue msg for sending, where key is the sensor id (or null) for "ordered", arrived_ns is the System.nanoTime()
+    // the message arrived on the eventbus, and source is the router consumer it came from (or null)
+    public void offer(Buffer body, String key, long arrived_ns, MessageConsumer<Object> source)
+    {
+        if (closed)
+        {
+            dropped++;
+            return;
+        }
+        records++;
+
+        if (batch_max_records > 0 || batch_count > 0)
+        {
+            add_to_batch(body, arrived_ns, source);
+            return;
+        }
+
+        enqueue(body, ordered ? key : null, arrived_ns, 1, source);
+    }
+
+    // Add the message body to the batch being gathered, sending the batch if it is full
+    private void add_to_batch(Buffer body, long arrived_ns, MessageConsumer<Object> source)
+    {
+        if (batch_count == 0)
+        {
+            batch_arrived_ns = arrived_ns;
+            // a new Buffer, as the queued batches are not copied
+            batch = Buffer.buffer(body.length() * Math.min(batch_max_records, 64) + 2);
+            batch.appendByte((byte) '[');
+            batch_timer = vertx.setTimer(batch_max_ms, id -> {
+                    batch_timer = -1L;
+                    flush_batch();
+                });
+        }
+        else
+        {
+            batch.appendByte((byte) ',');
+        }
+        batch.appendBuffer(body);
+        batch_count++;
+        batch_source = source;
+
+        if (batch_count >= batch_max_records)
+        {
+            flush_batch();
+        }
+    }
+
+    private void flush_batch()
+    {
+        if (batch_count == 0)
+        {
+            return;
+        }
+        if (batch_timer != -1L)
+        {
+            vertx.cancelTimer(batch_timer);
+            batch_timer = -1L;
+        }
+        batch.appendByte((byte) ']');
+        int batch_records = batch_count;
+        batch_count = 0;
+        enqueue(batch, null, batch_arrived_ns, batch_records, batch_source);
+        batch = null;
+        batch_source = null;
+    }
+
+    // Queue a message (or a batch) for sending, applying the overflow policy if the queue is full
+    private void enqueue(Buffer body, String key, long arrived_ns, int records, MessageConsumer<Object> source)
+    {
+        Delivery d = new Delivery(body, 0, key, arrived_ns, records);
+
+        if (spilling)
+        {
+            spill(d);
+            return;
+        }
+
+        if (queue.isEmpty() && in_flight < dispatch_limit() && can_send(d))
+        {
+            dispatch(d);
+            return;
+        }
+
+        if (queue.size() >= queue_size)
+        {
+            if (overflow.equals(SPILL) && spill_file != null)
+            {
+                spilling = true;
+                spill(d);
+                return;
+            }
+
+            if (overflow.equals(BLOCK) && queue.size() < 2 * queue_size)
+            {
+                if (source != null && paused.add(source))
+                {
+                    blocked++;
+                    synchronized (pause_counts)
+                    {
+                        Integer count = pause_counts.get(source);
+                        pause_counts.put(source, count == null ? 1 : count + 1);
+                        if (count == null)
+                        {
+                            source.pause();
+                        }
+                    }
+                }
+            }
+            else
+            {
+                queue.poll();
+                if (dropped++ == 0)
+                {
+                    Log.log_err("MsgRouter.DeliveryQueue "+name+": queue full ("+queue_size+"), dropping oldest messages");
+                }
+            }
+        }
+
+        queue.add(d);
+    }
+
+    // The number of POSTs that may be in flight, according to the circuit breaker
+    private int dispatch_limit()
+    {
+        return breaker == CLOSED ? max_in_flight : (breaker == HALF_OPEN ? 1 : 0);
+    }
+
+    // Return true unless d must wait for a message with the same key being sent ("ordered")
+    private boolean can_send(Delivery d)
+    {
+        if (d.key == null)
+        {
+            return true;
+        }
+        Delivery key_sending = sending.get(d.key);
+        return key_sending == null || key_sending == d;
+    }
+
+    // The message with d's key is no longer being sent ("ordered")
+    private void sent_key(Delivery d)
+    {
+        if (d.key != null && sending.get(d.key) == d)
+        {
+            sending.remove(d.key);
+        }
+    }
+
+    private void dispatch(Delivery d)
+    {
+        in_flight++;
+        d.attempts++;
+        if (d.key != null)
+        {
+            sending.put(d.key, d);
+        }
+        sender.send(d.body, res -> {
+                in_flight--;
+                if (res.succeeded())
+                {
+                    sent++;
+                    delivered += d.records;
+                    long latency_us = (System.nanoTime() - d.arrived_ns) / 1000L;
+                    latency.record(latency_us, d.records);
+                    latency_sum_us += latency_us * d.records;
+                    sent_key(d);
+                    breaker_success();
+                }
+                else
+                {
+                    failed(d, res.cause());
+                }
+                next();
+            });
+    }
+
+    // Retry or park a message whose POST has failed
+    private void failed(Delivery d, Throwable cause)
+    {
+        failed++;
+        if (timed_out(cause))
+        {
+            timeouts++;
+        }
+
+        if (closed)
+        {
+            // a POST in flight when the destination was removed
+            dropped++;
+            return;
+        }
+
+        if (cause instanceof DeliveryException && !((DeliveryException) cause).retry)
+        {
+            sent_key(d);
+            if (rejected++ == 0)
+            {
+                Log.log_err("MsgRouter.DeliveryQueue "+name+": message rejected ("+cause.getMessage()+"), not retried");
+            }
+            return;
+        }
+
+        breaker_failure(cause);
+
+        if (breaker == CLOSED && d.attempts % (max_retries + 1) != 0)
+        {
+            // retry after 1/2..1 of the exponential backoff, so the retries of the messages that
+            // failed together are spread out
+            int retry = (d.attempts - 1) % (max_retries + 1);
+            long backoff = Math.min(MAX_RETRY_MS, retry_ms << Math.min(retry, 20));
+            long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            retries++;
+            retrying++;
+            long[] timer = new long[1];
+            timer[0] = vertx.setTimer(Math.max(1L, delay), id -> {
+                    retry_timers.remove(timer[0]);
+                    retrying--;
+                    queue.addFirst(d);
+                    next();
+                });
+            retry_timers.add(timer[0]);
+            return;
+        }
+
+        // out of retries for now, or the breaker is open, so the next message with d's key may be sent
+        sent_key(d);
+        if (d.attempts >= (max_retries + 1) * MAX_PARKS)
+        {
+            dropped++;
+            return;
+        }
+        parked++;
+        if (spill_file != null)
+        {
+            spill(d);
+        }
+        else if (queue.size() < queue_size)
+        {
+            queue.addFirst(d);
+        }
+        else
+        {
+            dropped++;
+        }
+    }
+
+    // Return true if cause is a timeout, e.g. the http_timeout_ms of the POST or a connect timeout (which are
+    // the Vert.x and Netty TimeoutExceptions, not java.util.concurrent.TimeoutException)
+    private static boolean timed_out(Throwable cause)
+    {
+        return cause instanceof java.util.concurrent.TimeoutException ||
+               cause.getClass().getSimpleName().endsWith("TimeoutException");
+    }
+
+    private void breaker_success()
+    {
+        consecutive_failures = 0;
+        if (breaker != CLOSED)
+        {
+            // e.g. a POST in flight when the breaker opened has succeeded, so it need not go half open
+            cancel_breaker_timer();
+            breaker = CLOSED;
+            System.out.println("MsgRouter.DeliveryQueue "+name+": circuit breaker closed");
+        }
+    }
+
+    private void breaker_failure(Throwable cause)
+    {
+        consecutive_failures++;
+        if (breaker == HALF_OPEN || (breaker == CLOSED && consecutive_failures >= breaker_failures))
+        {
+            open_ms = breaker == HALF_OPEN ? Math.min(MAX_OPEN_MS, open_ms * 2L) : breaker_open_ms;
+            breaker = OPEN;
+            breaker_opened++;
+            Log.log_err("MsgRouter.DeliveryQueue "+name+": circuit breaker open for "+open_ms+" ms after "+
+                        consecutive_failures+" failures ("+cause.getMessage()+")");
+            cancel_breaker_timer();
+            breaker_timer = vertx.setTimer(open_ms, id -> {
+                    breaker_timer = -1L;
+                    if (breaker == OPEN)
+                    {
+                        breaker = HALF_OPEN;
+                        next();
+                    }
+                });
+        }
+    }
+
+    private void cancel_breaker_timer()
+    {
+        if (breaker_timer >= 0L)
+        {
+            vertx.cancelTimer(breaker_timer);
+            breaker_timer = -1L;
+        }
+    }
+
+    // Send queued messages up to max_in_flight, then resume the paused sources or read back spilled
+    // messages if the queue has drained enough
+    private void next()
+    {
+        if (dispatching || closed)
+        {
+            return;
+        }
+        dispatching = true;
+        if (!ordered && sending.isEmpty())
+        {
+            while (in_flight < dispatch_limit() && !queue.isEmpty())
+            {
+                dispatch(queue.poll());
+            }
+        }
+        else
+        {
+            // "ordered": send the first queued messages whose keys are not being sent
+            ArrayList<Delivery> ready = new ArrayList<Delivery>();
+            Iterator<Delivery> queued = queue.iterator();
+            for (int i=0; i<ORDERED_SCAN && in_flight + ready.size() < dispatch_limit() && queued.hasNext(); i++)
+            {
+                Delivery d = queued.next();
+                if (can_send(d))
+                {
+                    queued.remove();
+                    if (d.key != null)
+                    {
+                        sending.put(d.key, d);
+                    }
+                    ready.add(d);
+                }
+            }
+            for (Delivery d : ready)
+            {
+                dispatch(d);
+            }
+        }
+        dispatching = false;
+
+        int low_water = queue_size / 2;
+        if (queue.size() > low_water)
+        {
+            return;
+        }
+
+        resume_sources();
+
+        if (breaker != OPEN && !draining && spill_pending > 0L)
+        {
+            drain(queue_size - low_water);
+        }
+    }
+
+    // Resume the consumers paused by this queue (unless also paused by another destination)
+    private void resume_sources()
+    {
+        if (paused.isEmpty())
+        {
+            return;
+        }
+        synchronized (pause_counts)
+        {
+            for (MessageConsumer<Object> source : paused)
+            {
+                int count = pause_counts.get(source) - 1;
+                if (count == 0)
+                {
+                    pause_counts.remove(source);
+                    source.resume();
+                }
+                else
+                {
+                    pause_counts.put(source, count);
+                }
+            }
+        }
+        paused.clear();
+    }
+
+    // *********************************************************************
+    // close()
+    // Stop the queue, when its destination has been removed: the queued messages (and any POSTs still in flight)
+    // are dropped, the timers cancelled, the paused consumers resumed, and the spill file closed after any spill
+    // writes still to be done.  The spill file is kept, and as the spill worker runs its tasks in order a queue
+    // created for the re-added destination only opens it after this one has closed it.
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+
+        if (batch_timer != -1L)
+        {
+            vertx.cancelTimer(batch_timer);
+            batch_timer = -1L;
+        }
+        dropped += batch_count;
+        batch_count = 0;
+        batch = null;
+        batch_source = null;
+        cancel_breaker_timer();
+        for (long timer : retry_timers)
+        {
+            vertx.cancelTimer(timer);
+        }
+        dropped += retrying;
+        retrying = 0;
+        retry_timers.clear();
+        dropped += queue.size();
+        queue.clear();
+        sending.clear();
+        resume_sources();
+
+        if (worker != null)
+        {
+            worker.executeBlocking(fut -> {
+                    try
+                    {
+                        close_spill();
+                        fut.complete();
+                    }
+                    catch (IOException e)
+                    {
+                        fut.fail(e);
+                    }
+                }, true, res -> {
+                    if (res.failed())
+                    {
+                        Log.log_err("MsgRouter.DeliveryQueue "+name+": spill close failed: "+res.cause().getMessage());
+                    }
+                });
+        }
+        System.out.println("MsgRouter.DeliveryQueue "+name+": closed "+status());
+    }
+
+    // *********************************************************************
+    // Spill file
+    // *********************************************************************
+
+    private void spill(Delivery d)
+    {
+        if (closed)
+        {
+            dropped++;
+            return;
+        }
+        String key = d.key == null ? "" : ":" + d.key.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        // the arrival time as epoch ms, so it is kept over a restart
+        long arrived_ms = System.currentTimeMillis() - (System.nanoTime() - d.arrived_ns) / 1000000L;
+        String records = d.records == 1 ? "" : "x" + d.records;
+        byte[] prefix = (d.attempts + "@" + arrived_ms + records + key + "\t").getBytes(StandardCharsets.UTF_8);
+        byte[] msg = d.body.getBytes();
+        // one message per line (a newline byte in UTF-8 is always a newline character)
+        for (int i=0; i<msg.length; i++)
+        {
+            if (msg[i] == '\n' || msg[i] == '\r')
+            {
+                msg[i] = ' ';
+            }
+        }
+        spill_pending++;
+        spilled++;
+        worker.executeBlocking(fut -> {
+                try
+                {
+                    if (spill_writer == null)
+                    {
+                        new File(spill_file).getParentFile().mkdirs();
+                        spill_writer = new BufferedOutputStream(new FileOutputStream(spill_file, true));
+                    }
+                    spill_writer.write(prefix);
+                    spill_writer.write(msg);
+                    spill_writer.write('\n');
+                    spill_writer.flush();
+                    fut.complete();
+                }
+                catch (IOException e)
+                {
+                    fut.fail(e);
+                }
+            }, true, res -> {
+                if (res.succeeded())
+                {
+                    next(); // the queue may be ready for the spilled messages
+                }
+                else
+                {
+                    spill_pending--;
+                    if (dropped++ == 0)
+                    {
+                        Log.log_err("MsgRouter.DeliveryQueue "+name+": spill failed, dropping messages: "+res.cause().getMessage());
+                    }
+                }
+            });
+    }
+
+    // e.g. "feed_eventbus_msg/tfc-app3" -> "<spill_path>/feed_eventbus_msg.tfc-app3.spill"
+    private static String spill_file(String spill_path, String name)
+    {
+        int slash = name.indexOf('/');
+        return spill_path + "/" +
+               file_safe(name.substring(0, slash)) + "." + file_safe(name.substring(slash + 1)) + ".spill";
+    }
+
+    // BLOCKING append of the lines of old spill file old_file to f, deleting old_file, returning the lines added
+    private long take_over(File old_file, File f)
+    {
+        long lines = recover_lines(old_file);
+        try
+        {
+            f.getParentFile().mkdirs();
+            try (OutputStream out = new FileOutputStream(f, true))
+            {
+                java.nio.file.Files.copy(old_file.toPath(), out);
+            }
+            old_file.delete();
+            System.out.println("MsgRouter.DeliveryQueue "+name+": "+lines+" spilled messages taken over from "+old_file);
+            return lines;
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgRouter.DeliveryQueue "+name+": failed to take over "+old_file+": "+e.getMessage());
+            return 0L;
+        }
+    }
+
+    // BLOCKING count of the lines in spill file f after a restart, removing a last line with no newline
+    // (i.e. a write interrupted by a crash), so later spills start on a new line
+    private long recover_lines(File f)
+    {
+        long lines = 0L;
+        long length = 0L; // up to the last newline
+        try (InputStream in = new BufferedInputStream(new FileInputStream(f)))
+        {
+            long pos = 0L;
+            int b;
+            while ((b = in.read()) >= 0)
+            {
+                pos++;
+                if (b == '\n')
+                {
+                    lines++;
+                    length = pos;
+                }
+            }
+            if (length < pos)
+            {
+                try (RandomAccessFile raf = new RandomAccessFile(f, "rw"))
+                {
+                    raf.setLength(length);
+                }
+                Log.log_err("MsgRouter.DeliveryQueue "+name+": removed incomplete last line of "+f);
+            }
+        }
+        catch (IOException e)
+        {
+            Log.log_err("MsgRouter.DeliveryQueue "+name+": failed to read "+f+": "+e.getMessage());
+        }
+        return lines;
+    }
+
+    // Read back up to max spilled messages into the queue
+    private void drain(int max)
+    {
+        draining = true;
+        drain_pending = spill_pending;
+        worker.<ArrayList<String>>executeBlocking(fut -> {
+                ArrayList<String> lines = new ArrayList<String>();
+                try
+                {
+                    if (spill_reader == null)
+                    {
+                        spill_reader = new BufferedReader(new InputStreamReader(new FileInputStream(spill_file),
+                                                                                StandardCharsets.UTF_8));
+                    }
+                    String line;
+                    while (lines.size() < max && (line = spill_reader.readLine()) != null)
+                    {
+                        lines.add(line);
+                    }
+                    fut.complete(lines);
+                }
+                catch (IOException e)
+                {
+                    fut.fail(e);
+                }
+            }, true, res -> {
+                draining = false;
+                if (closed)
+                {
+                    // (the spill file may already be in use by the queue of a re-added destination)
+                    return;
+                }
+                if (res.failed())
+                {
+                    Log.log_err("MsgRouter.DeliveryQueue "+name+": spill read failed: "+res.cause().getMessage());
+                    return;
+                }
+                ArrayList<String> lines = res.result();
+                long now_ms = System.currentTimeMillis();
+                long now_ns = System.nanoTime();
+                for (String line : lines)
+                {
+                    try
+                    {
+                        queue.add(spilled_delivery(line, now_ms, now_ns));
+                    }
+                    catch (RuntimeException e)
+                    {
+                        if (spill_malformed++ == 0)
+                        {
+                            Log.log_err("MsgRouter.DeliveryQueue "+name+": skipping malformed spill line: "+
+                                        (line.length() > 80 ? line.substring(0, 80) : line));
+                        }
+                    }
+                }
+                if (lines.size() < max)
+                {
+                    // the end of the file, so all the lines spilled before the drain started have been read
+                    // (any fewer lines were lost, e.g. a write that failed), leaving only any spilled since
+                    spill_pending = Math.max(0L, spill_pending - drain_pending);
+                }
+                else
+                {
+                    spill_pending = Math.max(0L, spill_pending - lines.size());
+                }
+                if (spill_pending == 0L)
+                {
+                    // everything spilled has been read back, so empty the file (after any queued
+                    // writes, of which there are none as spill_pending is 0)
+                    spilling = false;
+                    truncate();
+                }
+                next();
+            });
+    }
+
+    // Return the Delivery of a spill file line, throwing a RuntimeException if it is malformed
+    private Delivery spilled_delivery(String line, long now_ms, long now_ns)
+    {
+        if (line.isEmpty())
+        {
+            throw new IllegalArgumentException("empty line");
+        }
+        int tab = line.indexOf('\t');
+        String prefix = tab > 0 ? line.substring(0, tab) : "0";
+        int colon = prefix.indexOf(':');
+        String key = colon < 0 || !ordered ? null : prefix.substring(colon + 1);
+        String attempts_arrived = colon < 0 ? prefix : prefix.substring(0, colon);
+        // (a line spilled by an earlier version has no arrival time, so it is taken as now)
+        int at = attempts_arrived.indexOf('@');
+        int x = attempts_arrived.indexOf('x');
+        int attempts = Integer.parseInt(at < 0 ? attempts_arrived : attempts_arrived.substring(0, at));
+        long arrived_ns = now_ns;
+        if (at >= 0)
+        {
+            long arrived_ms = Long.parseLong(attempts_arrived.substring(at + 1, x < 0 ? attempts_arrived.length() : x));
+            arrived_ns = now_ns - (now_ms - arrived_ms) * 1000000L;
+        }
+        int records = x < 0 ? 1 : Integer.parseInt(attempts_arrived.substring(x + 1));
+        return new Delivery(Buffer.buffer(line.substring(tab + 1)), attempts, key, arrived_ns, records);
+    }
+
+    private void truncate()
+    {
+        worker.executeBlocking(fut -> {
+                try
+                {
+                    close_spill();
+                    new FileOutputStream(spill_file).close();
+                    fut.complete();
+                }
+                catch (IOException e)
+                {
+                    fut.fail(e);
+                }
+            }, true, res -> {
+                if (res.failed())
+                {
+                    Log.log_err("MsgRouter.DeliveryQueue "+name+": spill truncate failed: "+res.cause().getMessage());
+                }
+            });
+    }
+
+    // BLOCKING close of the spill writer and reader, on the worker
+    private void close_spill() throws IOException
+    {
+        if (spill_writer != null)
+        {
+            spill_writer.close();
+            spill_writer = null;
+        }
+        if (spill_reader != null)
+        {
+            spill_reader.close();
+            spill_reader = null;
+        }
+    }
+
+    private static String file_safe(String s)
+    {
+        return s.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    // *********************************************************************
+    // metrics()
+    // Return the delivery counts since the queue was created, and the latencies recorded since the last metrics()
+    // (which are then cleared), for the MsgRouter status message and metrics endpoint
+    public Metrics metrics()
+    {
+        Metrics metrics = new Metrics();
+        metrics.delivered = delivered;
+        metrics.errors = failed - timeouts;
+        metrics.timeouts = timeouts;
+        metrics.latency_sum_us = latency_sum_us;
+        metrics.latency = latency;
+        latency = new LatencyHistogram();
+        return metrics;
+    }
+
+    // Return the queue status, e.g. for print_destinations
+    public JsonObject status()
+    {
+        JsonObject status = new JsonObject()
+            .put("queue", queue.size())
+            .put("queue_size", queue_size)
+            .put("in_flight", in_flight)
+            .put("max_in_flight", max_in_flight)
+            .put("overflow", overflow)
+            .put("ordered", ordered)
+            .put("records", records)
+            .put("sent", sent)
+            .put("failed", failed)
+            .put("timeouts", timeouts)
+            .put("dropped", dropped);
+        status.put("breaker", BREAKER_STATES[breaker]);
+        status.put("breaker_opened", breaker_opened);
+        status.put("retries", retries);
+        status.put("retrying", retrying);
+        status.put("rejected", rejected);
+        status.put("parked", parked);
+        if (overflow.equals(BLOCK))
+        {
+            status.put("blocked", blocked);
+            status.put("paused", paused.size());
+        }
+        if (spill_file != null)
+        {
+            status.put("spilled", spilled);
+            status.put("spill_pending", spill_pending);
+            status.put("spill_malformed", spill_malformed);
+        }
+        return status;
+    }
+
+} // end class DeliveryQueue
@@ -0,0 +1,166 @@
+package acp_server.msgrouter;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// LatencyHistogram.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// LatencyHistogram is the distribution of the delivery latencies (in microseconds) of a MsgRouter destination,
+// from which the percentiles are read, in the manner of an HdrHistogram: the counts are kept in log-linear
+// buckets, i.e. each power of 2 is split into SUB_BUCKETS equal buckets, so any latency from 1 us to
+// MAX_US (over an hour) is recorded to within 1/SUB_BUCKETS (about 3%) in a fixed array of longs.
+//
+// record() is a few arithmetic operations and an array increment, with no allocation (the array is
+// allocated by the first record(), so a histogram of an idle destination is small), so it is cheap enough
+// to call for every message delivered.  A histogram is not thread-safe: DeliveryQueue records on the
+// MsgRouter event loop and hands the histogram over (replacing it with a new one) to be merged with add().
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import io.vertx.core.json.JsonObject;
+
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;      // buckets in each power of 2
+
+    public static final long MAX_US = (1L << 32) - 1L;          // larger values are recorded as MAX_US
+
+    private static final int BUCKET_COUNT = index(MAX_US) + 1;
+
+    private long[] counts; // null until the first record()
+    private long count;
+    private long sum_us;
+    private long max_us;
+
+    // *********************************************************************
+    // record()
+    // Add count values of value_us microseconds
+    public void record(long value_us, long count)
+    {
+        if (value_us < 0L)
+        {
+            value_us = 0L;
+        }
+        else if (value_us > MAX_US)
+        {
+            value_us = MAX_US;
+        }
+        if (counts == null)
+        {
+            counts = new long[BUCKET_COUNT];
+        }
+        counts[index(value_us)] += count;
+        this.count += count;
+        sum_us += value_us * count;
+        if (value_us > max_us)
+        {
+            max_us = value_us;
+        }
+    }
+
+    // Add the values recorded in other to this histogram
+    public void add(LatencyHistogram other)
+    {
+        if (other.counts == null)
+        {
+            return;
+        }
+        if (counts == null)
+        {
+            counts = new long[BUCKET_COUNT];
+        }
+        for (int i=0; i<BUCKET_COUNT; i++)
+        {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum_us += other.sum_us;
+        max_us = Math.max(max_us, other.max_us);
+    }
+
+    public long count()
+    {
+        return count;
+    }
+
+    public long sum_us()
+    {
+        return sum_us;
+    }
+
+    public long max_us()
+    {
+        return max_us;
+    }
+
+    // Return the value (in us) that the fraction (e.g. 0.99) of the values recorded are less than or equal to,
+    // i.e. the highest value of the bucket it is in (but not above the maximum), or 0 if there are no values
+    public long percentile(double fraction)
+    {
+        if (count == 0L)
+        {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(fraction * count));
+        long seen = 0L;
+        for (int i=0; i<BUCKET_COUNT; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(highest(i), max_us);
+            }
+        }
+        return max_us;
+    }
+
+    // Return the percentiles in milliseconds, e.g. for the MsgRouter status message
+    public JsonObject json()
+    {
+        return new JsonObject()
+            .put("count", count)
+            .put("p50_ms", ms(percentile(0.5)))
+            .put("p90_ms", ms(percentile(0.9)))
+            .put("p99_ms", ms(percentile(0.99)))
+            .put("p999_ms", ms(percentile(0.999)))
+            .put("max_ms", ms(max_us));
+    }
+
+    // us -> ms, to 3 decimal places
+    private static double ms(long us)
+    {
+        return us / 1000.0;
+    }
+
+    // The bucket of value_us: the values below 2*SUB_BUCKETS have a bucket each, and each higher power of 2
+    // has SUB_BUCKETS buckets, each of 2^shift values
+    private static int index(long value_us)
+    {
+        if (value_us < 2 * SUB_BUCKETS)
+        {
+            return (int) value_us;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value_us) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value_us >>> shift);
+    }
+
+    // The highest value in bucket i
+    private static long highest(int i)
+    {
+        if (i < 2 * SUB_BUCKETS)
+        {
+            return i;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        long sub = i - shift * SUB_BUCKETS;
+        return ((sub + 1L) << shift) - 1L;
+    }
+
+} // end class LatencyHistogram
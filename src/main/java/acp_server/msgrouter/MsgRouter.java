@@ -14,36 +14,51 @@ package acp_server.msgrouter;
 // *************************************************************************************************
 
 import io.vertx.core.AbstractVerticle;
-import io.vertx.core.Promise;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.eventbus.impl.MessageConsumerImpl;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
 
 import io.vertx.ext.jdbc.JDBCClient;
-import io.vertx.ext.sql.SQLConnection;
-import io.vertx.ext.sql.ResultSet;
 
 import io.vertx.ext.web.client.WebClient;
 import io.vertx.ext.web.client.WebClientOptions;
 import io.vertx.ext.web.client.HttpRequest;
 import io.vertx.ext.web.client.HttpResponse;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
 import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 import java.net.URL;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import acp_server.util.Constants;
+import acp_server.util.JsonPath;
 import acp_server.util.Log;
+import acp_server.util.MsgFilter;
 
 public class MsgRouter extends AbstractVerticle {
 
-    private final String VERSION = "0.21";
+    private final String VERSION = "0.31";
 
     // from config()
     public int LOG_LEVEL;             // optional in config(), defaults to Constants.LOG_INFO
@@ -51,6 +66,17 @@ public class MsgRouter extends AbstractVerticle {
     private String MODULE_ID;         // config module.id - unique for this verticle
     private String EB_SYSTEM_STATUS;  // config eb.system_status
     private String EB_MANAGER;        // config eb.manager
+    private String SPILL_PATH;        // optional config msgrouter.spill_path, for "overflow": "spill" destinations
+    private int HTTP_POOL_SIZE;       // optional config msgrouter.http_pool_size, keep-alive connections per host
+    private int MAX_BUFFERED;         // optional config msgrouter.max_buffered, messages buffered by a paused router consumer
+    private boolean HTTP2;            // optional config msgrouter.http2, negotiate HTTP/2 with https hosts (default true)
+
+    private int DB_SYNC_MS;           // optional config msgrouter.db.sync_ms, period of csn_sensor/csn_destination sync
+    private int METRICS_PORT;         // optional config msgrouter.metrics_port, for the GET /metrics endpoint (0 = none)
+
+    private final int DEFAULT_HTTP_POOL_SIZE = 32;
+    private final int DEFAULT_MAX_BUFFERED = 1000;
+    private final int DEFAULT_DB_SYNC_MS = 60000;
 
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 25;
@@ -62,12 +88,38 @@ public class MsgRouter extends AbstractVerticle {
     private ArrayList<JsonObject> START_ROUTERS; // config msgrouters.routers parameters
 
     // global vars
-    private HashMap<String,WebClient> web_clients; // used to store a WebClient for each feed_id
+    private HashMap<String,WebClient> web_clients; // a WebClient shared by the destinations on each scheme://host:port
 
     private Destinations destinations; // stores destination_type->destination_id -> http POST mapping
 
     private Sensors sensors; // stores sensor_type-> sensor_id -> destination_type/id mapping
 
+    // the sync of sensors and destinations with the PostgreSQL tables, null if there is no msgrouter.db.user
+    private TableSync destination_sync;
+    private TableSync sensor_sync;
+    private boolean syncing; // a load_data() is in progress
+
+    // the delivery metrics of the destinations, collected by the leader for each status message (see collect_metrics())
+    private boolean collecting;                                // a collect_metrics() is in progress
+    private long metrics_ns;                                   // System.nanoTime() of the last collection
+    private HashMap<String,DeliveryQueue.Metrics> metrics_totals = new HashMap<String,DeliveryQueue.Metrics>();
+    private String metrics_text = "";                          // the last metrics, for GET /metrics
+
+    // router consumers paused by "overflow": "block" destinations, with the count of destinations pausing each
+    // (shared by the instances of the group, see DeliveryQueue)
+    private HashMap<MessageConsumer<Object>,Integer> pause_counts = new HashMap<MessageConsumer<Object>,Integer>();
+    private long dropped; // messages discarded by the eventbus beyond the MAX_BUFFERED of a paused router consumer
+
+    private LinkedHashMap<String,ArrayList<Router>> source_routers; // source_address -> routers, in config order
+
+    // The instances of each MsgRouter (module.name.module.id) in this JVM, i.e. when deployed with "instances": N
+    private static final ConcurrentHashMap<String,Group> groups = new ConcurrentHashMap<String,Group>();
+
+    private Group group;        // the group of this instance
+    private final JsonFactory json_factory = new JsonFactory(); // to read the sensor id for shard()
+    private int instance_index; // the index of this instance in the group, the leader is 0
+    private ArrayList<String> old_spill_paths; // spill directories of other instance counts, see old_spill_paths()
+
     @Override
     public void start() throws Exception {
 
@@ -85,20 +137,92 @@ public class MsgRouter extends AbstractVerticle {
 
         eb = vertx.eventBus();
 
-        // create holder for WebClients, one per router
+        // create holder for WebClients, one per destination host (see host_client())
         web_clients = new HashMap<String,WebClient>();
 
-        // create holders for sensor and application data
-        sensors = new Sensors();
+        // join the group of the instances of this MsgRouter (one instance unless deployed with "instances": N),
+        // whose first instance (the leader) creates the sensors and pause_counts shared by the group
+        final int instance_count = context.getInstanceCount();
+        group = groups.compute(MODULE_NAME+"."+MODULE_ID, (key, g) -> {
+                if (g == null || g.complete())
+                {
+                    sensors = new Sensors();
+                    g = new Group(this, instance_count);
+                }
+                instance_index = g.add(this);
+                return g;
+            });
+        sensors = group.leader.sensors;
+        pause_counts = group.leader.pause_counts;
+        old_spill_paths = instance_index == 0 ? old_spill_paths(instance_count) : new ArrayList<String>();
+
         destinations = new Destinations();
 
-        // Asynchronous load of sensor and destination data from PostgreSQL
+        // create all the routers, grouped by source_address (in config order).  Each instance has its own
+        // routers and destinations (with their queues), and the leader's consumers dispatch the messages to them.
+        source_routers = new LinkedHashMap<String,ArrayList<Router>>();
+        for (int i=0; i<START_ROUTERS.size(); i++)
+            {
+                JsonObject router_config = START_ROUTERS.get(i);
+                String source_address = router_config.getString("source_address");
+                if (!source_routers.containsKey(source_address))
+                {
+                    source_routers.put(source_address, new ArrayList<Router>());
+                }
+                source_routers.get(source_address).add(new Router(router_config));
+            }
+
+        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                   ": instance "+(instance_index+1)+" of "+instance_count+" started");
+
+        // the leader starts the group once every instance has its routers
+        if (group.ready())
+        {
+            group.leader.context.runOnContext(v -> { group.leader.start_leader(); });
+        }
+
+    } // end start()
+
+    // Return the spill directories used when this MsgRouter ran with a different number of instances (i.e.
+    // spill_path itself for one instance, and spill_path/<n> for n of more than one), whose spill files are taken
+    // over by the leader's queues, so the messages spilled before a restart with a different "instances" are sent
+    private ArrayList<String> old_spill_paths(int instance_count)
+    {
+        ArrayList<String> paths = new ArrayList<String>();
+        if (SPILL_PATH == null)
+        {
+            return paths;
+        }
+        if (instance_count > 1)
+        {
+            paths.add(SPILL_PATH);
+        }
+        File[] dirs = new File(SPILL_PATH).listFiles(File::isDirectory);
+        if (dirs != null)
+        {
+            for (File dir : dirs)
+            {
+                if (dir.getName().matches("[1-9][0-9]{0,5}") &&
+                    (instance_count == 1 || Integer.parseInt(dir.getName()) > instance_count))
+                {
+                    paths.add(dir.getPath());
+                }
+            }
+        }
+        return paths;
+    }
+
+    // Start the consumers, database sync, manager messages and status messages, which are all on the leader instance
+    private void start_leader()
+    {
+        // Asynchronous load of sensor and destination data from PostgreSQL, then periodic sync of the changes
+        start_sync();
         load_data();
 
-        // iterate through all the routers to be started
-        for (int i=0; i<START_ROUTERS.size(); i++)
+        // start a single consumer for each source_address
+        for (String source_address : source_routers.keySet())
             {
-                start_router(START_ROUTERS.get(i));
+                start_routers(source_address, source_routers.get(source_address));
             }
 
         // **********************************************************************************
@@ -125,45 +249,106 @@ public class MsgRouter extends AbstractVerticle {
                 manager_message(message);
             });
 
+        // serve the destination metrics (as at the last status message) for Prometheus
+        if (METRICS_PORT > 0)
+        {
+            start_metrics_server();
+        }
+
         // **********************************************************************************
         // send system status message from this module (i.e. to itself) immediately on startup, then periodically
+        metrics_ns = System.nanoTime();
         send_status();
         // send periodic "system_status" messages
         vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> { send_status();  });
+    }
 
-    } // end start()
+    // Call handler with each instance of this MsgRouter, on that instance's event loop
+    private void each_instance(Handler<MsgRouter> handler)
+    {
+        for (MsgRouter instance : group.instances)
+        {
+            if (instance == this)
+            {
+                handler.handle(this);
+            }
+            else
+            {
+                instance.context.runOnContext(v -> { handler.handle(instance); });
+            }
+        }
+    }
 
-    // This procedure loads data from the PostgreSQL database asynchronously via vertx.executeBlocking
+    // Return a copy of each of the JsonObjects in list, for another instance (as a Destination changes its info)
+    private static List<JsonObject> copy_all(List<JsonObject> list)
+    {
+        ArrayList<JsonObject> copy = new ArrayList<JsonObject>(list.size());
+        for (JsonObject json : list)
+        {
+            copy.add(json.copy());
+        }
+        return copy;
+    }
+
+
+    // Sync the sensors and destinations with the csn_sensor and csn_destination tables in PostgreSQL, reading
+    // only the rows changed since the last sync (see TableSync).  Called on startup, every msgrouter.db.sync_ms
+    // and on a 'load_data' manager message.
     // Note the procedure will return *immediately* due to it's asynchronous call
     private void load_data()
     {
-        vertx.executeBlocking(promise -> {
-                    load_data_sql(promise);
-                },
-                res -> {
-                    if (res.succeeded())
-                    {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                  " load_data() complete, status "+res.result());
-                    }
-                    else
-                    {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                  " load_data() failed, status "+res.cause());
-                    }
-                       });
+        // MsgRouter may have ONLY destinations hard-coded into the config, in which case
+        // we may not be using a Postgresql mapping table for sensor->destination
+        if (destination_sync == null)
+        {
+            return;
+        }
+
+        // a sync is already in progress (e.g. a slow database)
+        if (syncing)
+        {
+            return;
+        }
+        syncing = true;
 
+        // destinations first, so a new sensor's destination is (normally) present when the sensor is added
+        destination_sync.sync(rd -> {
+                if (rd.failed())
+                {
+                    syncing = false;
+                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                               ": load_data csn_destination sync failed: "+rd.cause().getMessage());
+                    return;
+                }
+
+                sensor_sync.sync(rs -> {
+                        syncing = false;
+                        if (rs.failed())
+                        {
+                            logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                                       ": load_data csn_sensor sync failed: "+rs.cause().getMessage());
+                            return;
+                        }
+
+                        JsonObject d = rd.result();
+                        JsonObject r = rs.result();
+                        int level = d.getInteger("added") + d.getInteger("changed") + d.getInteger("deleted") +
+                                    r.getInteger("added") + r.getInteger("changed") + r.getInteger("deleted") > 0
+                                    ? Constants.LOG_INFO : Constants.LOG_DEBUG;
+                        logger.log(level, MODULE_NAME+"."+MODULE_ID+
+                                   ": load_data destinations "+d+", sensors "+r);
+                    });
+            });
     }
 
-    private boolean load_data_sql(Promise<Object> promise)
+    // Create the JDBCClient and TableSyncs for the csn_destination and csn_sensor tables, if msgrouter.db.user is set
+    private void start_sync()
     {
         String db_user = config().getString(MODULE_NAME+".db.user");
 
-        // MsgRouter may have ONLY destinations hard-coded into the config, in which case
-        // we may not be using a Postgresql mapping table for sensor->destination
         if (db_user==null)
         {
-            return false;
+            return;
         }
 
         // Ok we have a 'db_user' so assume we need to connect to Postgresql and initialise sensor->destination tables
@@ -180,83 +365,19 @@ public class MsgRouter extends AbstractVerticle {
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                    ": load_data jdbc_client created for user "+db_user+" connecting to "+sql_client_config.getString("url"));
 
-        jdbc_client.getConnection(res -> {
-            if (res.failed())
-            {
-                logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                            ": load_data getConnection failed.");
-                promise.fail(res.cause());
-            }
-            else
-            {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": load_data getConnection succeeded.");
-
-                SQLConnection sql_connection = res.result();
-
-                sql_connection.query( "SELECT info FROM csn_destination",
-                     rd -> {
-                              if (rd.failed())
-                              {
-                                  logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                               ": Failed query SELECT info FROM csn_destination");
-                                  promise.fail(rd.cause());
-                                  return;
-                              }
-
-                              logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                         ": "+rd.result().getNumRows() + " rows returned from csn_destination");
-
-                              int destination_count = 0;
-                              for (JsonObject row : rd.result().getRows())
-                              {
-                                  //logger.log(Constants.LOG_DEBUG, row.toString());
-                                  destinations.put(new JsonObject(row.getString("info")));
-                                  destination_count++;
-                              }
-
-
-                              logger.log(Constants.LOG_DEBUG, MODULE_NAME+
-                                         ": "+destination_count+" destinations loaded, "+destinations.type_count()+" type(s)");
-
-                              sql_connection.query( "SELECT info FROM csn_sensor",
-                                                    rs -> {
-                                                        if (rs.failed())
-                                                            {
-                                                                logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                                                            ": Failed query SELECT info FROM csn_sensor");
-                                                                promise.fail(rs.cause());
-                                                                return;
-                                                            }
-
-                                                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                                                   ": "+rs.result().getNumRows() + " rows returned from csn_sensor");
-
-                                                        // Accumulate count of sensors as they're added
-                                                        int sensor_count = 0;
-
-                                                        for (JsonObject row : rs.result().getRows())
-                                                            {
-                                                                //logger.log(Constants.LOG_DEBUG, row.toString());
-                                                                sensors.put(new JsonObject(row.getString("info")));
-                                                                sensor_count++;
-                                                            }
-
-                                                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+
-                                                                           ": "+sensor_count+" sensors loaded, "+sensors.type_count()+" type(s)");
-
-                                                        // close connection to database
-                                                        sql_connection.close(v -> {
-                                                                logger.log(Constants.LOG_DEBUG, MODULE_NAME+
-                                                                           ": sql_connection closed.");
-                                                                promise.complete("ok");
-                                                            });
-                                                    });
-                          });
-            }
-        });
+        // every instance has its own destinations
+        destination_sync = new TableSync(jdbc_client, "csn_destination", (puts, removes) -> {
+                each_instance(instance -> { instance.destinations.update(copy_all(puts), removes); });
+            });
 
-        return true;
+        sensor_sync = new TableSync(jdbc_client, "csn_sensor", (puts, removes) -> {
+                sensors.update(puts, removes);
+            });
+
+        if (DB_SYNC_MS > 0)
+        {
+            vertx.setPeriodic(DB_SYNC_MS, id -> { load_data(); });
+        }
     }
 
     // Here is where we process the 'manager' messages received for this module on the
@@ -340,7 +461,8 @@ public class MsgRouter extends AbstractVerticle {
                                ": skipping manager message ('params' property missing) on "+EB_MANAGER);
                     return;
                 }
-                destinations.put(destination_info);
+                final JsonObject add_info = destination_info;
+                each_instance(instance -> { instance.destinations.put(add_info.copy()); });
                 break;
 
             case Constants.METHOD_REMOVE_DESTINATION:
@@ -353,12 +475,26 @@ public class MsgRouter extends AbstractVerticle {
                                ": skipping manager message ('params' property missing) on "+EB_MANAGER);
                     return;
                 }
-                destinations.remove(destination_info);
+                final JsonObject remove_info = destination_info;
+                each_instance(instance -> { instance.destinations.remove(remove_info); });
                 break;
 
-            //debug
+            // list the destinations with their queue status
             case "print_destinations":
-                destinations.print();
+                each_instance(instance -> { instance.destinations.print(); });
+                break;
+
+            // list the routers of each instance, with their dedup status
+            case "print_routers":
+                each_instance(instance -> {
+                        for (ArrayList<Router> routers : instance.source_routers.values())
+                        {
+                            for (Router router : routers)
+                            {
+                                instance.logger.log(Constants.LOG_INFO, router.status().toString());
+                            }
+                        }
+                    });
                 break;
 
             //debug
@@ -379,25 +515,394 @@ public class MsgRouter extends AbstractVerticle {
 
     }
 
-    // send UP status to the EventBus
+    // send UP status to the EventBus, with the destination metrics since the last status message
     private void send_status()
     {
-        eb.publish(EB_SYSTEM_STATUS,
-                 "{ \"module_name\": \""+MODULE_NAME+"\"," +
-                   "\"module_id\": \""+MODULE_ID+"\"," +
-                   "\"status\": \"UP\"," +
-                   "\"status_msg\": \"UP\"," +
-                   "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
-                   "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
-                 "}" );
+        // (a collection still in progress, e.g. held up by a busy instance, does not hold up the status)
+        if (collecting)
+        {
+            publish_status(null);
+            return;
+        }
+        collect_metrics(metrics -> { publish_status(metrics); });
+    }
+
+    private void publish_status(JsonObject metrics)
+    {
+        JsonObject status = new JsonObject()
+            .put("module_name", MODULE_NAME)
+            .put("module_id", MODULE_ID)
+            .put("status", "UP")
+            .put("status_msg", "UP")
+            .put("status_amber_seconds", SYSTEM_STATUS_AMBER_SECONDS)
+            .put("status_red_seconds", SYSTEM_STATUS_RED_SECONDS);
+        if (metrics != null)
+        {
+            status.put("metrics", metrics);
+        }
+        if (dropped > 0L)
+        {
+            status.put("dropped", dropped);
+        }
+        eb.publish(EB_SYSTEM_STATUS, status.toString());
     }
 
     // ************************************************************
-    // start_router()
-    // start a Router by registering a consumer to the given address
+    // collect_metrics()
+    // Gather the delivery metrics of the destinations of every instance (each on its own event loop), and merge
+    // them on the leader into the metrics for each destination and destination_type, e.g.
+    //   { "period_ms": 10000,
+    //     "destination_types": { "feed_eventbus_0": { "delivered": 1204, "rate": 120.4, "errors": 0, "timeouts": 1,
+    //                            "latency": { "count": 1204, "p50_ms": 3.1, "p90_ms": 7.9, "p99_ms": 41.9, ... } } },
+    //     "destinations": { "feed_eventbus_0/xyz": { ... } } }
+    // where the counts, rate and latencies are for the period since the last collection, and only the
+    // destinations with messages or failures in the period are listed.  Also updates metrics_text for GET /metrics.
     // ************************************************************
-    private void start_router(JsonObject router_config)
+    private void collect_metrics(Handler<JsonObject> done)
+    {
+        collecting = true;
+        ArrayList<HashMap<String,DeliveryQueue.Metrics>> gathered = new ArrayList<HashMap<String,DeliveryQueue.Metrics>>();
+        each_instance(instance -> {
+                HashMap<String,DeliveryQueue.Metrics> instance_metrics = instance.destinations.metrics();
+                context.runOnContext(v -> {
+                        gathered.add(instance_metrics);
+                        if (gathered.size() == group.instances.length)
+                        {
+                            collecting = false;
+                            done.handle(merge_metrics(gathered));
+                        }
+                    });
+            });
+    }
+
+    // Merge the metrics of the instances, returning the status message metrics and setting metrics_text
+    private JsonObject merge_metrics(List<HashMap<String,DeliveryQueue.Metrics>> gathered)
+    {
+        long now_ns = System.nanoTime();
+        double seconds = Math.max(0.001, (now_ns - metrics_ns) / 1e9);
+        metrics_ns = now_ns;
+
+        // "type/id" -> metrics of the destination, and "type" -> metrics of the destination_type
+        TreeMap<String,DeliveryQueue.Metrics> totals = new TreeMap<String,DeliveryQueue.Metrics>();
+        TreeMap<String,DeliveryQueue.Metrics> type_totals = new TreeMap<String,DeliveryQueue.Metrics>();
+        for (HashMap<String,DeliveryQueue.Metrics> instance_metrics : gathered)
+        {
+            for (Map.Entry<String,DeliveryQueue.Metrics> entry : instance_metrics.entrySet())
+            {
+                String key = entry.getKey();
+                String type = key.substring(0, key.indexOf('/'));
+                add_metrics(totals, key, entry.getValue());
+                add_metrics(type_totals, type, entry.getValue());
+            }
+        }
+
+        JsonObject types_json = new JsonObject();
+        for (Map.Entry<String,DeliveryQueue.Metrics> entry : type_totals.entrySet())
+        {
+            types_json.put(entry.getKey(), period_json(entry.getValue(), metrics_totals.get(entry.getKey()), seconds));
+        }
+        JsonObject destinations_json = new JsonObject();
+        for (Map.Entry<String,DeliveryQueue.Metrics> entry : totals.entrySet())
+        {
+            DeliveryQueue.Metrics previous = metrics_totals.get(entry.getKey());
+            DeliveryQueue.Metrics m = entry.getValue();
+            if (previous == null || m.delivered != previous.delivered || m.errors != previous.errors ||
+                m.timeouts != previous.timeouts)
+            {
+                destinations_json.put(entry.getKey(), period_json(m, previous, seconds));
+            }
+        }
+
+        metrics_text = metrics_text(totals, type_totals);
+
+        // the totals (of the destinations still present) are kept for the counts of the next period
+        metrics_totals = new HashMap<String,DeliveryQueue.Metrics>(totals);
+        metrics_totals.putAll(type_totals);
+
+        return new JsonObject()
+            .put("period_ms", Math.round(seconds * 1000.0))
+            .put("destination_types", types_json)
+            .put("destinations", destinations_json);
+    }
+
+    private static void add_metrics(Map<String,DeliveryQueue.Metrics> totals, String key, DeliveryQueue.Metrics metrics)
+    {
+        DeliveryQueue.Metrics total = totals.get(key);
+        if (total == null)
+        {
+            total = new DeliveryQueue.Metrics();
+            totals.put(key, total);
+        }
+        total.add(metrics);
+    }
+
+    // The status message metrics of a destination or destination_type for the period since 'previous' (or null)
+    private static JsonObject period_json(DeliveryQueue.Metrics m, DeliveryQueue.Metrics previous, double seconds)
+    {
+        // (not below 0, e.g. if a destination of the type has been removed)
+        long delivered = Math.max(0L, m.delivered - (previous == null ? 0L : previous.delivered));
+        long errors = Math.max(0L, m.errors - (previous == null ? 0L : previous.errors));
+        long timeouts = Math.max(0L, m.timeouts - (previous == null ? 0L : previous.timeouts));
+        return new JsonObject()
+            .put("delivered", delivered)
+            .put("rate", Math.round(delivered * 10.0 / seconds) / 10.0)
+            .put("errors", errors)
+            .put("timeouts", timeouts)
+            .put("latency", m.latency.json());
+    }
+
+    // Return the metrics in the Prometheus text format: the counters since startup, and the latency quantiles
+    // (as a summary) for the last status period
+    private String metrics_text(TreeMap<String,DeliveryQueue.Metrics> totals, TreeMap<String,DeliveryQueue.Metrics> type_totals)
+    {
+        StringBuilder delivered = new StringBuilder();
+        StringBuilder errors = new StringBuilder();
+        StringBuilder timeouts = new StringBuilder();
+        StringBuilder latency = new StringBuilder();
+        StringBuilder type_latency = new StringBuilder();
+
+        for (Map.Entry<String,DeliveryQueue.Metrics> entry : totals.entrySet())
+        {
+            String key = entry.getKey();
+            int slash = key.indexOf('/');
+            String labels = "module_id=\""+label(MODULE_ID)+"\",destination_type=\""+label(key.substring(0, slash))+
+                            "\",destination_id=\""+label(key.substring(slash + 1))+"\"";
+            DeliveryQueue.Metrics m = entry.getValue();
+            delivered.append("msgrouter_delivered_total{").append(labels).append("} ").append(m.delivered).append('\n');
+            errors.append("msgrouter_errors_total{").append(labels).append("} ").append(m.errors).append('\n');
+            timeouts.append("msgrouter_timeouts_total{").append(labels).append("} ").append(m.timeouts).append('\n');
+            summary(latency, "msgrouter_latency_seconds", labels, m);
+        }
+        for (Map.Entry<String,DeliveryQueue.Metrics> entry : type_totals.entrySet())
+        {
+            String labels = "module_id=\""+label(MODULE_ID)+"\",destination_type=\""+label(entry.getKey())+"\"";
+            summary(type_latency, "msgrouter_type_latency_seconds", labels, entry.getValue());
+        }
+
+        return "# HELP msgrouter_delivered_total Messages delivered to the destination (HTTP 2xx).\n" +
+               "# TYPE msgrouter_delivered_total counter\n" + delivered +
+               "# HELP msgrouter_errors_total Failed POSTs to the destination, other than timeouts.\n" +
+               "# TYPE msgrouter_errors_total counter\n" + errors +
+               "# HELP msgrouter_timeouts_total Timed out POSTs to the destination.\n" +
+               "# TYPE msgrouter_timeouts_total counter\n" + timeouts +
+               "# HELP msgrouter_latency_seconds Eventbus arrival to HTTP 2xx, quantiles over the last status period.\n" +
+               "# TYPE msgrouter_latency_seconds summary\n" + latency +
+               "# HELP msgrouter_type_latency_seconds Eventbus arrival to HTTP 2xx by destination_type, quantiles over the last status period.\n" +
+               "# TYPE msgrouter_type_latency_seconds summary\n" + type_latency;
+    }
+
+    // Append the Prometheus summary lines of the latencies m
+    private static void summary(StringBuilder text, String name, String labels, DeliveryQueue.Metrics m)
+    {
+        double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+        for (double q : quantiles)
+        {
+            text.append(name).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+                .append(m.latency.percentile(q) / 1e6).append('\n');
+        }
+        text.append(name).append("_sum{").append(labels).append("} ").append(m.latency_sum_us / 1e6).append('\n');
+        text.append(name).append("_count{").append(labels).append("} ").append(m.delivered).append('\n');
+    }
+
+    // Escape a Prometheus label value
+    private static String label(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Serve GET /metrics on msgrouter.metrics_port, from the leader (so on the leader's event loop, as metrics_text)
+    private void start_metrics_server()
+    {
+        vertx.createHttpServer()
+            .requestHandler(request -> {
+                    if (request.path().equals("/metrics"))
+                    {
+                        request.response()
+                            .putHeader("content-type", "text/plain; version=0.0.4")
+                            .end(metrics_text);
+                    }
+                    else
+                    {
+                        request.response().setStatusCode(404).end();
+                    }
+                })
+            .listen(METRICS_PORT, res -> {
+                    if (res.succeeded())
+                    {
+                        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                                   ": metrics on http port "+METRICS_PORT+" /metrics");
+                    }
+                    else
+                    {
+                        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                                   ": metrics server failed on port "+METRICS_PORT+": "+res.cause().getMessage());
+                    }
+                });
+    }
+
+    // ************************************************************
+    // start_routers()
+    // start the Routers for a source_address by registering a single consumer to the address (on the leader),
+    // which dispatches each message to the instance for its sensor, where it is parsed once however many
+    // routers (and destinations) it goes to
+    // ************************************************************
+    private void start_routers(String source_address, ArrayList<Router> routers)
+    {
+        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                   ": starting "+routers.size()+" router(s) on "+source_address);
+
+        // the messages are dispatched by the sensor id at the sensor_id_path of the first router on the address
+        // that routes by sensor, so each sensor's messages are routed in order by the same instance.  With no
+        // such router, all the messages on the address go to one instance.
+        JsonPath shard_path = null;
+        for (Router router : routers)
+        {
+            if (!router.has_destination)
+            {
+                shard_path = router.sensor_id_path.streamable() ? router.sensor_id_path : null;
+                break;
+            }
+        }
+        final JsonPath sensor_id_path = shard_path;
+        final int address_instance = Math.floorMod(source_address.hashCode(), group.instances.length);
+
+        // the consumer is passed with each message sent, so an "overflow": "block" destination can pause it
+        final MessageConsumer<Object> consumer = eb.consumer(source_address);
+        // while it is paused the consumer buffers up to MAX_BUFFERED messages, and the eventbus discards the rest
+        consumer.setMaxBufferedMessages(MAX_BUFFERED);
+        if (consumer instanceof MessageConsumerImpl)
+        {
+            ((MessageConsumerImpl<Object>) consumer).discardHandler(message -> {
+                    if (dropped++ == 0)
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+": router consumer on "+source_address+
+                                    " paused with "+MAX_BUFFERED+" messages buffered, dropping messages");
+                    }
+                });
+        }
+        consumer.handler(message -> {
+            //System.out.println("MsgRouter."+MODULE_ID+": got message from " + source_address);
+            // the time of arrival, for the delivery latency of the message (see DeliveryQueue)
+            long arrived_ns = System.nanoTime();
+            String body = message.body().toString();
+
+            MsgRouter instance = group.instances[sensor_id_path == null ? address_instance : shard(body, sensor_id_path)];
+            if (instance == this)
+            {
+                route(source_address, body, arrived_ns, consumer);
+            }
+            else
+            {
+                instance.context.runOnContext(v -> { instance.route(source_address, body, arrived_ns, consumer); });
+            }
+        });
+    }
+
+    // Route a message received on source_address by the leader's consumer, on this instance's event loop
+    private void route(String source_address, String body, long arrived_ns, MessageConsumer<Object> consumer)
+    {
+        JsonObject msg = new JsonObject(body);
+
+        // the POST bodies encoded for this message, shared by all the destinations they are sent to,
+        // keyed by the data path ("" for the whole message)
+        HashMap<String,Buffer> encoded = new HashMap<String,Buffer>();
+        encoded.put("", Buffer.buffer(body));
+
+        for (Router router : source_routers.get(source_address))
+        {
+            router.route(msg, encoded, arrived_ns, consumer);
+        }
+    }
+
+    // Return the index of the instance to route the message 'body' with the sensor id at sensor_id_path, reading
+    // the id from the message text without decoding the message (a message without one goes to the leader)
+    private int shard(String body, JsonPath sensor_id_path)
+    {
+        if (group.instances.length == 1)
+        {
+            return 0;
+        }
+
+        String[] sensor_id = new String[1];
+        try (JsonParser parser = json_factory.createParser(body))
+        {
+            parser.nextToken();
+            sensor_id_path.each(parser, value -> {
+                    if (value.currentToken().isScalarValue())
+                    {
+                        sensor_id[0] = value.getText();
+                    }
+                    else
+                    {
+                        value.skipChildren();
+                    }
+                });
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+        // lowercased as the sensors are matched ignoring case
+        return sensor_id[0] == null ? 0 : Math.floorMod(RoutingTable.lower(sensor_id[0]).hashCode(), group.instances.length);
+    }
+
+    // Return the POST body for the part of msg at data_path, encoding it only once per message
+    private static Buffer encoded_body(JsonObject msg, JsonPath data_path, HashMap<String,Buffer> encoded)
     {
+        Buffer body = encoded.get(data_path.path);
+        if (body == null)
+        {
+            body = Buffer.buffer(data_path.getJsonObject(msg).toString());
+            encoded.put(data_path.path, body);
+        }
+        return body;
+    }
+
+    // *******************************************************************************************************************
+    // *************************** Class Group  **************************************************************************
+    // *******************************************************************************************************************
+    // The instances of a MsgRouter deployed with "instances": N, each on its own event loop.  The first instance to
+    // start is the leader, which has the eventbus consumers (dispatching the messages to the instances), the manager
+    // messages and the database sync, and whose sensors (an immutable RoutingTable, see Sensors) are shared by all
+    // the instances.  Changes to the destinations are applied by each instance to its own destinations.
+    // Created and filled in by groups.compute(), i.e. atomically.
+    private static class Group {
+        final MsgRouter leader;
+        final MsgRouter[] instances;
+        private int count; // instances added so far
+        private final AtomicInteger ready = new AtomicInteger(); // instances that have created their routers
+
+        Group(MsgRouter leader, int instance_count)
+        {
+            this.leader = leader;
+            instances = new MsgRouter[instance_count];
+        }
+
+        // Add an instance, returning its index
+        int add(MsgRouter instance)
+        {
+            instances[count] = instance;
+            return count++;
+        }
+
+        boolean complete()
+        {
+            return count == instances.length;
+        }
+
+        // Record that an instance has created its routers, returning true for the last of the instances
+        boolean ready()
+        {
+            return ready.incrementAndGet() == instances.length;
+        }
+    }
+
+    // *******************************************************************************************************************
+    // *************************** Class Router  *************************************************************************
+    // *******************************************************************************************************************
+    // A router from the msgrouter.routers config, routing the messages on its source_address that match its
+    // source_filter either to its own destination or to the destination of each message's sensor
+    private class Router {
 
         // A router config() contains a minimum of a "source_address" property,
         // which is the EventBus address it will listen to for messages to be forwarded.
@@ -426,56 +931,101 @@ public class MsgRouter extends AbstractVerticle {
         //        },
         //
         // in which case only messages on the source_address that match this pattern will
-        // be processed.
+        // be processed.  Filters can be combined with "and", "or" and "not" (see acp_server.util.MsgFilter).
+        //
+        // A router without a destination_type/id routes each message via the sensors table, using
+        // the optional JsonPath properties (see acp_server.util.JsonPath):
+        //            "sensor_id_path":   "sensor_id",         (default)
+        //            "sensor_type_path": "sensor_type",       (default)
+        //            "data_path":        "request_data[0]"    (default) the part of the message that is sent
+        //
+        // A router MAY also drop the duplicate messages of its source (see Dedup), e.g.
+        //            "dedup": { "fields": [ "dev_eui", "fcnt" ], "window_ms": 60000 }
 
-        final JsonObject filter_json = router_config.getJsonObject("source_filter");
-        final boolean has_filter =  filter_json != null;
+        private JsonObject router_config;
+        private MsgFilter source_filter;  // null if no source_filter
+        private boolean has_destination;
+        private String destination_type;
+        private String destination_id;
 
-        final RouterFilter source_filter = has_filter ? new RouterFilter(filter_json) : null;
+        // compiled once here, rather than navigating the message properties for every message
+        private JsonPath sensor_id_path;
+        private JsonPath sensor_type_path;
+        private JsonPath data_path;
+        private JsonPath request_data_0;  // for FEED_EVENTBUS_0
 
-        final boolean has_destination = destinations.put(router_config);
+        private Dedup dedup;              // null if no "dedup"
 
-        String router_filter_text;
-        if (has_filter)
-            {
-                //source_filter = new RouterFilter(filter_json);
-                router_filter_text = " with " + filter_json.toString();
-            }
-        else
+        Router(JsonObject router_config)
+        {
+            this.router_config = router_config;
+
+            JsonObject filter_json = router_config.getJsonObject("source_filter");
+            source_filter = filter_json != null ? new MsgFilter(filter_json) : null;
+
+            has_destination = destinations.put(router_config);
+            destination_type = router_config.getString("destination_type");
+            destination_id = router_config.getString("destination_id");
+
+            sensor_id_path = new JsonPath(router_config.getString("sensor_id_path", "sensor_id"));
+            sensor_type_path = new JsonPath(router_config.getString("sensor_type_path", "sensor_type"));
+            data_path = new JsonPath(router_config.getString("data_path", "request_data[0]"));
+            request_data_0 = new JsonPath("request_data[0]");
+
+            JsonObject dedup_config = router_config.getJsonObject("dedup");
+            if (dedup_config != null)
             {
-                router_filter_text = "";
+                try
+                {
+                    dedup = new Dedup(dedup_config);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                               ": ignoring router dedup config: "+e.getMessage());
+                }
             }
-        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
-                   ": starting router "+router_config.getString("source_address")+ router_filter_text);
 
-        // register to router_config.source_address,
-        // test messages with router_config.source_filter
-        // and call store_msg if current message passes filter
-        eb.consumer(router_config.getString("source_address"), message -> {
-            //System.out.println("MsgRouter."+MODULE_ID+": got message from " + router_config.source_address);
-            JsonObject msg = new JsonObject(message.body().toString());
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                       ": starting router "+router_config.getString("source_address")+
+                       (filter_json != null ? " with " + filter_json.toString() : ""));
+        }
 
+        // Route msg, where 'encoded' holds the POST bodies already encoded for this message, and arrived_ns is
+        // the System.nanoTime() it arrived
+        void route(JsonObject msg, HashMap<String,Buffer> encoded, long arrived_ns, MessageConsumer<Object> consumer)
+        {
             //**************************************************************************
             //**************************************************************************
             // Route the message onwards via POST to destination
             //**************************************************************************
             //**************************************************************************
-            if (!has_filter || source_filter.match(msg))
+            if (source_filter == null || source_filter.match(msg))
             {
+                // skip a copy of a message already routed
+                if (dedup != null && dedup.duplicate(msg))
+                {
+                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                               ": duplicate message skipped on "+router_config.getString("source_address"));
+                    return;
+                }
+
                 // route this message if it matches the filter within the RouterConfig
                 //route_msg(web_client, router_config, msg);
                 if (has_destination)
                 {
-                    String destination_type = router_config.getString("destination_type");
-                    String destination_id = router_config.getString("destination_id");
                     logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                                ": sending message to "+destination_type+"/"+destination_id);
                     try
                     {
+                        // the sensor, for an "ordered" destination
+                        String key = sensor_id_path.getString(msg);
+                        key = key == null ? null : RoutingTable.lower(key);
+
                         switch (destination_type)
                         {
                             case Constants.FEED_EVENTBUS_MSG:
-                                destinations.get(destination_type,destination_id).send(msg.toString());
+                                destinations.get(destination_type,destination_id).send(encoded.get(""), key, arrived_ns, consumer);
                                 break;
 
                             case Constants.FEED_EVENTBUS_0:
@@ -483,7 +1033,7 @@ public class MsgRouter extends AbstractVerticle {
                                 // the "request_data" parameter, for LoraWAN purposes we are currently assuming
                                 // only a single data value is going to be present, hence we are forwarding
                                 // msg.getJsonArray("request_data").getJsonObject(0), not the whole array.
-                                destinations.get(destination_type,destination_id).send(msg.getJsonArray("request_data").getJsonObject(0).toString());
+                                destinations.get(destination_type,destination_id).send(encoded_body(msg, request_data_0, encoded), key, arrived_ns, consumer);
                                 break;
 
                             default:
@@ -504,9 +1054,8 @@ public class MsgRouter extends AbstractVerticle {
                 {
                     // There is no destination_type/id defined in the config(), so we'll try and route via
                     // the sensor_type/id -> destination_id mapping in the sensors HashMap
-                    String msg_sensor_id = msg.getString("sensor_id");
-                    //debug! We will need to put this sensor type into a Constant
-                    String msg_sensor_type = msg.getString("sensor_type");
+                    String msg_sensor_id = sensor_id_path.getString(msg);
+                    String msg_sensor_type = sensor_type_path.getString(msg);
                     if (msg_sensor_id == null || msg_sensor_type == null)
                     {
                         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
@@ -517,14 +1066,14 @@ public class MsgRouter extends AbstractVerticle {
                                ": handling sensor data from "+msg_sensor_type+"/"+msg_sensor_id);
 
                     //debug! Need to re-do this key construction
-                    String destination_id = null;
-                    String destination_type = null;
+                    String sensor_destination_id = null;
+                    String sensor_destination_type = null;
 
                     try
                     {
                         // Here we pick out the
-                        destination_id = (sensors.get(msg_sensor_type,msg_sensor_id).info).getString("destination_id");
-                        destination_type = (sensors.get(msg_sensor_type,msg_sensor_id).info).getString("destination_type");
+                        sensor_destination_id = (sensors.get(msg_sensor_type,msg_sensor_id).info).getString("destination_id");
+                        sensor_destination_type = (sensors.get(msg_sensor_type,msg_sensor_id).info).getString("destination_type");
                     }
                     catch (Exception NullPointerException)
                     {
@@ -534,12 +1083,12 @@ public class MsgRouter extends AbstractVerticle {
                     }
 
                     logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": sending "+msg_sensor_type+"/"+msg_sensor_id+" to "+destination_type+"/"+destination_id);
+                               ": sending "+msg_sensor_type+"/"+msg_sensor_id+" to "+sensor_destination_type+"/"+sensor_destination_id);
 
                     try
                     {
-                        destinations.get(destination_type,destination_id)
-                            .send(msg.getJsonArray("request_data").getJsonObject(0).toString());
+                        destinations.get(sensor_destination_type,sensor_destination_id)
+                            .send(encoded_body(msg, data_path, encoded), RoutingTable.lower(msg_sensor_id), arrived_ns, consumer);
                     }
                     catch (Exception NullPointerException)
                     {
@@ -552,13 +1101,25 @@ public class MsgRouter extends AbstractVerticle {
             else
             {
                 logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": "+msg.getString("sensor_type")+"/"+msg.getString("sensor_id")+" msg skipped - no match "+
+                           ": "+sensor_type_path.getString(msg)+"/"+sensor_id_path.getString(msg)+" msg skipped - no match "+
                            router_config.getJsonObject("source_filter").toString());
             }
+        }
 
-        });
+        // Return the router status, e.g. for print_routers
+        JsonObject status()
+        {
+            JsonObject status = new JsonObject()
+                .put("source_address", router_config.getString("source_address"))
+                .put("destination", has_destination ? destination_type+"/"+destination_id : "sensors");
+            if (dedup != null)
+            {
+                status.put("dedup", dedup.status());
+            }
+            return status;
+        }
 
-    } // end start_router
+    } // end class Router
 
     //**************************************************************************
     //**************************************************************************
@@ -607,6 +1168,18 @@ public class MsgRouter extends AbstractVerticle {
           return false;
         }
 
+        SPILL_PATH = config().getString(MODULE_NAME+".spill_path");
+
+        HTTP_POOL_SIZE = config().getInteger(MODULE_NAME+".http_pool_size", DEFAULT_HTTP_POOL_SIZE);
+
+        MAX_BUFFERED = Math.max(1, config().getInteger(MODULE_NAME+".max_buffered", DEFAULT_MAX_BUFFERED));
+
+        HTTP2 = config().getBoolean(MODULE_NAME+".http2", true);
+
+        DB_SYNC_MS = config().getInteger(MODULE_NAME+".db.sync_ms", DEFAULT_DB_SYNC_MS);
+
+        METRICS_PORT = config().getInteger(MODULE_NAME+".metrics_port", 0);
+
         // iterate through the msgrouter.routers config values
         START_ROUTERS = new ArrayList<JsonObject>();
         JsonArray config_router_list = config().getJsonArray(MODULE_NAME+".routers");
@@ -666,20 +1239,57 @@ public class MsgRouter extends AbstractVerticle {
         }
     }
 
+    // Return the WebClient for POSTs to host:port, shared by all the destinations on that host (typically many
+    // csn_destination rows with the same URL host) so they share one pool of keep-alive connections.
+    // Pipelining destinations get their own client for the host, as pipelining is a property of the connections.
+    private WebClient host_client(boolean ssl, String host, int port, boolean pipelining)
+    {
+        String key = (ssl ? "https://" : "http://") + host.toLowerCase() + ":" + port + (pipelining ? " pipelined" : "");
+
+        WebClient web_client = web_clients.get(key);
+        if (web_client == null)
+        {
+            WebClientOptions options = new WebClientOptions()
+                                           .setSsl(ssl)
+                                           .setTrustAll(true)
+                                           .setDefaultPort(port)
+                                           .setDefaultHost(host)
+                                           .setKeepAlive(true)
+                                           .setMaxPoolSize(HTTP_POOL_SIZE)
+                                           .setPipelining(pipelining);
+            // with TLS, ALPN offers h2 and falls back to HTTP/1.1 if the server does not support it, and an h2
+            // connection multiplexes all the destinations' POSTs to the host
+            if (ssl && HTTP2)
+            {
+                options.setProtocolVersion(HttpVersion.HTTP_2)
+                       .setUseAlpn(true);
+            }
+
+            web_client = WebClient.create(vertx, options);
+            web_clients.put(key, web_client);
+
+            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                       ": created WebClient for "+key);
+        }
+        return web_client;
+    }
+
     // *******************************************************************************************************************
     // *************************** Class Destination  ********************************************************************
     // *******************************************************************************************************************
     // This class holds the LoraWAN destination (i.e. http destination) data
     // received in the 'params' property of the 'add_destination' eventbus method message
-    private class Destination {
+    private class Destination implements DeliveryQueue.Sender {
         public String destination_type;  // Type of destination, e.g. "everynet_jsonrpc"
         public String destination_id;    // Id.  (destination_type,destination_id) is unique
         public JsonObject info;          // Data packet defining Destination as received from eventbus add_destination
                                          // or PostgreSQL csn_destination table
 
-        public WebClient web_client;   // We pre-define an WebClient for each Destination. Hopefully this is more efficient.
+        public WebClient web_client;     // The WebClient shared by the destinations on this host, from host_client()
         UrlParts u;                      // To hold the results of the parse_url()
 
+        DeliveryQueue queue;             // The messages waiting to be POSTed, set by Destinations.put()
+
         private class UrlParts {         // The results from using Java URL parsing in parse_url
             public boolean http_ssl;
             public int     http_port;
@@ -691,6 +1301,16 @@ public class MsgRouter extends AbstractVerticle {
         //   "http_token":"foo!bar", // optional
         //   "http_token_header": "x-api-key" // optional - default to X-Auth-Token
         //   "url": "http://localhost:8080/efgh"
+        //   "queue_size": 1000,        // optional, see DeliveryQueue
+        //   "max_in_flight": 8,        // optional, POSTs in progress at once (on the host's shared connections)
+        //   "overflow": "drop_oldest", // optional, or "block" or "spill"
+        //   "http_pipelining": false   // optional, pipeline the POSTs on the keep-alive connections to this host
+        //   "http_timeout_ms": 15000,  // optional
+        //   "max_retries": 3,          // optional, retries (with backoff from retry_ms) before parking a message
+        //   "retry_ms": 1000,          // optional
+        //   "breaker_failures": 5,     // optional, consecutive failures that open the circuit breaker
+        //   "breaker_open_ms": 30000,  // optional
+        //   "batch": { "max_records": 500, "max_ms": 250, "gzip": true } // optional, POST JSON arrays of messages
         // }
 
         // Constructor
@@ -725,13 +1345,7 @@ public class MsgRouter extends AbstractVerticle {
             // inject http_path into the destination "info"
             info.put("http_path", u.http_path);
 
-            WebClientOptions options = new WebClientOptions()
-                                           .setSsl(u.http_ssl)
-                                           .setTrustAll(true)
-                                           .setDefaultPort(u.http_port)
-                                           .setDefaultHost(u.http_host);
-
-            web_client = WebClient.create(vertx, options);
+            web_client = host_client(u.http_ssl, u.http_host, u.http_port, info.getBoolean("http_pipelining", false));
 
             //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
             //     ": created destination "+this.toString());
@@ -784,19 +1398,41 @@ public class MsgRouter extends AbstractVerticle {
                    u.http_path;
         }
 
-        // Here is where we POST the data to the destination
-        public void send(String msg)
+        // Queue the POST body to be sent to the destination, where key is the sensor id (or null), arrived_ns the
+        // System.nanoTime() the message arrived and source the router consumer it came from.  The body may be
+        // shared with other destinations.
+        public void send(Buffer body, String key, long arrived_ns, MessageConsumer<Object> source)
         {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": sending to "+destination_type+"/"+destination_id+": " + msg);
+            queue.offer(body, key, arrived_ns, source);
+        }
 
-            try
+        // Here is where we POST the data to the destination, calling done when the POST completes
+        public void send(Buffer body, Handler<AsyncResult<Void>> done)
+        {
+            // (only decoded for the log message if it will be logged)
+            if (logger.level <= Constants.LOG_DEBUG)
             {
-                Buffer post_body = Buffer.buffer(msg);
+                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                           ": sending to "+destination_type+"/"+destination_id+": " + body.toString());
+            }
 
+            try
+            {
                 // Build request
                 HttpRequest<Buffer> request = web_client.post(u.http_path);
 
+                Buffer post_body;
+                JsonObject batch_config = info.getJsonObject("batch");
+                if (batch_config != null && batch_config.getBoolean("gzip", false))
+                {
+                    post_body = gzip(body);
+                    request.putHeader("content-encoding", "gzip");
+                }
+                else
+                {
+                    post_body = body;
+                }
+
                 // Add optional token header
                 // info is the original router config
                 String auth_token = info.getString("http_token");
@@ -809,7 +1445,7 @@ public class MsgRouter extends AbstractVerticle {
 
                 // Add remaining settings and send POST
                 request.putHeader("content-type", "application/json")
-                    .timeout(15000) // give up after 15 seconds
+                    .timeout(info.getLong("http_timeout_ms", 15000L)) // give up after 15 seconds (default)
                     // send this POST...
                     .sendBuffer( post_body, async_response -> {
                         if (async_response.succeeded())
@@ -817,8 +1453,23 @@ public class MsgRouter extends AbstractVerticle {
                             logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                                        ": msg posted to " + this.toString());
 
+                            int status_code = async_response.result().statusCode();
                             logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": response was " + async_response.result().statusCode());
+                                       ": response was " + status_code);
+
+                            // a server error (or "too many requests") is retried, any other 4xx is not
+                            if (status_code >= 500 || status_code == 429)
+                            {
+                                done.handle(Future.failedFuture(new DeliveryQueue.DeliveryException("HTTP "+status_code, true)));
+                            }
+                            else if (status_code >= 400)
+                            {
+                                done.handle(Future.failedFuture(new DeliveryQueue.DeliveryException("HTTP "+status_code, false)));
+                            }
+                            else
+                            {
+                                done.handle(Future.succeededFuture());
+                            }
                         }
                         else // async_response failed
                         {
@@ -827,6 +1478,8 @@ public class MsgRouter extends AbstractVerticle {
 
                             logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                                        ": POST FAILED " + async_response.cause().getMessage() );
+
+                            done.handle(Future.failedFuture(async_response.cause()));
                         }
                     }); // end .send
 
@@ -836,9 +1489,22 @@ public class MsgRouter extends AbstractVerticle {
                 logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
                            ": Destination send error for "+destination_type+"/"+destination_id);
                 logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": "+e.getMessage());
+
+                done.handle(Future.failedFuture(e));
             }
         }
 
+        // Return body gzip-compressed, at the fastest compression level as this is on the event loop
+        private Buffer gzip(Buffer body) throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length() / 4 + 64);
+            try (GZIPOutputStream gz = new GZIPOutputStream(bytes, 8192) { { def.setLevel(Deflater.BEST_SPEED); } })
+            {
+                gz.write(body.getBytes());
+            }
+            return Buffer.buffer(bytes.toByteArray());
+        }
+
     } // end class Destination
 
 
@@ -850,64 +1516,31 @@ public class MsgRouter extends AbstractVerticle {
     // A collection of Destination objects, with get, put
     class Destinations
     {
-        private HashMap<String,HashMap<String,Destination>> destinations; // stores destination_type->destination_id -> http POST mapping
+        // stores destination_type,destination_id -> http POST mapping.  Replaced (by update()) rather than changed,
+        // so a router always sees the destinations before or after a whole update.
+        private volatile RoutingTable<Destination> destinations;
 
         // Constructor, called in Verticle.start()
         public Destinations()
         {
-            destinations = new HashMap<String,HashMap<String,Destination>>();
+            destinations = RoutingTable.empty();
         }
 
         public int type_count()
         {
-            return destinations.size();
+            return destinations.type_count();
         }
 
-        // Get: access method, destination_type,destination_id-> Destination
+        // Get: access method, destination_type,destination_id-> Destination (ignoring case)
         public Destination get(String destination_type, String destination_id) throws NullPointerException
         {
-            return destinations.get(destination_type).get(destination_id);
+            return destinations.get(destination_type, destination_id);
         }
 
         // Add a destination (destination_id, http_token, url) to destinations, having received an 'add_destination' manager message
         public boolean put(JsonObject destination_info)
         {
-            Destination destination;
-            try
-            {
-                // Create Destination object for this destination
-                destination = new Destination(destination_info);
-
-            }
-            catch (MsgRouterException e)
-            {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": add_destination failed with "+e.getMessage());
-                return false;
-            }
-
-            // ***********************************************
-            // add the destination to the current list (HashMap)
-            // ***********************************************
-
-            // If this destination is the first of its type, create a new HashMap for that type
-            HashMap<String,Destination> type_destinations = destinations.get(destination.destination_type);
-
-            if (type_destinations == null)
-            {
-                type_destinations = new HashMap<String, Destination>();
-                // add new destinations hashmap to global destinations hashmap
-                destinations.put(destination.destination_type.toLowerCase(), type_destinations);
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": added new destination_type \""+destination.destination_type+"\" to destinations in-memory store");
-            }
-
-            // Now we can add this destination to the appropriate type_destinations HashMap in the destinations HashMap
-            type_destinations.put(destination.destination_id.toLowerCase(), destination);
-
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": added destination "+destination.toString());
-            return true;
+            return update(Collections.singletonList(destination_info), Collections.<JsonObject>emptyList()) == 1;
         }
 
         public void remove(JsonObject destination_info)
@@ -922,27 +1555,107 @@ public class MsgRouter extends AbstractVerticle {
                 return;
             }
 
-            // Remove from the current list (HashMap) of objects - ignore if it is missing
-            try
-            {
-                destinations.get(destination_type.toLowerCase()).remove(destination_id.toLowerCase());
-            }
-            catch (Exception NullPointerException)
-            {;}
+            update(Collections.<JsonObject>emptyList(), Collections.singletonList(destination_info));
 
             //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
             //           ": remove_destination count now "+destinations.size());
         }
 
-        public void print()
+        // Add (or replace) the 'puts' destinations and remove the 'removes' destinations (unless also in puts), as a
+        // single change to the destinations seen by the routers.  Returns the number of destinations put.
+        public int update(List<JsonObject> puts, List<JsonObject> removes)
         {
-            for (HashMap<String,Destination> destination_type : destinations.values())
+            RoutingTable.Builder<Destination> next = destinations.builder();
+            RoutingTable.Builder<Boolean> put_keys = RoutingTable.<Boolean>empty().builder();
+
+            int put_count = 0;
+            for (JsonObject destination_info : puts)
+            {
+                Destination destination;
+                try
+                {
+                    // Create Destination object for this destination
+                    destination = new Destination(destination_info);
+                }
+                catch (MsgRouterException e)
+                {
+                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                           ": add_destination failed with "+e.getMessage());
+                    continue;
+                }
+
+                // An updated destination keeps the queue (and spill file) of the destination it replaces
+                Destination previous = next.get(destination.destination_type, destination.destination_id);
+                if (previous != null)
+                {
+                    destination.queue = previous.queue;
+                    destination.queue.configure(destination_info);
+                    destination.queue.set_sender(destination);
+                }
+                else
+                {
+                    // each instance has its own queue for the destination, so its own spill file (and the
+                    // leader's queue takes over the spill files of a different number of instances)
+                    destination.queue = new DeliveryQueue(vertx,
+                                                          destination.destination_type+"/"+destination.destination_id,
+                                                          destination,
+                                                          destination_info,
+                                                          SPILL_PATH == null || group.instances.length == 1
+                                                              ? SPILL_PATH : SPILL_PATH+"/"+(instance_index+1),
+                                                          old_spill_paths,
+                                                          pause_counts);
+                }
+
+                next.put(destination.destination_type, destination.destination_id, destination);
+                put_keys.put(destination.destination_type, destination.destination_id, true);
+                put_count++;
+
+                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                           ": added destination "+destination.toString());
+            }
+
+            for (JsonObject destination_info : removes)
             {
-                for (Destination destination : destination_type.values())
+                String destination_id = destination_info.getString("destination_id");
+                String destination_type = destination_info.getString("destination_type");
+                // ignore if it is missing
+                if (destination_id != null && destination_type != null && put_keys.get(destination_type, destination_id) == null)
                 {
-                    logger.log(Constants.LOG_INFO, destination.toString());
+                    Destination removed = next.get(destination_type, destination_id);
+                    if (removed != null)
+                    {
+                        // stops its timers, resumes any consumers it has paused and closes its spill file
+                        removed.queue.close();
+                        next.remove(destination_type, destination_id);
+                    }
                 }
             }
+
+            destinations = next.build();
+            return put_count;
+        }
+
+        // Return the delivery metrics of each destination ("type/id" -> metrics), see DeliveryQueue.metrics()
+        public HashMap<String,DeliveryQueue.Metrics> metrics()
+        {
+            HashMap<String,DeliveryQueue.Metrics> metrics = new HashMap<String,DeliveryQueue.Metrics>();
+            for (Destination destination : destinations.values())
+            {
+                metrics.put(destination.destination_type+"/"+destination.destination_id, destination.queue.metrics());
+            }
+            return metrics;
+        }
+
+        public void print()
+        {
+            for (Destination destination : destinations.values())
+            {
+                logger.log(Constants.LOG_INFO, destination.toString()+" "+destination.queue.status());
+            }
+            if (destination_sync != null)
+            {
+                logger.log(Constants.LOG_INFO, destination_sync.status().toString());
+            }
         }
 
     } // end class Destinations
@@ -955,60 +1668,30 @@ public class MsgRouter extends AbstractVerticle {
     // *******************************************************************************************************************
     private class Sensors
     {
-        private HashMap<String,HashMap<String,Sensor>> sensors; // stores sensor_type-> sensor_id -> destination_type/id mapping
+        // stores sensor_type,sensor_id -> destination_type/id mapping.  Replaced (by update()) rather than changed,
+        // so a router always sees the sensors before or after a whole update.
+        private volatile RoutingTable<Sensor> sensors;
 
         Sensors()
         {
-            sensors = new HashMap<String,HashMap<String,Sensor>>();
+            sensors = RoutingTable.empty();
         }
 
         public int type_count()
         {
-            return sensors.size();
+            return sensors.type_count();
         }
 
+        // Return the Sensor for sensor_type,sensor_id (ignoring case)
         public Sensor get(String sensor_type, String sensor_id) throws NullPointerException
         {
-            return sensors.get(sensor_type.toLowerCase()).get(sensor_id.toLowerCase());
+            return sensors.get(sensor_type, sensor_id);
         }
 
         // Add a sensor to sensors, having received an 'add_sensor' manager message
         public void put(JsonObject sensor_info)
         {
-            Sensor sensor;
-            // Try creating a new Sensor from sensor_info
-            try
-            {
-                // Create a Sensor object for this sensor
-                sensor = new Sensor(sensor_info);
-            }
-            catch (MsgRouterException e)
-            {
-                logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                           ": add_sensor failed with "+e.getMessage());
-                return;
-            }
-
-            // ***********************************************
-            // add the sensor to the current list (HashMap)
-            // ***********************************************
-
-            // If this sensor is the first of its type, create a new HashMap for that type
-            HashMap<String,Sensor> type_sensors = sensors.get(sensor.sensor_type.toLowerCase());
-            if (type_sensors == null)
-            {
-                type_sensors = new HashMap<String, Sensor>();
-                // add new sensors hashmap to global sensors hashmap
-                sensors.put(sensor.sensor_type.toLowerCase(), type_sensors);
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": added new sensor_type \""+sensor.sensor_type+"\" to sensors in-memory store");
-            }
-
-            // Now we can add this sensor to the appropriate type_sensors HashMap in the sensors HashMap
-            type_sensors.put(sensor.sensor_id.toLowerCase(), sensor);
-
-            // logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-            //           ": sensor count now "+sensors.size());
+            update(Collections.singletonList(sensor_info), Collections.<JsonObject>emptyList());
         }
 
         // Remove a LoraWAN sensor from sensors, having received a 'remove_sensor' manager message
@@ -1023,26 +1706,62 @@ public class MsgRouter extends AbstractVerticle {
                 return;
             }
 
-            // remove the sensor from the current list (HashMap) - ignore if it is missing
-            try
-            {
-                sensors.get(sensor_type.toLowerCase()).remove(sensor_id.toLowerCase());
-            }
-            catch (Exception NullPointerException)
-            {;}
+            update(Collections.<JsonObject>emptyList(), Collections.singletonList(sensor_info));
 
             logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                        ": remove_sensor, count now "+sensors.size());
         }
 
-        public void print()
+        // Add (or replace) the 'puts' sensors and remove the 'removes' sensors (unless also in puts), as a
+        // single change to the sensors seen by the routers
+        public void update(List<JsonObject> puts, List<JsonObject> removes)
         {
-            for (HashMap<String, Sensor> sensor_type : sensors.values())
+            RoutingTable.Builder<Sensor> next = sensors.builder();
+            RoutingTable.Builder<Boolean> put_keys = RoutingTable.<Boolean>empty().builder();
+
+            for (JsonObject sensor_info : puts)
             {
-                for (Sensor sensor : sensor_type.values())
+                Sensor sensor;
+                // Try creating a new Sensor from sensor_info
+                try
                 {
-                    logger.log(Constants.LOG_INFO, sensor.toString());
+                    // Create a Sensor object for this sensor
+                    sensor = new Sensor(sensor_info);
                 }
+                catch (MsgRouterException e)
+                {
+                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                               ": add_sensor failed with "+e.getMessage());
+                    continue;
+                }
+
+                next.put(sensor.sensor_type, sensor.sensor_id, sensor);
+                put_keys.put(sensor.sensor_type, sensor.sensor_id, true);
+            }
+
+            for (JsonObject sensor_info : removes)
+            {
+                String sensor_id = sensor_info.getString("sensor_id");
+                String sensor_type = sensor_info.getString("sensor_type");
+                // ignore if it is missing
+                if (sensor_id != null && sensor_type != null && put_keys.get(sensor_type, sensor_id) == null)
+                {
+                    next.remove(sensor_type, sensor_id);
+                }
+            }
+
+            sensors = next.build();
+        }
+
+        public void print()
+        {
+            for (Sensor sensor : sensors.values())
+            {
+                logger.log(Constants.LOG_INFO, sensor.toString());
+            }
+            if (sensor_sync != null)
+            {
+                logger.log(Constants.LOG_INFO, sensor_sync.status().toString());
             }
         }
 
@@ -0,0 +1,236 @@
+package acp_server.msgrouter;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// RoutingTable.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// RoutingTable is an immutable map (type, id) -> value, used by MsgRouter for the sensors
+// (sensor_type, sensor_id) -> Sensor and destinations (destination_type, destination_id) -> Destination.
+//
+// The keys are case-insensitive: they are lowercased (and interned, as the same types and ids recur
+// across the sensors and destinations) once when the table is built, and get() only lowercases a
+// looked-up type or id if it actually contains an upper-case character.  The table is a single flat
+// open-addressing array on the composite key, so a lookup is one probe sequence using the Strings'
+// cached hash codes, with no allocation.
+//
+// A table is never changed: MsgRouter builds a new table (from the current one via builder()) and swaps
+// it in, so a table may be read by any number of threads (e.g. routers on other event loops) without
+// locks, and a reader always sees a complete table.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+public final class RoutingTable<T> {
+
+    private static final RoutingTable<Object> EMPTY = new RoutingTable<Object>(new LinkedHashMap<String,Entry<Object>>());
+
+    // slot i is slots[3i] lowercase type (null for an empty slot), slots[3i+1] lowercase id, slots[3i+2] value,
+    // so a probe reads adjacent elements
+    private final Object[] slots;
+
+    private final int mask;        // slot count - 1 (the slot count is a power of 2)
+
+    private final int size;
+    private final int type_count;
+
+    @SuppressWarnings("unchecked")
+    public static <T> RoutingTable<T> empty()
+    {
+        return (RoutingTable<T>) EMPTY;
+    }
+
+    private RoutingTable(LinkedHashMap<String,Entry<T>> entries)
+    {
+        // at most half full, so the probe sequences are short
+        int slot_count = 2;
+        while (slot_count < entries.size() * 2)
+        {
+            slot_count *= 2;
+        }
+        slots = new Object[slot_count * 3];
+        mask = slot_count - 1;
+
+        HashSet<String> type_set = new HashSet<String>();
+        for (Entry<T> entry : entries.values())
+        {
+            int slot = hash(entry.type, entry.id) & mask;
+            while (slots[slot * 3] != null)
+            {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot * 3] = entry.type;
+            slots[slot * 3 + 1] = entry.id;
+            slots[slot * 3 + 2] = entry.value;
+            type_set.add(entry.type);
+        }
+
+        size = entries.size();
+        type_count = type_set.size();
+    }
+
+    // *********************************************************************
+    // get()
+    // Return the value for (type, id), ignoring case, or null if there is none (or type or id is null)
+    @SuppressWarnings("unchecked")
+    public T get(String type, String id)
+    {
+        if (type == null || id == null)
+        {
+            return null;
+        }
+        type = lower(type);
+        id = lower(id);
+
+        int slot = hash(type, id) & mask;
+        Object slot_type;
+        while ((slot_type = slots[slot * 3]) != null)
+        {
+            if (slot_type.equals(type) && slots[slot * 3 + 1].equals(id))
+            {
+                return (T) slots[slot * 3 + 2];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int type_count()
+    {
+        return type_count;
+    }
+
+    // Return the values in the table
+    @SuppressWarnings("unchecked")
+    public List<T> values()
+    {
+        ArrayList<T> list = new ArrayList<T>(size);
+        for (int i=0; i<slots.length; i+=3)
+        {
+            if (slots[i] != null)
+            {
+                list.add((T) slots[i + 2]);
+            }
+        }
+        return list;
+    }
+
+    // Return a Builder for a new table, starting with the entries of this one
+    @SuppressWarnings("unchecked")
+    public Builder<T> builder()
+    {
+        Builder<T> builder = new Builder<T>();
+        for (int i=0; i<slots.length; i+=3)
+        {
+            if (slots[i] != null)
+            {
+                String type = (String) slots[i];
+                String id = (String) slots[i + 1];
+                builder.entries.put(key(type, id), new Entry<T>(type, id, (T) slots[i + 2]));
+            }
+        }
+        return builder;
+    }
+
+    // Return s in lowercase, which is s itself unless it has an upper-case character (the usual case)
+    static String lower(String s)
+    {
+        for (int i=0; i<s.length(); i++)
+        {
+            if (Character.isUpperCase(s.charAt(i)))
+            {
+                return s.toLowerCase(Locale.ROOT);
+            }
+        }
+        return s;
+    }
+
+    // The slot hash of (type, id), mixed (by the MurmurHash3 finalizer) as ids are often sequential, e.g. "...113e",
+    // "...113f", whose String hash codes would make long runs of adjacent slots
+    private static int hash(String type, String id)
+    {
+        int h = type.hashCode() * 0x9e3779b9 + id.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // the Builder's key for (type, id), with a separator that cannot be in a type
+    private static String key(String type, String id)
+    {
+        return type + '\u0000' + id;
+    }
+
+    // *********************************************************************
+    // Builder
+    // The changes for a new RoutingTable.  Not thread-safe, as it is used by the single thread making the change.
+    public static final class Builder<T> {
+
+        private LinkedHashMap<String,Entry<T>> entries = new LinkedHashMap<String,Entry<T>>();
+
+        private Builder()
+        {
+        }
+
+        // Return the value for (type, id) in the new table so far, ignoring case, or null
+        public T get(String type, String id)
+        {
+            Entry<T> entry = entries.get(key(lower(type), lower(id)));
+            return entry == null ? null : entry.value;
+        }
+
+        // Add or replace the value for (type, id)
+        public Builder<T> put(String type, String id, T value)
+        {
+            type = lower(type).intern();
+            id = lower(id).intern();
+            entries.put(key(type, id), new Entry<T>(type, id, value));
+            return this;
+        }
+
+        // Remove (type, id), if present
+        public Builder<T> remove(String type, String id)
+        {
+            entries.remove(key(lower(type), lower(id)));
+            return this;
+        }
+
+        public RoutingTable<T> build()
+        {
+            return new RoutingTable<T>(entries);
+        }
+    }
+
+    private static final class Entry<T> {
+        final String type;
+        final String id;
+        final T value;
+
+        Entry(String type, String id, T value)
+        {
+            this.type = type;
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+} // end class RoutingTable
@@ -0,0 +1,250 @@
+package acp_server.msgrouter;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// TableSync.java
+// Version 0.01
+// Author: Ian Lewis ijl20@cam.ac.uk
+//
+// Forms part of the 'acp_server' next-generation Adaptive City Platform
+//
+// TableSync keeps MsgRouter's in-memory copy of a PostgreSQL table (csn_sensor or csn_destination) in step
+// with the table, by reading only the rows that have changed since the last sync.
+//
+// The tables are written by tfc_web and have no 'updated_at' column, so the 'watermark' is the id and the
+// md5 of the info of every row, i.e. each sync() is
+//   SELECT id, md5(info::text) AS hash FROM <table>
+// (a few bytes per row), compared with the rows known from the last sync to find the rows added, changed
+// and deleted, and then
+//   SELECT id, md5(info::text) AS hash, info FROM <table> WHERE id IN (...)
+// for the added and changed rows only.  The first sync() reads the whole table in a single query.
+//
+// The changes are passed to the Changes handler (i.e. Sensors.update() or Destinations.update()) as one set
+// of 'puts' (the new info of the added and changed rows) and 'removes' (the last info of the deleted rows,
+// and of the changed rows whose key has changed), so the handler can apply them all in a single
+// copy-on-write swap.
+//
+// The queries are made by the (async) JDBCClient, so sync() and its handlers run on the MsgRouter event loop.
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLClient;
+
+public class TableSync {
+
+    // the most ids in a single "WHERE id IN (...)" query
+    private static final int FETCH_CHUNK = 1000;
+
+    // Applies the changed rows of a sync() to the in-memory table
+    public interface Changes {
+        void update(List<JsonObject> puts, List<JsonObject> removes);
+    }
+
+    private SQLClient sql_client;
+
+    private String table; // e.g. "csn_sensor"
+
+    private Changes changes;
+
+    private HashMap<Long, Row> rows; // id -> the row as at the last sync
+
+    // status counters
+    private long syncs;
+    private long added;
+    private long changed;
+    private long deleted;
+
+    public TableSync(SQLClient sql_client, String table, Changes changes)
+    {
+        this.sql_client = sql_client;
+        this.table = table;
+        this.changes = changes;
+
+        rows = new HashMap<Long, Row>();
+    }
+
+    // *********************************************************************
+    // sync()
+    // Read the changes to the table since the last sync() and apply them, calling done with the counts
+    // of the rows { "added": 1, "changed": 0, "deleted": 2 }
+    public void sync(Handler<AsyncResult<JsonObject>> done)
+    {
+        if (rows.size() == 0)
+        {
+            // nothing known yet, so read the whole table
+            sql_client.query("SELECT id, md5(info::text) AS hash, info FROM "+table, rr -> {
+                    if (rr.failed())
+                    {
+                        done.handle(Future.failedFuture(rr.cause()));
+                        return;
+                    }
+                    apply(rr.result().getRows(), new HashSet<Long>(), done);
+                });
+            return;
+        }
+
+        sql_client.query("SELECT id, md5(info::text) AS hash FROM "+table, rh -> {
+                if (rh.failed())
+                {
+                    done.handle(Future.failedFuture(rh.cause()));
+                    return;
+                }
+
+                // the ids of the rows added or changed, and of the rows still in the table
+                ArrayList<Long> fetch_ids = new ArrayList<Long>();
+                HashSet<Long> table_ids = new HashSet<Long>();
+                for (JsonObject row : rh.result().getRows())
+                {
+                    long id = row_id(row);
+                    table_ids.add(id);
+                    Row known = rows.get(id);
+                    if (known == null || !known.hash.equals(row.getString("hash")))
+                    {
+                        fetch_ids.add(id);
+                    }
+                }
+
+                fetch(fetch_ids, 0, new ArrayList<JsonObject>(), fetched -> {
+                        if (fetched.failed())
+                        {
+                            done.handle(Future.failedFuture(fetched.cause()));
+                            return;
+                        }
+                        apply(fetched.result(), table_ids, done);
+                    });
+            });
+    }
+
+    // Read the rows with ids[from..], FETCH_CHUNK ids per query, accumulating them in result
+    private void fetch(List<Long> ids, int from, List<JsonObject> result, Handler<AsyncResult<List<JsonObject>>> done)
+    {
+        if (from >= ids.size())
+        {
+            done.handle(Future.succeededFuture(result));
+            return;
+        }
+
+        int to = Math.min(from + FETCH_CHUNK, ids.size());
+        StringBuilder id_list = new StringBuilder();
+        for (int i=from; i<to; i++)
+        {
+            id_list.append(i == from ? "" : ",").append(ids.get(i));
+        }
+
+        sql_client.query("SELECT id, md5(info::text) AS hash, info FROM "+table+" WHERE id IN ("+id_list+")", rr -> {
+                if (rr.failed())
+                {
+                    done.handle(Future.failedFuture(rr.cause()));
+                    return;
+                }
+                result.addAll(rr.result().getRows());
+                fetch(ids, to, result, done);
+            });
+    }
+
+    // Apply the fetched rows (with id, hash and info) and the deletion of the known rows not in table_ids (unless
+    // this is a full read, with table_ids empty, when every row not fetched has been deleted)
+    private void apply(List<JsonObject> fetched, HashSet<Long> table_ids, Handler<AsyncResult<JsonObject>> done)
+    {
+        boolean full_read = table_ids.isEmpty();
+
+        ArrayList<JsonObject> puts = new ArrayList<JsonObject>();
+        ArrayList<JsonObject> removes = new ArrayList<JsonObject>();
+        HashSet<Long> fetched_ids = new HashSet<Long>();
+        int add_count = 0;
+        int change_count = 0;
+
+        for (JsonObject fetched_row : fetched)
+        {
+            long id = row_id(fetched_row);
+            fetched_ids.add(id);
+
+            Row row = new Row(fetched_row.getString("hash"), new JsonObject(fetched_row.getValue("info").toString()));
+            Row known = rows.put(id, row);
+            if (known == null)
+            {
+                add_count++;
+            }
+            else if (known.hash.equals(row.hash))
+            {
+                continue;
+            }
+            else
+            {
+                change_count++;
+                removes.add(known.info);
+            }
+            puts.add(row.info);
+        }
+
+        int delete_count = 0;
+        for (Map.Entry<Long, Row> entry : new ArrayList<Map.Entry<Long, Row>>(rows.entrySet()))
+        {
+            Long id = entry.getKey();
+            if (full_read ? !fetched_ids.contains(id) : !table_ids.contains(id))
+            {
+                removes.add(entry.getValue().info);
+                rows.remove(id);
+                delete_count++;
+            }
+        }
+
+        if (puts.size() > 0 || removes.size() > 0)
+        {
+            changes.update(puts, removes);
+        }
+
+        syncs++;
+        added += add_count;
+        changed += change_count;
+        deleted += delete_count;
+
+        done.handle(Future.succeededFuture(new JsonObject()
+                                               .put("added", add_count)
+                                               .put("changed", change_count)
+                                               .put("deleted", delete_count)));
+    }
+
+    private static long row_id(JsonObject row)
+    {
+        return ((Number) row.getValue("id")).longValue();
+    }
+
+    // Return the TableSync status, e.g. for the MsgRouter print_destinations
+    public JsonObject status()
+    {
+        return new JsonObject()
+            .put("table", table)
+            .put("rows", rows.size())
+            .put("syncs", syncs)
+            .put("added", added)
+            .put("changed", changed)
+            .put("deleted", deleted);
+    }
+
+    // A table row as at the last sync
+    private static class Row {
+        String hash;     // md5 of the info
+        JsonObject info; // the row's info column
+
+        Row(String hash, JsonObject info)
+        {
+            this.hash = hash;
+            this.info = info;
+        }
+    }
+
+} // end class TableSync
@@ -138,7 +138,7 @@ import acp_server.util.Log;
 
                 // if there is NO definition of a 'records_array' in the config()
                 // then the whole eventbus message is the data record and is sent (or not) unchanged.
-                if (m.records_array.size() == 0)
+                if (m.records_array == null)
                 {
                     // The whole message is considered the 'record'
                     logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
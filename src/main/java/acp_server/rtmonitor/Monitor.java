@@ -8,6 +8,7 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.ext.web.handler.sockjs.SockJSSocket;
 
 import acp_server.util.Constants;
+import acp_server.util.JsonPath;
 import acp_server.util.Log;
 
     // *****************************************************************************************
@@ -32,8 +33,8 @@ import acp_server.util.Log;
     // each vehicle.
     class Monitor {
         public String address;                  // EventBus address consumed
-        public ArrayList<String> records_array;  // JsonArray property of data records e.g. "request_data"
-        public ArrayList<String> record_index;   // 'primary key' Json property (within data records)
+        public JsonPath records_array;           // JsonArray property of data records e.g. "request_data", or null
+        public JsonPath record_index;            // 'primary key' Json property (within data records), or null
         public ClientTable clients;              // Set of sockets subscribing to this data
 
         public Hashtable<String, JsonObject> latest_records; // Holds latest message for each key
@@ -54,28 +55,23 @@ import acp_server.util.Log;
 
             this.address = address;
             // parse monitor config records_index e.g. "A>B>C" pointing to index field WITHIN record
-            if (record_index == null)
-            {
-                this.record_index = new ArrayList<String>();
-            }
-            else
+            if (record_index != null)
             {
-                this.record_index = string_to_array(record_index);
+                this.record_index = new JsonPath(record_index);
             }
             // parse monitor config records_array e.g. "D>E>F" pointing to records array
             if (records_array == null)
             {
-                this.records_array = new ArrayList<String>();
                 logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
                            ": created Monitor, single messages (index '"+
-                           array_to_string(this.record_index)+") from "+address);
+                           record_index+") from "+address);
             }
             else
             {
-                this.records_array = string_to_array(records_array);
+                this.records_array = new JsonPath(records_array);
                 logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
-                           ": created Monitor, record array '"+array_to_string(this.records_array)+
-                           "' (index '"+array_to_string(this.record_index)+"') from "+address);
+                           ": created Monitor, record array '"+records_array+
+                           "' (index '"+record_index+"') from "+address);
             }
             latest_records = new Hashtable<String, JsonObject>();
             previous_records = new Hashtable<String, JsonObject>();
@@ -108,7 +104,7 @@ import acp_server.util.Log;
 
             // This monitor may be for single records (i.e. msg = record)
             // or multiple records may be contained within nested 'records_array' object
-            if (records_array.size() == 0)
+            if (records_array == null)
             {
                 // The whole message is considered the 'record'
                 update_record(eventbus_msg);
@@ -131,6 +127,13 @@ import acp_server.util.Log;
         private void update_record(JsonObject record)
         {
             String index_value = get_index(record);
+            if (index_value == null)
+            {
+                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                           ": update_record skipping record with no "+
+                           (record_index == null ? "record_index" : record_index.path));
+                return;
+            }
 
             logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                        ": update_record "+index_value);
@@ -155,35 +158,34 @@ import acp_server.util.Log;
         public JsonArray get_records(JsonObject msg)
         {
             // The message contains multiple records, so follow records_array path
-            // of JsonObjects and assume final element on path is JsonArray
-            // containing data records of interest. Start with original message
-            JsonObject records_parent = msg.copy();
-            // step through the 'records_array' properties excluding the last
-            for (int i=0; i<records_array.size()-1; i++)
+            // to the JsonArray containing data records of interest
+            if (!records_array.has_wildcard())
             {
-                records_parent = records_parent.getJsonObject(records_array.get(i));
+                JsonArray records = records_array.getJsonArray(msg);
+                return records == null ? new JsonArray() : records;
             }
-            // Now JsonObject records_parent contains the JsonArray with the
-            // property as the last value in records_array.
-            return records_parent.getJsonArray(records_array.get(records_array.size()-1));
+            // e.g. "request_data[*]>sites", so combine the records of every matching array
+            JsonArray records = new JsonArray();
+            records_array.each(msg, value -> {
+                    if (value instanceof JsonArray)
+                    {
+                        records.addAll((JsonArray) value);
+                    }
+                });
+            return records;
         }
 
         // Given an EventBus message, return the string value of the record_index
         // i.e. for a SiriVM data record this will be the value of "VehicleRef"
+        // or null if the record has no record_index
         private String get_index(JsonObject record)
         {
-            // The message contains multiple records, so follow records_array path
-            // of JsonObjects and assume final element on path is JsonArray
-            // containing data records of interest. Start with original message
-            JsonObject index_parent = record.copy();
-            // step through the 'record_index' properties excluding the last
-            for (int i=0; i<record_index.size()-1; i++)
+            if (record_index == null)
             {
-                index_parent = index_parent.getJsonObject(record_index.get(i));
+                return null;
             }
-            // Now JsonObject records_parent contains the String with the
-            // property as the last value in record_index.
-            return index_parent.getString(record_index.get(record_index.size()-1));
+            Object index_value = record_index.get(record);
+            return index_value == null ? null : index_value.toString();
         }
 
         // return true if the "key": "A>B>C" in the sock_msg matches the monitor 'record_index'
@@ -193,13 +195,13 @@ import acp_server.util.Log;
             // The first check is if the filter is for 'record_index'
             JsonArray filters = sock_msg.getJsonArray("filters");
             boolean key_is_record_index = false;
-            if (record_index.size()>0 && filters != null)
+            if (record_index != null && filters != null)
             {
                 for (int i=0; i<filters.size(); i++)
                 {
                     JsonObject jo = filters.getJsonObject(i);
                     String key = jo.getString("key");
-                    if (key_match(key, record_index))
+                    if (record_index.path.equals(key))
                     {
                         key_is_record_index = true;
                         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
@@ -237,45 +239,12 @@ import acp_server.util.Log;
             clients.remove(UUID);
         }
 
-        // Test whether a key (say "A>B>C") matches a string array ["D","E","F"]
-        // This is used for an optimization where a key in a subscription matches
-        // the 'primary key' of the records stored in this Monitor
-        private boolean key_match(String key_string, ArrayList<String> key_array)
-        {
-            if (key_string == null)
-            {
-                return false;
-            }
-            return String.join(">",key_array).equals(key_string);
-        }
-
-        // Given string "A>B>C" return ArrayList["A","B","C"]
-        private ArrayList<String> string_to_array(String s)
-        {
-            return new ArrayList<String>(Arrays.asList(s.split(">")));
-        }
-
-        // return 'records_array' ["A","B","C"] as "A>B>C"
-        private String array_to_string(ArrayList<String> array)
-        {
-            String str = "";
-            for (int i=0; i<array.size(); i++)
-            {
-                if (i != 0)
-                {
-                    str += '>';
-                }
-                str += array.get(i);
-            }
-            return str;
-        }
-
         // Return some human-readable description of this monitor as an HTML string
         public String toHtml()
         {
             String html = "<p>Subscribes to eventbus: <b>"+address+"</b></p>"+
-                    "<p>Data records in message property: <b>"+array_to_string(records_array)+"</b></p>"+
-                    "<p>Record sensor identifier property: <b>"+array_to_string(record_index)+"</b></p>";
+                    "<p>Data records in message property: <b>"+(records_array == null ? "" : records_array.path)+"</b></p>"+
+                    "<p>Record sensor identifier property: <b>"+(record_index == null ? "" : record_index.path)+"</b></p>";
             html += "<p>This Monitor has <b>"+clients.size()+"</b> client(s)</p>";
             html += clients.toHtml();
             return html;
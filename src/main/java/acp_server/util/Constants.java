@@ -76,6 +76,9 @@ public class Constants {
     // MsgFiler constants - also used in MsgFiler config()
     public static final String FILE_WRITE = "write"; // will overwrite the file
     public static final String FILE_APPEND = "append"; // will append to the file
+    public static final String FILE_LOG = "log"; // will append to segmented, indexed log files
+    public static final String FILE_COLUMNS = "columns"; // will buffer records and write columnar files
+    public static final String FILE_LATEST = "latest"; // will keep the latest and previous message per key in a slot file
     public static final String PREV_FILE_SUFFIX = ".prev"; // will be appended to the filename for previous data feed
 
     // FeedMaker hop count limit
@@ -0,0 +1,372 @@
+package acp_server.util;
+
+// JsonPath is a compiled path to a value within a JsonObject, as used in the platform configs, e.g.
+//   "request_data[0]>sites"   the "sites" property of the first element of the "request_data" array
+//   "payload_fields>temperature"
+//   "request_data[*]>sites"   the "sites" property of EVERY element of "request_data"
+//   "a>b[1][-1]>c"            multiple indices, with a negative index counting back from the end of the array
+//
+// The path is parsed once (new JsonPath(path_string)) and then get(msg) or each(msg, handler) walk the
+// underlying Map / List structure of the message directly, so no intermediate JsonObject / JsonArray objects
+// are created and the message is not copied.  Only the final value is wrapped as a JsonObject / JsonArray (if
+// the message holds it as a Map / List).
+//
+// The navigation is null-safe, i.e. a missing property, an index out of range or a value of the wrong type
+// anywhere on the path gives null (or no calls of the each() handler) rather than an exception.
+//
+// each(parser, handler) follows the path through a Jackson streaming JsonParser instead, so the values can be
+// read from the message text without decoding the message at all (see FilerUtils.RecordsStreamer in MsgFiler,
+// and MsgRouter.shard()).  A negative index cannot be followed in a single pass, so this requires streamable().
+//
+// With a duplicate property name in an object (which is not valid JSON but is accepted by the parser) get()
+// and each(msg, ..) follow the LAST value, as the decoded JsonObject keeps the last, while each(parser, ..)
+// follows the FIRST, as the value is handled before any later duplicate can be seen.
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class JsonPath {
+
+    private static final int FIELD = 0;    // "foo"
+    private static final int INDEX = 1;    // "[7]"
+    private static final int WILDCARD = 2; // "[*]"
+
+    public final String path;
+
+    private int[] step_type;
+    private String[] step_name;
+    private int[] step_index;
+
+    private boolean wildcard; // true if the path contains a [*]
+
+    private boolean streamable; // false if the path contains a negative index
+
+    // Called by each(parser, handler) with the parser at the first token of each matching value.
+    // The handler must consume the value, i.e. leave the parser at its last token (as skipChildren() does).
+    public interface ParserHandler {
+        void handle(JsonParser parser) throws IOException;
+    }
+
+    // Compile the path, e.g. "request_data[*]>sites", throwing IllegalArgumentException if it is not valid
+    public JsonPath(String path)
+    {
+        this.path = path;
+
+        // count the steps so the step arrays can be allocated
+        int steps = 0;
+        for (String part : path.split(">", -1))
+        {
+            int open_bracket = part.indexOf('[');
+            steps += open_bracket == 0 ? 0 : 1;
+            for (int i=0; i<part.length(); i++)
+            {
+                if (part.charAt(i) == '[')
+                {
+                    steps++;
+                }
+            }
+        }
+
+        step_type = new int[steps];
+        step_name = new String[steps];
+        step_index = new int[steps];
+
+        streamable = true;
+        int step = 0;
+        for (String part : path.split(">", -1))
+        {
+            int open_bracket = part.indexOf('[');
+            String name = open_bracket < 0 ? part : part.substring(0, open_bracket);
+            if (name.length() == 0 && (open_bracket != 0 || step == 0))
+            {
+                throw new IllegalArgumentException("JsonPath missing property name in '"+path+"'");
+            }
+            if (name.length() > 0)
+            {
+                step_type[step] = FIELD;
+                step_name[step] = name;
+                step++;
+            }
+            // the [..] indices following the name
+            int p = open_bracket;
+            while (p >= 0 && p < part.length())
+            {
+                int close_bracket = part.indexOf(']', p);
+                if (part.charAt(p) != '[' || close_bracket < 0)
+                {
+                    throw new IllegalArgumentException("JsonPath bad index in '"+path+"'");
+                }
+                String index = part.substring(p+1, close_bracket).trim();
+                if (index.equals("*"))
+                {
+                    step_type[step] = WILDCARD;
+                    wildcard = true;
+                }
+                else
+                {
+                    step_type[step] = INDEX;
+                    try
+                    {
+                        step_index[step] = Integer.parseInt(index);
+                        streamable = streamable && step_index[step] >= 0;
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        throw new IllegalArgumentException("JsonPath bad index '"+index+"' in '"+path+"'");
+                    }
+                }
+                step++;
+                p = close_bracket + 1;
+            }
+        }
+    }
+
+    // Return true if the path contains a wildcard [*], i.e. may match multiple values
+    public boolean has_wildcard()
+    {
+        return wildcard;
+    }
+
+    // Return true if the path is a single top-level property, e.g. "acp_id" (not "a>b" or "a[0]")
+    public boolean top_level()
+    {
+        return step_type.length == 1 && step_type[0] == FIELD;
+    }
+
+    // Return true if each(parser, handler) can be used, i.e. the path has no negative index
+    public boolean streamable()
+    {
+        return streamable;
+    }
+
+    // Return the value at the end of the path (the first match if the path has a wildcard), or null
+    public Object get(JsonObject msg)
+    {
+        if (msg == null)
+        {
+            return null;
+        }
+
+        if (wildcard)
+        {
+            Object[] first = new Object[1];
+            walk(msg.getMap(), 0, value -> {
+                    if (first[0] == null)
+                    {
+                        first[0] = value;
+                    }
+                });
+            return wrap(first[0]);
+        }
+
+        Object node = msg.getMap();
+        for (int i=0; i<step_type.length && node != null; i++)
+        {
+            node = step(node, i);
+        }
+        return wrap(node);
+    }
+
+    // Return the value at the end of the path as a String, or null if it is missing or not a String
+    public String getString(JsonObject msg)
+    {
+        Object value = get(msg);
+        return value instanceof CharSequence ? value.toString() : null;
+    }
+
+    // Return the value at the end of the path as a JsonObject, or null if it is missing or not an object
+    public JsonObject getJsonObject(JsonObject msg)
+    {
+        Object value = get(msg);
+        return value instanceof JsonObject ? (JsonObject) value : null;
+    }
+
+    // Return the value at the end of the path as a JsonArray, or null if it is missing or not an array
+    public JsonArray getJsonArray(JsonObject msg)
+    {
+        Object value = get(msg);
+        return value instanceof JsonArray ? (JsonArray) value : null;
+    }
+
+    // Call handler with each value matching the path, e.g. each "sites" array for "request_data[*]>sites"
+    public void each(JsonObject msg, Handler<Object> handler)
+    {
+        if (msg != null)
+        {
+            walk(msg.getMap(), 0, value -> { handler.handle(wrap(value)); });
+        }
+    }
+
+    // Call handler with the parser at each value matching the path, where the parser is at the first token
+    // of the message (or other value) the path starts from.  On return the parser is at the last token of
+    // that value, having skipped everything not on the path.
+    public void each(JsonParser parser, ParserHandler handler) throws IOException
+    {
+        walk(parser, 0, handler);
+    }
+
+    // Recursive walk of the parser tokens of the current value, for step i of the path
+    private void walk(JsonParser parser, int i, ParserHandler handler) throws IOException
+    {
+        if (i == step_type.length)
+        {
+            handler.handle(parser);
+            return;
+        }
+
+        if (step_type[i] == FIELD)
+        {
+            if (parser.currentToken() != JsonToken.START_OBJECT)
+            {
+                parser.skipChildren();
+                return;
+            }
+            boolean found = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                // (the first of duplicate names, unlike get(), see the header)
+                if (!found && name.equals(step_name[i]))
+                {
+                    found = true;
+                    walk(parser, i+1, handler);
+                }
+                else
+                {
+                    parser.skipChildren();
+                }
+            }
+            return;
+        }
+
+        if (parser.currentToken() != JsonToken.START_ARRAY)
+        {
+            parser.skipChildren();
+            return;
+        }
+        int index = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY)
+        {
+            if (step_type[i] == WILDCARD || index == step_index[i])
+            {
+                walk(parser, i+1, handler);
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+            index++;
+        }
+    }
+
+    // Recursive walk for paths with a wildcard, calling handler with the (unwrapped) values found
+    private void walk(Object node, int i, Handler<Object> handler)
+    {
+        for ( ; i<step_type.length && node != null; i++)
+        {
+            if (step_type[i] == WILDCARD)
+            {
+                List<?> list = as_list(node);
+                if (list != null)
+                {
+                    for (Object element : list)
+                    {
+                        walk(element, i+1, handler);
+                    }
+                }
+                return;
+            }
+            node = step(node, i);
+        }
+        if (node != null)
+        {
+            handler.handle(node);
+        }
+    }
+
+    // Return the result of FIELD or INDEX step i applied to node, or null
+    private Object step(Object node, int i)
+    {
+        if (step_type[i] == FIELD)
+        {
+            Map<String,Object> map = as_map(node);
+            return map == null ? null : map.get(step_name[i]);
+        }
+        List<?> list = as_list(node);
+        if (list == null)
+        {
+            return null;
+        }
+        int index = step_index[i] < 0 ? list.size() + step_index[i] : step_index[i];
+        return index >= 0 && index < list.size() ? list.get(index) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String,Object> as_map(Object node)
+    {
+        if (node instanceof JsonObject)
+        {
+            return ((JsonObject) node).getMap();
+        }
+        return node instanceof Map ? (Map<String,Object>) node : null;
+    }
+
+    private static List<?> as_list(Object node)
+    {
+        if (node instanceof JsonArray)
+        {
+            return ((JsonArray) node).getList();
+        }
+        return node instanceof List ? (List<?>) node : null;
+    }
+
+    // Wrap a Map or List value as a JsonObject or JsonArray (sharing the underlying data)
+    @SuppressWarnings("unchecked")
+    private static Object wrap(Object value)
+    {
+        if (value instanceof Map)
+        {
+            return new JsonObject((Map<String,Object>) value);
+        }
+        if (value instanceof List)
+        {
+            return new JsonArray((List<Object>) value);
+        }
+        return value;
+    }
+
+    // e.g. "request_data[*]>sites" => "FIELD request_data > [*] > FIELD sites"
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<step_type.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(" > ");
+            }
+            if (step_type[i] == FIELD)
+            {
+                sb.append("FIELD ").append(step_name[i]);
+            }
+            else if (step_type[i] == INDEX)
+            {
+                sb.append('[').append(step_index[i]).append(']');
+            }
+            else
+            {
+                sb.append("[*]");
+            }
+        }
+        return sb.toString();
+    }
+}
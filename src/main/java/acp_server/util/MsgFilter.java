@@ -2,61 +2,392 @@ package acp_server.util;
 
 // **********************************************************************************************
 // **********************************************************************************************
-// MsgFilter is created with field/compare/value paramters suitable for filtering JsonObject messages
-// and provides a 'match' method which returns 'true' if a given message meets those filter requirements
+// MsgFilter is created from a filter expression (e.g. a module config "source_filter") suitable for
+// filtering JsonObject messages, and provides a 'match' method which returns 'true' if a given
+// message meets those filter requirements.
+//
+// The simplest filter is a single field/compare/value test, e.g.
+//   { "field": "msg_type", "compare": "=", "value": "zone_completion" }
+// which may be combined with "and", "or" and "not", e.g.
+//   { "and": [ { "field": "sensor_type", "compare": "=", "value": "lorawan" },
+//              { "not": { "field": "payload_cooked>temperature", "compare": "<", "value": -40 } },
+//              { "or":  [ { "field": "acp_id", "compare": "in", "value": [ "elsys-eye-044504", "elsys-co2-041ba9" ] },
+//                         { "field": "acp_id", "compare": "matches", "value": "^vent-.*" } ] }
+//            ]
+//   }
+//
+// "field" is a JsonPath (e.g. "payload_cooked>temperature", see JsonPath), and "compare" is one of
+//   "=", "!=", ">", "<", ">=", "<=",    numeric comparison if the message value is a number (or a string
+//                                      and the filter value is not a number, string comparison)
+//   "contains"                         the message value (as a string) contains the filter value
+//   "in"                               the message value is one of the filter value JsonArray
+//   "matches"                          the message value (as a string) matches the filter value regex
+// A test on a field that is missing from the message (or is an object or array) is false, so
+// { "not": .. } of such a test is true.
+//
+// The filter is compiled once, when the MsgFilter is created, to a tree of predicates with the
+// values pre-parsed (numbers, regex, "in" sets), and "and" / "or" stop at the first test that
+// decides the result.  An invalid filter throws IllegalArgumentException.
 // **********************************************************************************************
 // **********************************************************************************************
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 public class MsgFilter {
-    public String field;
-    public String compare;
-    public String value;
+
+    private Predicate<JsonObject> predicate;
+
+    private String description; // e.g. "msg_type = zone_completion"
+
+    private boolean top_level; // true if every "field" is a top-level property name
 
     public MsgFilter(JsonObject source_filter)
     {
-        field = source_filter.getString("field");
-        compare = source_filter.getString("compare");
-        value = source_filter.getString("value");
+        top_level = true;
+        predicate = compile(source_filter);
+        description = describe(source_filter);
     }
 
-    // match returns 'true' if msg.field compares ok with value
+    // match returns 'true' if msg passes the filter
     // e.g. if field="module_id", compare="contains", value="zone"
     // then match will return true if this msg.module_id contains the string "zone"
     public boolean match(JsonObject msg)
     {
-        String msg_value = msg.getString(field);
-        if (msg_value == null)
+        return predicate.test(msg);
+    }
+
+    // Return true if the filter only tests top-level properties of the message, i.e. has no
+    // "a>b" or "a[0]" field paths, so can be applied to just the top-level fields
+    public boolean top_level()
+    {
+        return top_level;
+    }
+
+    // Compile the filter JsonObject to a Predicate
+    private Predicate<JsonObject> compile(JsonObject filter)
+    {
+        if (filter == null)
         {
-            return false;
+            throw new IllegalArgumentException("MsgFilter missing filter");
         }
 
-        switch (compare)
+        if (filter.containsKey("and") || filter.containsKey("or"))
         {
-            case "=":
-                return msg_value.equals(value);
+            boolean and = filter.containsKey("and");
+            JsonArray terms = filter.getJsonArray(and ? "and" : "or");
+            if (terms == null || terms.size() == 0)
+            {
+                throw new IllegalArgumentException("MsgFilter \""+(and ? "and" : "or")+"\" needs a list of filters");
+            }
+            ArrayList<Predicate<JsonObject>> predicates = new ArrayList<Predicate<JsonObject>>();
+            for (int i=0; i<terms.size(); i++)
+            {
+                predicates.add(compile(terms.getJsonObject(i)));
+            }
+            if (predicates.size() == 1)
+            {
+                return predicates.get(0);
+            }
+            return and ? new And(predicates) : new Or(predicates);
+        }
 
-            case ">":
-                return msg_value.compareTo(value) > 0;
+        if (filter.containsKey("not"))
+        {
+            return compile(filter.getJsonObject("not")).negate();
+        }
 
-            case "<":
-                return msg_value.compareTo(value) < 0;
+        return new Compare(filter.getString("field"),
+                           filter.getString("compare"),
+                           filter.getValue("value"));
+    }
 
-            case "contains":
-                return msg_value.contains(value);
+    // Return the description of the filter, e.g. "(msg_type = zone_completion AND NOT ts < 1604484000)"
+    private static String describe(JsonObject filter)
+    {
+        if (filter.containsKey("and") || filter.containsKey("or"))
+        {
+            boolean and = filter.containsKey("and");
+            JsonArray terms = filter.getJsonArray(and ? "and" : "or");
+            StringBuilder sb = new StringBuilder("(");
+            for (int i=0; i<terms.size(); i++)
+            {
+                if (i > 0)
+                {
+                    sb.append(and ? " AND " : " OR ");
+                }
+                sb.append(describe(terms.getJsonObject(i)));
+            }
+            return sb.append(')').toString();
+        }
 
-            default:
+        if (filter.containsKey("not"))
+        {
+            return "NOT " + describe(filter.getJsonObject("not"));
         }
 
-        return false;
-    } // end match()
+        return filter.getString("field") + " " + filter.getString("compare") + " " + filter.getValue("value");
+    }
 
     // return a string representation of this filter, e.g. "msg_type = zone_completion"
     public String toString()
     {
-        return field + " " + compare + " " + value;
+        return description;
     }
-} // end class MsgFilter
 
-    
+    // *********************************************************************
+    // The compiled filter predicates
+    // *********************************************************************
+
+    // All of the predicates, stopping at the first false
+    private static class And implements Predicate<JsonObject> {
+        private Predicate<JsonObject>[] predicates;
+
+        @SuppressWarnings("unchecked")
+        And(ArrayList<Predicate<JsonObject>> list)
+        {
+            predicates = list.toArray(new Predicate[list.size()]);
+        }
+
+        public boolean test(JsonObject msg)
+        {
+            for (Predicate<JsonObject> p : predicates)
+            {
+                if (!p.test(msg))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Any of the predicates, stopping at the first true
+    private static class Or implements Predicate<JsonObject> {
+        private Predicate<JsonObject>[] predicates;
+
+        @SuppressWarnings("unchecked")
+        Or(ArrayList<Predicate<JsonObject>> list)
+        {
+            predicates = list.toArray(new Predicate[list.size()]);
+        }
+
+        public boolean test(JsonObject msg)
+        {
+            for (Predicate<JsonObject> p : predicates)
+            {
+                if (p.test(msg))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final int EQ = 0;
+    private static final int NE = 1;
+    private static final int GT = 2;
+    private static final int LT = 3;
+    private static final int GE = 4;
+    private static final int LE = 5;
+    private static final int CONTAINS = 6;
+    private static final int IN = 7;
+    private static final int MATCHES = 8;
+
+    // A single field/compare/value test
+    private class Compare implements Predicate<JsonObject> {
+        private String field;      // top-level property name, or null if 'path' is needed
+        private JsonPath path;
+        private int op;
+        private String value;      // filter value as a string
+        private double number;     // filter value as a number, if is_number
+        private boolean is_number;
+        private Pattern regex;                // "matches"
+        private HashSet<String> in_strings;   // "in"
+        private HashSet<Double> in_numbers;   // "in", the values that are numbers
+
+        Compare(String field_path, String compare, Object filter_value)
+        {
+            if (field_path == null || compare == null || filter_value == null)
+            {
+                throw new IllegalArgumentException("MsgFilter needs \"field\", \"compare\" and \"value\"");
+            }
+
+            path = new JsonPath(field_path);
+            if (field_path.indexOf('>') < 0 && field_path.indexOf('[') < 0)
+            {
+                field = field_path;
+            }
+            else
+            {
+                top_level = false;
+            }
+
+            switch (compare)
+            {
+                case "=":        op = EQ; break;
+                case "!=":       op = NE; break;
+                case ">":        op = GT; break;
+                case "<":        op = LT; break;
+                case ">=":       op = GE; break;
+                case "<=":       op = LE; break;
+                case "contains": op = CONTAINS; break;
+                case "in":       op = IN; break;
+                case "matches":  op = MATCHES; break;
+                default:
+                    throw new IllegalArgumentException("MsgFilter unknown compare \""+compare+"\"");
+            }
+
+            if (op == IN)
+            {
+                if (!(filter_value instanceof JsonArray))
+                {
+                    throw new IllegalArgumentException("MsgFilter \"in\" needs a list value");
+                }
+                in_strings = new HashSet<String>();
+                in_numbers = new HashSet<Double>();
+                for (Object v : (JsonArray) filter_value)
+                {
+                    if (v != null)
+                    {
+                        in_strings.add(v.toString());
+                        Double d = to_number(v);
+                        if (d != null)
+                        {
+                            in_numbers.add(d);
+                        }
+                    }
+                }
+                return;
+            }
+
+            value = filter_value.toString();
+            Double d = to_number(filter_value);
+            is_number = d != null;
+            number = is_number ? d : 0.0;
+
+            if (op == MATCHES)
+            {
+                try
+                {
+                    regex = Pattern.compile(value);
+                }
+                catch (PatternSyntaxException e)
+                {
+                    throw new IllegalArgumentException("MsgFilter bad regex \""+value+"\": "+e.getDescription());
+                }
+            }
+        }
+
+        public boolean test(JsonObject msg)
+        {
+            Object msg_value = field != null ? msg.getMap().get(field) : path.get(msg);
+
+            if (msg_value instanceof String)
+            {
+                String s = (String) msg_value;
+                switch (op)
+                {
+                    case EQ:       return s.equals(value);
+                    case NE:       return !s.equals(value);
+                    case CONTAINS: return s.contains(value);
+                    case IN:       return in_strings.contains(s);
+                    case MATCHES:  return regex.matcher(s).find();
+                    default:
+                }
+                // a string compared with a number is compared as a number if it is one
+                if (is_number)
+                {
+                    Double d = to_number(s);
+                    if (d != null)
+                    {
+                        return compare(Double.compare(d, number));
+                    }
+                }
+                return compare(s.compareTo(value));
+            }
+
+            if (msg_value instanceof Number)
+            {
+                double d = ((Number) msg_value).doubleValue();
+                switch (op)
+                {
+                    case CONTAINS: return msg_value.toString().contains(value);
+                    case IN:       return in_numbers.contains(d);
+                    case MATCHES:  return regex.matcher(msg_value.toString()).find();
+                    default:
+                }
+                if (is_number)
+                {
+                    return compare(Double.compare(d, number));
+                }
+                return op == NE; // a number is never equal to (or ordered with) a non-number
+            }
+
+            if (msg_value instanceof Boolean)
+            {
+                String s = msg_value.toString();
+                switch (op)
+                {
+                    case EQ:       return s.equals(value);
+                    case NE:       return !s.equals(value);
+                    case IN:       return in_strings.contains(s);
+                    default:       return false;
+                }
+            }
+
+            // missing, null, object or array
+            return false;
+        }
+
+        // Return the result of the ordering comparison op, given a comparison result c
+        private boolean compare(int c)
+        {
+            switch (op)
+            {
+                case EQ: return c == 0;
+                case NE: return c != 0;
+                case GT: return c > 0;
+                case LT: return c < 0;
+                case GE: return c >= 0;
+                case LE: return c <= 0;
+                default: return false;
+            }
+        }
+    }
+
+    // Return v as a number, or null if it is not a number (or a string containing a number)
+    private static Double to_number(Object v)
+    {
+        if (v instanceof Number)
+        {
+            return ((Number) v).doubleValue();
+        }
+        if (v instanceof String)
+        {
+            String s = (String) v;
+            // cheap check before the (exception-throwing) parse
+            if (s.length() == 0 || !(Character.isDigit(s.charAt(s.length()-1)) || s.endsWith(".")))
+            {
+                return null;
+            }
+            try
+            {
+                return Double.parseDouble(s);
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+
+} // end class MsgFilter
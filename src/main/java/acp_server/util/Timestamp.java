@@ -0,0 +1,198 @@
+package acp_server.util;
+
+// Timestamp decodes the timestamp properties of the platform messages, e.g. "ts": 1604484000 or the
+// string "acp_ts": "1604484000.123" as produced by FeedMQTT, or an ISO 8601 string "2020-11-04T10:00:00Z".
+//
+// epoch_ms(value) dispatches on the type of the (undecoded) message value, and parses a decimal string
+// directly, so no exception is thrown for a valid timestamp.  A number of seconds is truncated to the
+// whole second, and an ISO 8601 string keeps its milliseconds.
+//
+// DayCache gives the local day (in a given timezone, normally Constants.PLATFORM_TIMEZONE) containing a
+// timestamp, i.e. its start and end and the "yyyy", "MM", "dd" strings, recalculated only when a
+// timestamp falls outside the day last used.
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import io.vertx.core.json.JsonObject;
+
+public class Timestamp {
+
+    // returned for a missing (null) or invalid timestamp
+    public static final long NO_TS = Long.MIN_VALUE;
+
+    private static final long MAX_SECONDS = Long.MAX_VALUE / 1000L;
+
+    // Return the timestamp property field_name of msg in epoch milliseconds, or NO_TS if it is invalid.
+    // A missing property is taken as 0 (i.e. 1970-01-01).
+    public static long epoch_ms(JsonObject msg, String field_name)
+    {
+        Object value = msg.getMap().get(field_name);
+        if (value == null)
+        {
+            return msg.containsKey(field_name) ? NO_TS : 0L;
+        }
+        return epoch_ms(value);
+    }
+
+    // Return the timestamp value (a number or string of Unix seconds, or an ISO 8601 string) in epoch
+    // milliseconds, or NO_TS if it is invalid
+    public static long epoch_ms(Object value)
+    {
+        if (value instanceof Long || value instanceof Integer)
+        {
+            return seconds_to_ms(((Number) value).longValue());
+        }
+        if (value instanceof Number)
+        {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Math.abs(d) > MAX_SECONDS)
+            {
+                return NO_TS;
+            }
+            return seconds_to_ms((long) d);
+        }
+        if (value instanceof String)
+        {
+            String s = (String) value;
+            long ms = parse_decimal(s);
+            return ms != NO_TS ? ms : parse_other(s);
+        }
+        return NO_TS;
+    }
+
+    private static long seconds_to_ms(long seconds)
+    {
+        return Math.abs(seconds) > MAX_SECONDS ? NO_TS : seconds * 1000L;
+    }
+
+    // Parse a plain decimal number of seconds, e.g. "1604484000" or "1604484000.123", truncated to the
+    // whole second, or return NO_TS if s is not in that form (without throwing an exception)
+    private static long parse_decimal(String s)
+    {
+        int n = s.length();
+        int i = 0;
+        boolean negative = n > 0 && s.charAt(0) == '-';
+        if (negative)
+        {
+            i++;
+        }
+
+        long seconds = 0L;
+        int digits = 0;
+        for ( ; i < n; i++)
+        {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                break;
+            }
+            // more digits than a plausible timestamp are left to parse_other()
+            if (++digits > 15)
+            {
+                return NO_TS;
+            }
+            seconds = seconds * 10L + (c - '0');
+        }
+
+        if (i < n && s.charAt(i) == '.')
+        {
+            int fraction_start = ++i;
+            while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+            {
+                i++;
+            }
+            digits += i - fraction_start;
+        }
+
+        if (i != n || digits == 0)
+        {
+            return NO_TS;
+        }
+        return (negative ? -seconds : seconds) * 1000L;
+    }
+
+    // Parse any other form of timestamp string, i.e. ISO 8601 or a number Double.parseDouble accepts
+    // (e.g. "1.604484e9"), or return NO_TS.  These are rare, so the exceptions of the parse are acceptable.
+    private static long parse_other(String s)
+    {
+        try
+        {
+            if (s.length() > 10 && s.charAt(4) == '-')
+            {
+                return Instant.parse(s).toEpochMilli();
+            }
+            double d = Double.parseDouble(s);
+            if (Double.isNaN(d) || Math.abs(d) > MAX_SECONDS)
+            {
+                return NO_TS;
+            }
+            return seconds_to_ms((long) d);
+        }
+        catch (NumberFormatException | DateTimeException | ArithmeticException e)
+        {
+            return NO_TS;
+        }
+    }
+
+    // *********************************************************************
+    // DayCache
+    // The local day containing a timestamp, cached so that the day of a stream of (mostly) same-day
+    // timestamps is two comparisons.  May be shared between threads.
+    public static class DayCache {
+
+        private ZoneId zone;
+
+        private volatile Day day; // the day last used
+
+        public DayCache(ZoneId zone)
+        {
+            this.zone = zone;
+        }
+
+        // Return the local day containing epoch_ms
+        public Day day(long epoch_ms)
+        {
+            Day d = day;
+            if (d == null || epoch_ms < d.start_ms || epoch_ms >= d.end_ms)
+            {
+                d = new Day(epoch_ms, zone);
+                day = d;
+            }
+            return d;
+        }
+
+        public ZoneId zone()
+        {
+            return zone;
+        }
+    }
+
+    private static final DateTimeFormatter YYYY = DateTimeFormatter.ofPattern("yyyy");
+    private static final DateTimeFormatter MM = DateTimeFormatter.ofPattern("MM");
+    private static final DateTimeFormatter DD = DateTimeFormatter.ofPattern("dd");
+
+    // A local day, from start_ms (local midnight) up to but not including end_ms (the next midnight,
+    // so a day may be 23 or 25 hours at a daylight saving change)
+    public static class Day {
+        public final long start_ms;
+        public final long end_ms;
+        public final String yyyy;
+        public final String MM;
+        public final String dd;
+
+        Day(long epoch_ms, ZoneId zone)
+        {
+            LocalDate date = Instant.ofEpochMilli(epoch_ms).atZone(zone).toLocalDate();
+            start_ms = date.atStartOfDay(zone).toInstant().toEpochMilli();
+            end_ms = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            yyyy = date.format(YYYY);
+            MM = date.format(Timestamp.MM);
+            dd = date.format(DD);
+        }
+    }
+
+} // end class Timestamp